@@ -35,6 +35,7 @@ import bdv.util.BdvHandlePanel;
 import bdv.util.BdvOptions;
 import bdv.util.BdvStackSource;
 import bdv.viewer.DisplayMode;
+import bdv.viewer.ViewerPanel;
 import sc.fiji.labkit.ui.bdv.BdvAutoContrast;
 import sc.fiji.labkit.ui.bdv.BdvLayer;
 import sc.fiji.labkit.ui.bdv.BdvLayerLink;
@@ -114,6 +115,10 @@ public class BasicLabelingComponent extends JPanel implements AutoCloseable {
 		return new BdvLayerLink(layer, bdvHandle);
 	}
 
+	public ViewerPanel getViewerPanel() {
+		return bdvHandle.getViewerPanel();
+	}
+
 	private JPanel initToolsPanel() {
 		final PlanarModeController planarModeController = new PlanarModeController(
 			bdvHandle, model, zSlider);
@@ -0,0 +1,358 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import org.apache.commons.io.FilenameUtils;
+import org.scijava.Context;
+import sc.fiji.labkit.ui.inputimage.SpimDataInputImage;
+import sc.fiji.labkit.ui.segmentation.SegmentationTool;
+import sc.fiji.labkit.ui.segmentation.SegmentationUtils;
+import sc.fiji.labkit.ui.utils.LabkitUtils;
+import sc.fiji.labkit.ui.utils.ParallelUtils;
+import sc.fiji.labkit.ui.utils.RawTileWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line tool, that segments images without showing any GUI. It's meant
+ * for running Labkit on a cluster:
+ *
+ * <pre>
+ * USAGE: --classifier FILE --output DIRECTORY [--shard I/N] [--shard-by file|tile] [--use-gpu] INPUT...
+ * </pre>
+ * <p>
+ * An input is an image file, a glob pattern like {@code "/data/*.tif"}, or a
+ * Big Data Viewer XML file. The inputs are sorted, such that every process
+ * sees them in the same order.
+ * <p>
+ * With {@code --shard I/N} only the I-th of N shards is processed, I counts
+ * from zero. The N processes of a cluster array job, started with the shards
+ * 0/N to (N-1)/N, together process everything exactly once. With
+ * {@code --shard-by file} (the default) every N-th input file is segmented
+ * and saved as "..._segmentation.tif". With {@code --shard-by tile} every
+ * input is split into tiles, every N-th tile is segmented, and the shards are
+ * written into the same raw file "..._segmentation.raw" (8-bit, little
+ * endian, see {@link RawTileWriter}). The raw file has no header, its
+ * dimensions and pixel type are written to "..._segmentation.raw.json". Every
+ * shard, that is completely written, is marked by a file
+ * "..._segmentation.raw.shard-I-of-N.done". The raw file is complete, when
+ * all N markers exist.
+ * <p>
+ * Existing output files, and shards that are marked as done, are skipped, such
+ * that a job can be restarted. If the raw file was written with different
+ * settings, the tile mode fails instead of mixing the results. The old output
+ * needs to be deleted first.
+ * <p>
+ * The shards can as well be run one after the other, or in parallel on the
+ * local machine. No job scheduler is needed.
+ */
+public class CommandLineSegmentation {
+
+	private static final String USAGE =
+		"USAGE: --classifier FILE --output DIRECTORY [--shard I/N] [--shard-by file|tile] [--use-gpu] INPUT...";
+
+	private String classifier = null;
+
+	private File outputDirectory = null;
+
+	private int shardIndex = 0;
+
+	private int numberOfShards = 1;
+
+	private boolean shardByTile = false;
+
+	private boolean useGpu = false;
+
+	private final List<String> inputs = new ArrayList<>();
+
+	public static void main(String... args) {
+		System.exit(run(args));
+	}
+
+	/**
+	 * Runs the command line tool, with the given arguments.
+	 *
+	 * @return Exit code: 0 if successful, 1 if an input failed, 2 if the
+	 *         arguments are invalid.
+	 */
+	public static int run(String... args) {
+		CommandLineSegmentation cli = new CommandLineSegmentation();
+		try {
+			cli.parseArguments(args);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return 2;
+		}
+		try (Context context = new Context()) {
+			return cli.segment(context);
+		}
+	}
+
+	private void parseArguments(String... args) {
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--classifier":
+					classifier = value(args, ++i);
+					break;
+				case "--output":
+					outputDirectory = new File(value(args, ++i));
+					break;
+				case "--shard":
+					parseShard(value(args, ++i));
+					break;
+				case "--shard-by":
+					String shardBy = value(args, ++i);
+					if (!shardBy.equals("file") && !shardBy.equals("tile"))
+						throw new IllegalArgumentException("Unknown value for --shard-by: " +
+							shardBy);
+					shardByTile = shardBy.equals("tile");
+					break;
+				case "--use-gpu":
+					useGpu = true;
+					break;
+				default:
+					if (args[i].startsWith("--"))
+						throw new IllegalArgumentException("Unknown option: " + args[i]);
+					inputs.add(args[i]);
+			}
+		}
+		if (classifier == null || outputDirectory == null || inputs.isEmpty())
+			throw new IllegalArgumentException(
+				"Classifier, output directory and input are required.");
+	}
+
+	private static String value(String[] args, int i) {
+		if (i >= args.length)
+			throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+		return args[i];
+	}
+
+	private void parseShard(String value) {
+		String[] parts = value.split("/");
+		try {
+			if (parts.length != 2)
+				throw new NumberFormatException();
+			shardIndex = Integer.parseInt(parts[0]);
+			numberOfShards = Integer.parseInt(parts[1]);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Shard must be given as I/N: " +
+				value);
+		}
+		if (numberOfShards < 1 || shardIndex < 0 || shardIndex >= numberOfShards)
+			throw new IllegalArgumentException("Shard index out of range: " + value);
+	}
+
+	private int segment(Context context) {
+		List<File> files;
+		try {
+			files = listInputFiles(inputs);
+		}
+		catch (IOException e) {
+			System.err.println("Failed to list input files: " + e);
+			return 1;
+		}
+		SegmentationTool tool = new SegmentationTool(context);
+		tool.setUseGpu(useGpu);
+		tool.openModel(classifier);
+		outputDirectory.mkdirs();
+		List<File> selected = shardByTile ? files : ParallelUtils.shard(files,
+			shardIndex, numberOfShards);
+		PrintStream out = System.out;
+		int failed = 0;
+		for (File file : selected) {
+			try {
+				out.println("Segmenting " + file);
+				if (shardByTile)
+					segmentShardOfTiles(context, tool, file);
+				else
+					segmentFile(context, tool, file);
+			}
+			catch (Exception e) {
+				System.err.println("Failed to segment " + file + ": " + e);
+				failed++;
+			}
+		}
+		return failed == 0 ? 0 : 1;
+	}
+
+	private void segmentFile(Context context, SegmentationTool tool, File file)
+		throws IOException
+	{
+		File outputFile = new File(outputDirectory, FilenameUtils.getBaseName(file
+			.getName()) + "_segmentation.tif");
+		if (outputFile.exists()) {
+			System.out.println("Skipping " + file + ", output exists: " + outputFile);
+			return;
+		}
+		ImgPlus<UnsignedByteType> segmentation = tool.segment(openImage(context,
+			file));
+		Dataset dataset = context.service(DatasetService.class).create(
+			segmentation);
+		File tmpFile = new File(outputDirectory, ".labkit-tmp-" + outputFile
+			.getName());
+		try {
+			context.service(DatasetIOService.class).save(dataset, tmpFile
+				.getAbsolutePath());
+			LabkitUtils.moveAtomically(tmpFile, outputFile);
+		}
+		finally {
+			tmpFile.delete();
+		}
+	}
+
+	private void segmentShardOfTiles(Context context, SegmentationTool tool,
+		File file) throws IOException
+	{
+		File outputFile = new File(outputDirectory, FilenameUtils.getBaseName(file
+			.getName()) + "_segmentation.raw");
+		File doneFile = new File(outputDirectory, outputFile.getName() + ".shard-" +
+			shardIndex + "-of-" + numberOfShards + ".done");
+		ImgPlus<?> image = openImage(context, file);
+		writeMetadata(new File(outputDirectory, outputFile.getName() + ".json"),
+			metadata(file, image));
+		if (doneFile.exists()) {
+			System.out.println("Skipping shard " + shardIndex + "/" +
+				numberOfShards + " of " + file + ", marked as done: " + doneFile);
+			return;
+		}
+		try (RawTileWriter<UnsignedByteType> writer = new RawTileWriter<>(outputFile,
+			SegmentationUtils.intervalNoChannels(image), new UnsignedByteType()))
+		{
+			tool.segment(image, writer, new UnsignedByteType(), shardIndex,
+				numberOfShards);
+		}
+		Files.write(doneFile.toPath(), new byte[0]);
+		System.out.println("Written shard " + shardIndex + "/" + numberOfShards +
+			" of " + outputFile + ", size: " + Arrays.toString(SegmentationUtils
+				.intervalNoChannels(image).dimensionsAsLongArray()));
+	}
+
+	/**
+	 * Describes the raw file: its dimensions, pixel type, and by which input,
+	 * classifier and number of shards it is written.
+	 */
+	private String metadata(File input, ImgPlus<?> image) {
+		JsonArray dimensions = new JsonArray();
+		for (long size : SegmentationUtils.intervalNoChannels(image)
+			.dimensionsAsLongArray())
+			dimensions.add(size);
+		JsonObject metadata = new JsonObject();
+		metadata.add("dimensions", dimensions);
+		metadata.addProperty("dataType", "uint8");
+		metadata.addProperty("byteOrder", "little-endian");
+		metadata.addProperty("input", input.getAbsolutePath());
+		metadata.addProperty("classifier", new File(classifier).getAbsolutePath());
+		metadata.addProperty("numberOfShards", numberOfShards);
+		return metadata.toString();
+	}
+
+	/**
+	 * Writes the metadata file of a raw file. If the file already exists, it
+	 * must have the same content.
+	 */
+	private static void writeMetadata(File file, String metadata)
+		throws IOException
+	{
+		if (file.exists()) {
+			String existing = new String(Files.readAllBytes(file.toPath()),
+				StandardCharsets.UTF_8);
+			if (!existing.equals(metadata))
+				throw new IOException("Output was written with different settings, " +
+					"please delete it first: " + file);
+			return;
+		}
+		File tmpFile = File.createTempFile(".labkit-tmp-", ".json", file
+			.getParentFile());
+		try {
+			Files.write(tmpFile.toPath(), metadata.getBytes(StandardCharsets.UTF_8));
+			LabkitUtils.moveAtomically(tmpFile, file);
+		}
+		finally {
+			tmpFile.delete();
+		}
+	}
+
+	private static ImgPlus<?> openImage(Context context, File file)
+		throws IOException
+	{
+		if (file.getName().endsWith(".xml"))
+			return new SpimDataInputImage(file.getAbsolutePath(), 0)
+				.imageForSegmentation();
+		return context.service(DatasetIOService.class).open(file.getAbsolutePath())
+			.getImgPlus();
+	}
+
+	/**
+	 * Returns the sorted list of files, that are given directly or match one of
+	 * the given glob patterns. Glob patterns are only supported in the file
+	 * name, not in the directory part of the path.
+	 */
+	static List<File> listInputFiles(List<String> inputs) throws IOException {
+		List<File> files = new ArrayList<>();
+		for (String input : inputs) {
+			File file = new File(input);
+			if (file.exists()) {
+				files.add(file);
+				continue;
+			}
+			Path directory = file.getAbsoluteFile().getParentFile().toPath();
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" +
+				file.getName());
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path path : stream)
+					if (matcher.matches(path.getFileName()) && Files.isRegularFile(path))
+						files.add(path.toFile());
+			}
+		}
+		files.sort(null);
+		return files;
+	}
+}
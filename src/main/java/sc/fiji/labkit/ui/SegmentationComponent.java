@@ -67,6 +67,8 @@ public class SegmentationComponent extends JPanel implements AutoCloseable {
 
 	private final SegmentationModel segmentationModel;
 
+	private final PredictionLayer predictionLayer;
+
 	public SegmentationComponent(JFrame dialogBoxOwner,
 		SegmentationModel segmentationModel, boolean unmodifiableLabels)
 	{
@@ -76,7 +78,9 @@ public class SegmentationComponent extends JPanel implements AutoCloseable {
 		this.segmentationModel = segmentationModel;
 		ImageLabelingModel imageLabelingModel = segmentationModel.imageLabelingModel();
 		labelingComponent = new BasicLabelingComponent(dialogBoxOwner, imageLabelingModel);
-		labelingComponent.addBdvLayer(PredictionLayer.createPredictionLayer(segmentationModel));
+		predictionLayer = PredictionLayer.createPredictionLayer(segmentationModel,
+			labelingComponent.getViewerPanel());
+		labelingComponent.addBdvLayer(predictionLayer);
 		initActions();
 		setLayout(new BorderLayout());
 		add(initGui());
@@ -142,6 +146,7 @@ public class SegmentationComponent extends JPanel implements AutoCloseable {
 
 	@Override
 	public void close() {
+		predictionLayer.close();
 		labelingComponent.close();
 	}
 
@@ -32,9 +32,14 @@ package sc.fiji.labkit.ui.actions;
 import io.scif.services.DatasetIOService;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.roi.IterableRegion;
 import sc.fiji.labkit.ui.Extensible;
 import sc.fiji.labkit.ui.MenuBar;
 import sc.fiji.labkit.ui.labeling.Label;
@@ -45,6 +50,7 @@ import net.imglib2.type.logic.BoolType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 import org.scijava.plugin.Parameter;
 
 import javax.swing.*;
@@ -91,8 +97,8 @@ public class BitmapImportExportAction extends AbstractFileIoAction {
 
 	private void exportLabel(Label label, String filename) throws IOException {
 		Labeling labeling = model.labeling().get();
-		RandomAccessibleInterval<BitType> bitmap = labeling.getRegion(label);
-		Dataset dataset = datasetService.create(toUnsignedByteType(bitmap));
+		Dataset dataset = datasetService.create(toUnsignedByteType(labeling
+			.iterableRegion(label)));
 		datasetIOService.save(dataset, filename);
 	}
 
@@ -120,10 +126,23 @@ public class BitmapImportExportAction extends AbstractFileIoAction {
 			.getRealDouble() > 0.5), new BoolType());
 	}
 
-	private RandomAccessibleInterval<UnsignedByteType> toUnsignedByteType(
-		RandomAccessibleInterval<BitType> bitmap)
+	/**
+	 * Writes the region into a new image. Only the pixels inside the region are
+	 * visited, the rest of the image remains zero.
+	 */
+	private Img<UnsignedByteType> toUnsignedByteType(
+		IterableRegion<BitType> region)
 	{
-		return Converters.convert(bitmap, (in, out) -> out.set(in.getInteger()),
-			new UnsignedByteType());
+		Img<UnsignedByteType> image = PlanarImgs.unsignedBytes(Intervals
+			.dimensionsAsLongArray(region));
+		RandomAccess<UnsignedByteType> ra = Views.translate(image, Intervals
+			.minAsLongArray(region)).randomAccess();
+		Cursor<Void> cursor = region.inside().cursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			ra.setPosition(cursor);
+			ra.get().set(1);
+		}
+		return image;
 	}
 }
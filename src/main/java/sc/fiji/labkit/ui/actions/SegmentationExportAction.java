@@ -30,9 +30,11 @@
 package sc.fiji.labkit.ui.actions;
 
 import sc.fiji.labkit.ui.utils.HDF5Saver;
+import sc.fiji.labkit.ui.utils.N5TileWriter;
 import io.scif.img.ImgSaver;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.ImgView;
+import net.imglib2.img.cell.AbstractCellImg;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import sc.fiji.labkit.ui.Extensible;
 import sc.fiji.labkit.ui.models.ImageLabelingModel;
@@ -44,10 +46,22 @@ import sc.fiji.labkit.ui.utils.progress.SwingProgressWriter;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Cast;
+import net.imglib2.view.Views;
 
 import javax.swing.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Implements the menu items that allow to save the segmentation and probability
@@ -57,13 +71,15 @@ import java.util.function.Function;
  */
 public class SegmentationExportAction extends AbstractFileIoAction {
 
+	private static final int DEFAULT_BLOCK_SIZE = 64;
+
 	private final ImageLabelingModel labelingModel;
 
 	public SegmentationExportAction(Extensible extensible,
 		ImageLabelingModel labelingModel)
 	{
 		super(extensible, AbstractFileIoAction.TIFF_FILTER,
-			AbstractFileIoAction.HDF5_FILTER);
+			AbstractFileIoAction.HDF5_FILTER, AbstractFileIoAction.N5_FILTER);
 		this.labelingModel = labelingModel;
 		addMenuItems("Segmentation Result",
 			SegmentationResultsModel::segmentation,
@@ -78,8 +94,9 @@ public class SegmentationExportAction extends AbstractFileIoAction {
 		Function<SegmentationItem, Double> maxResultIntensity)
 	{
 		initSaveAction(SegmentationItem.SEGMENTER_MENU,
-			"Save " + title + " as TIF / HDF5 ...", 200,
-			(item, filename) -> saveImage(filename, getResultsImage.apply(item.results(labelingModel))),
+			"Save " + title + " as TIF / HDF5 / N5 ...", 200,
+			(item, filename) -> saveImage(filename, getResultsImage.apply(item.results(labelingModel)),
+				() -> resumeKey(item, title)),
 			"");
 		extensible.addMenuItem(SegmentationItem.SEGMENTER_MENU,
 			"Show " + title + " in ImageJ", 201,
@@ -121,14 +138,23 @@ public class SegmentationExportAction extends AbstractFileIoAction {
 	}
 
 	private <T extends Type<T>> void saveImage(String filename,
-		RandomAccessibleInterval<T> image)
+		RandomAccessibleInterval<T> image, Supplier<String> resumeKey)
 	{
 		if (filename.endsWith(".h5") || filename.endsWith(".xml")) {
 			final HDF5Saver saver = new HDF5Saver(image, filename);
+			if (saver.numberOfTimepoints() > 1) {
+				// NB: One partition per timepoint, so that the timepoints are
+				// segmented and written concurrently.
+				saver.setPartitions(1, 1);
+				saver.setNumberOfThreads(Runtime.getRuntime().availableProcessors());
+			}
 			saver.setProgressWriter(new SwingProgressWriter(extensible.dialogParent(),
 				"Save Image"));
 			saver.writeAll();
 		}
+		else if (filename.endsWith(".n5")) {
+			saveN5(filename, Cast.unchecked(image), resumeKey.get());
+		}
 		else {
 			try {
 				ImgSaver saver = new ImgSaver(extensible.context());
@@ -141,4 +167,110 @@ public class SegmentationExportAction extends AbstractFileIoAction {
 			}
 		}
 	}
+
+	/**
+	 * Writes the image as N5 dataset, block by block and in parallel. The blocks
+	 * match the cells of the cached result image, such that every cell is
+	 * written as soon as it's computed. If the container holds an export with
+	 * the given resume key, for example an export that was interrupted by a
+	 * crash, the user is asked whether to resume it. In that case blocks that
+	 * already exist are skipped. Otherwise the existing dataset is overwritten.
+	 */
+	private <T extends RealType<T>> void saveN5(String filename,
+		RandomAccessibleInterval<T> image, String resumeKey)
+	{
+		File directory = new File(filename);
+		if (resumeKey == null || !N5TileWriter.hasResumeKey(directory,
+			resumeKey) || !askResume(directory))
+			resumeKey = null;
+		RandomAccessibleInterval<T> zeroMin = Views.zeroMin(image);
+		int[] blockSize = blockSize(image);
+		ProgressWriter progress = new SwingProgressWriter(extensible
+			.dialogParent(), "Save Image");
+		try (N5TileWriter<T> writer = new N5TileWriter<>(directory, zeroMin,
+			blockSize, zeroMin.getType(), resumeKey))
+		{
+			ParallelUtils.forEachCell(zeroMin, blockSize, block -> {
+				if (writer.isWritten(block))
+					return;
+				try {
+					writer.write(Views.interval(zeroMin, block));
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}, progress);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a key, that identifies a result across sessions: It's derived
+	 * from the saved classifier, the image and the title of the result. Returns
+	 * null, if the classifier can't be saved.
+	 */
+	private String resumeKey(SegmentationItem item, String title) {
+		File classifier = null;
+		try {
+			classifier = File.createTempFile("labkit-export-", ".classifier");
+			item.saveModel(classifier.getAbsolutePath());
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Files.readAllBytes(classifier.toPath()));
+			digest.update(String.valueOf(labelingModel.defaultFileName()).getBytes(
+				StandardCharsets.UTF_8));
+			digest.update(String.valueOf(labelingModel.imageForSegmentation().get().getName())
+				.getBytes(StandardCharsets.UTF_8));
+			digest.update(title.getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest())
+				key.append(String.format("%02x", b));
+			return key.toString();
+		}
+		catch (Exception e) {
+			// NB: The export works without resume key, it's just not resumable.
+			return null;
+		}
+		finally {
+			if (classifier != null)
+				classifier.delete();
+		}
+	}
+
+	/**
+	 * Asks the user on the event dispatch thread, whether to resume the export.
+	 */
+	private boolean askResume(File directory) {
+		int[] answers = new int[1];
+		try {
+			SwingUtilities.invokeAndWait(() -> answers[0] = JOptionPane
+				.showConfirmDialog(extensible.dialogParent(),
+					"The N5 container already contains an export of this result:\n" +
+						directory + "\nResume the export? Otherwise it is overwritten.",
+					"Save Image", JOptionPane.YES_NO_CANCEL_OPTION));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+		catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		int answer = answers[0];
+		if (answer != JOptionPane.YES_OPTION && answer != JOptionPane.NO_OPTION)
+			throw new CancellationException();
+		return answer == JOptionPane.YES_OPTION;
+	}
+
+	private static int[] blockSize(RandomAccessibleInterval<?> image) {
+		int n = image.numDimensions();
+		int[] blockSize = new int[n];
+		if (image instanceof AbstractCellImg)
+			((AbstractCellImg<?, ?, ?, ?>) image).getCellGrid().cellDimensions(
+				blockSize);
+		else
+			Arrays.fill(blockSize, DEFAULT_BLOCK_SIZE);
+		return blockSize;
+	}
 }
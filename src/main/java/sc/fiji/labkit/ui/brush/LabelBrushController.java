@@ -37,13 +37,11 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
-import net.imglib2.roi.IterableRegion;
-import net.imglib2.roi.Regions;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.util.Intervals;
 import org.scijava.ui.behaviour.*;
 import sc.fiji.labkit.ui.ActionsAndBehaviours;
-import sc.fiji.labkit.ui.brush.neighborhood.Ellipsoid;
+import sc.fiji.labkit.ui.brush.neighborhood.BrushKernel;
+import sc.fiji.labkit.ui.brush.neighborhood.BrushStroke;
 import sc.fiji.labkit.ui.brush.neighborhood.RealPoints;
 import sc.fiji.labkit.ui.labeling.Label;
 import sc.fiji.labkit.ui.models.LabelingModel;
@@ -185,35 +183,27 @@ public class LabelBrushController {
 
 		private RealPoint before;
 
+		private final BrushStroke stroke = new BrushStroke();
+
+		private final double[] screen = new double[3];
+
+		private final double[] center = new double[3];
+
 		public PaintBehavior(boolean value) {
 			this.value = value;
 		}
 
-		private void paint(RealLocalizable screenCoordinates) {
-			synchronized (viewer) {
-				RandomAccessible<LabelingType<Label>> extended = extendLabelingType(getFrame());
-				double radius = Math.max(0, (brushDiameter - 1) * 0.5);
-				AffineTransform3D m = displayToImageTransformation();
-				double[] screen = { screenCoordinates.getDoublePosition(0), screenCoordinates
-					.getDoublePosition(1), 0 };
-				double[] center = new double[3];
-				m.apply(screen, center);
-				if (extended.numDimensions() == 3 && planarMode)
-					extended = Views.hyperSlice(extended, 2, Math.round(center[2]));
-				AffineTransform3D labelTransform = model.labelTransformation();
-				double pixelWidth = RealPoints.length(labelTransform.d(0));
-				double pixelHeight = RealPoints.length(labelTransform.d(1));
-				double pixelDepth = RealPoints.length(labelTransform.d(2));
-				double[] axes = { radius, radius * pixelWidth / pixelHeight, radius * pixelWidth /
-					pixelDepth };
-				if (extended.numDimensions() == 2) {
-					center = Arrays.copyOf(center, 2);
-					axes = Arrays.copyOf(axes, 2);
-				}
-				IterableRegion<BitType> region = Ellipsoid.asIterableRegion(center, axes);
-				Regions.sample(region, extended).forEach(pixelOperation());
-			}
-
+		private double[] brushAxes(int numDimensions) {
+			double radius = Math.max(0, (brushDiameter - 1) * 0.5);
+			AffineTransform3D labelTransform = model.labelTransformation();
+			double pixelWidth = RealPoints.length(labelTransform.d(0));
+			double pixelHeight = RealPoints.length(labelTransform.d(1));
+			double pixelDepth = RealPoints.length(labelTransform.d(2));
+			double[] axes = { radius, radius * pixelWidth / pixelHeight, radius * pixelWidth /
+				pixelDepth };
+			if (numDimensions == 3 && planarMode)
+				axes[2] = 0;
+			return Arrays.copyOf(axes, numDimensions);
 		}
 
 		private Consumer<LabelingType<Label>> pixelOperation() {
@@ -269,20 +259,22 @@ public class LabelBrushController {
 		}
 
 		private void paint(RealLocalizable a, RealLocalizable b) {
-			long distance = (long) (4 * (distance(a, b) + 1));
-			long step = (long) Math.max(brushDiameter, 1.0);
-			for (long i = 0; i < distance; i += step)
-				paint(interpolate((double) i / (double) distance, a, b));
-		}
-
-		RealLocalizable interpolate(double ratio, RealLocalizable a,
-			RealLocalizable b)
-		{
-			RealPoint result = new RealPoint(a.numDimensions());
-			for (int d = 0; d < result.numDimensions(); d++)
-				result.setPosition(ratio * a.getDoublePosition(d) + (1 - ratio) * b
-					.getDoublePosition(d), d);
-			return result;
+			synchronized (viewer) {
+				RandomAccessible<LabelingType<Label>> extended = extendLabelingType(getFrame());
+				stroke.start(BrushKernel.ellipsoid(brushAxes(extended.numDimensions())));
+				AffineTransform3D m = displayToImageTransformation();
+				long distance = (long) (4 * (distance(a, b) + 1));
+				long step = (long) Math.max(brushDiameter, 1.0);
+				for (long i = 0; i < distance; i += step) {
+					double ratio = (double) i / (double) distance;
+					for (int d = 0; d < 2; d++)
+						screen[d] = ratio * a.getDoublePosition(d) + (1 - ratio) * b
+							.getDoublePosition(d);
+					m.apply(screen, center);
+					stroke.add(center);
+				}
+				stroke.paint(extended.randomAccess(), pixelOperation());
+			}
 		}
 
 		double distance(RealLocalizable a, RealLocalizable b) {
@@ -302,7 +294,7 @@ public class LabelBrushController {
 			makeLabelVisible();
 			RealPoint coords = new RealPoint(x, y);
 			this.before = coords;
-			paint(coords);
+			paint(coords, coords);
 			double radius = getBrushDisplayRadius();
 			fireBitmapChanged(coords, coords, radius);
 		}
@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.brush.neighborhood;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.logic.BitType;
+import sc.fiji.labkit.ui.utils.sparse.LongBitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A precomputed brush shape, that can be stamped at many positions without
+ * allocating memory. The pixels of the brush are stored as runs along the
+ * first axis, relative to the brush center.
+ * <p>
+ * Use {@link #ellipsoid(double[])} to get the kernel for an ellipsoidal brush.
+ * These kernels are cached, because the brush size rarely changes while
+ * painting.
+ */
+public class BrushKernel {
+
+	private static final int CACHE_SIZE = 16;
+
+	private static final Map<List<Double>, BrushKernel> cache =
+		new LinkedHashMap<List<Double>, BrushKernel>(CACHE_SIZE, 0.75f, true)
+		{
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Double>, BrushKernel> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		};
+
+	/**
+	 * Returns the kernel for an ellipsoid with the given half axes, centered at
+	 * a pixel. The kernel contains the same pixels as
+	 * {@link Ellipsoid#asIterableRegion(double[], double[])} with a center of
+	 * zero.
+	 */
+	public static synchronized BrushKernel ellipsoid(double[] axes) {
+		List<Double> key = new ArrayList<>(axes.length);
+		for (double axis : axes)
+			key.add(axis);
+		BrushKernel kernel = cache.get(key);
+		if (kernel == null) {
+			kernel = new BrushKernel(Ellipsoid.asIterableRegion(new double[axes.length], axes));
+			cache.put(key, kernel);
+		}
+		return kernel;
+	}
+
+	private final int n;
+
+	private final int numRuns;
+
+	/**
+	 * Start positions of the runs, {@code n} values per run.
+	 */
+	private final long[] runStarts;
+
+	private final long[] runLengths;
+
+	private final long[] min;
+
+	private final long[] max;
+
+	BrushKernel(IterableRegion<BitType> region) {
+		n = region.numDimensions();
+		min = new long[n];
+		max = new long[n];
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+		long[] starts = new long[n * 16];
+		long[] lengths = new long[16];
+		int runs = 0;
+		long[] position = new long[n];
+		Cursor<Void> cursor = region.inside().cursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.localize(position);
+			for (int d = 0; d < n; d++) {
+				min[d] = Math.min(min[d], position[d]);
+				max[d] = Math.max(max[d], position[d]);
+			}
+			if (runs > 0 && continuesRun(starts, (runs - 1) * n, lengths[runs - 1], position))
+				lengths[runs - 1]++;
+			else {
+				if (runs == lengths.length) {
+					starts = Arrays.copyOf(starts, 2 * starts.length);
+					lengths = Arrays.copyOf(lengths, 2 * lengths.length);
+				}
+				System.arraycopy(position, 0, starts, runs * n, n);
+				lengths[runs] = 1;
+				runs++;
+			}
+		}
+		numRuns = runs;
+		runStarts = Arrays.copyOf(starts, runs * n);
+		runLengths = Arrays.copyOf(lengths, runs);
+	}
+
+	private boolean continuesRun(long[] starts, int offset, long length, long[] position) {
+		if (starts[offset] + length != position[0])
+			return false;
+		for (int d = 1; d < n; d++)
+			if (starts[offset + d] != position[d])
+				return false;
+		return true;
+	}
+
+	public int numDimensions() {
+		return n;
+	}
+
+	/**
+	 * @return The smallest offset from the brush center in dimension d.
+	 */
+	public long min(int d) {
+		return min[d];
+	}
+
+	/**
+	 * @return The largest offset from the brush center in dimension d.
+	 */
+	public long max(int d) {
+		return max[d];
+	}
+
+	/**
+	 * Applies the operation to all pixels covered by the brush, when placed at
+	 * the given center. The center is read from
+	 * {@code centers[offset ... offset + n - 1]}.
+	 */
+	public <T> void stamp(long[] centers, int offset, RandomAccess<T> randomAccess,
+		Consumer<? super T> operation)
+	{
+		for (int run = 0; run < numRuns; run++) {
+			for (int d = 0; d < n; d++)
+				randomAccess.setPosition(centers[offset + d] + runStarts[run * n + d], d);
+			for (long i = runLengths[run]; i > 0; i--) {
+				operation.accept(randomAccess.get());
+				randomAccess.fwd(0);
+			}
+		}
+	}
+
+	/**
+	 * Adds the flat indices of all pixels covered by the brush, when placed at
+	 * the given center, to the bitmap. The indices are relative to the interval
+	 * given by {@code intervalMin} and {@code dimensions}, which must contain
+	 * the brush.
+	 */
+	void addTo(long[] centers, int offset, long[] intervalMin, long[] dimensions,
+		LongBitmap bitmap)
+	{
+		for (int run = 0; run < numRuns; run++) {
+			long index = 0;
+			long stepSize = 1;
+			for (int d = 0; d < n; d++) {
+				index += stepSize * (centers[offset + d] + runStarts[run * n + d] - intervalMin[d]);
+				stepSize *= dimensions[d];
+			}
+			for (long i = runLengths[run]; i > 0; i--)
+				bitmap.add(index++);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.brush.neighborhood;
+
+import net.imglib2.RandomAccess;
+import sc.fiji.labkit.ui.utils.sparse.LongBitmap;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.function.Consumer;
+
+/**
+ * A brush stroke, that consists of several stamps of the same
+ * {@link BrushKernel}. The union of all stamps is computed before painting,
+ * such that each pixel is written only once, even if the stamps overlap.
+ * <p>
+ * A {@link BrushStroke} is meant to be reused, to avoid allocations while
+ * painting:
+ *
+ * <pre>
+ *     {@code
+ *     stroke.start(kernel);
+ *     stroke.add(center1);
+ *     stroke.add(center2);
+ *     stroke.paint(randomAccess, pixel -> pixel.add(label));
+ *     }
+ * </pre>
+ */
+public class BrushStroke {
+
+	private BrushKernel kernel;
+
+	private int n;
+
+	private int numStamps;
+
+	private long[] centers = new long[0];
+
+	private long[] min = new long[0];
+
+	private long[] dimensions = new long[0];
+
+	private final LongBitmap pixels = new LongBitmap();
+
+	/**
+	 * Starts a new stroke, that is painted with the given kernel.
+	 */
+	public void start(BrushKernel kernel) {
+		this.kernel = kernel;
+		this.n = kernel.numDimensions();
+		this.numStamps = 0;
+		if (min.length != n) {
+			min = new long[n];
+			dimensions = new long[n];
+		}
+	}
+
+	/**
+	 * Adds a stamp to the stroke. The brush is centered at the pixel nearest to
+	 * the given position. Only the first {@code n} coordinates of the position
+	 * are used, {@code n} being the number of dimensions of the kernel.
+	 */
+	public void add(double[] position) {
+		int offset = numStamps * n;
+		if (offset + n > centers.length)
+			centers = Arrays.copyOf(centers, Math.max(2 * centers.length, offset + n));
+		for (int d = 0; d < n; d++)
+			centers[offset + d] = Math.round(position[d]);
+		numStamps++;
+	}
+
+	/**
+	 * Applies the operation once to every pixel covered by the stroke.
+	 */
+	public <T> void paint(RandomAccess<T> randomAccess, Consumer<? super T> operation) {
+		if (numStamps == 0)
+			return;
+		if (numStamps == 1) {
+			kernel.stamp(centers, 0, randomAccess, operation);
+			return;
+		}
+		computeBounds();
+		pixels.clear();
+		for (int stamp = 0; stamp < numStamps; stamp++)
+			kernel.addTo(centers, stamp * n, min, dimensions, pixels);
+		PrimitiveIterator.OfLong iterator = pixels.iterator();
+		long previous = -1;
+		while (iterator.hasNext()) {
+			long index = iterator.nextLong();
+			if (index == previous + 1 && index % dimensions[0] != 0)
+				randomAccess.fwd(0);
+			else
+				setPosition(randomAccess, index);
+			operation.accept(randomAccess.get());
+			previous = index;
+		}
+	}
+
+	private void computeBounds() {
+		for (int d = 0; d < n; d++) {
+			long lower = Long.MAX_VALUE;
+			long upper = Long.MIN_VALUE;
+			for (int stamp = 0; stamp < numStamps; stamp++) {
+				long center = centers[stamp * n + d];
+				lower = Math.min(lower, center);
+				upper = Math.max(upper, center);
+			}
+			min[d] = lower + kernel.min(d);
+			dimensions[d] = upper + kernel.max(d) - min[d] + 1;
+		}
+	}
+
+	private void setPosition(RandomAccess<?> randomAccess, long index) {
+		for (int d = 0; d < n; d++) {
+			randomAccess.setPosition(index % dimensions[d] + min[d], d);
+			index /= dimensions[d];
+		}
+	}
+}
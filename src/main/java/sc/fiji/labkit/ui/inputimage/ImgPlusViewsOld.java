@@ -33,7 +33,12 @@ import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
 import net.imglib2.img.display.imagej.ImgPlusViews;
+import net.imglib2.view.Views;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -178,6 +183,28 @@ public class ImgPlusViewsOld {
 		return ImgPlusViews.hyperSlice((ImgPlus) image, d, position);
 	}
 
+	/**
+	 * Returns a view of the image, that only contains every n-th pixel along the
+	 * spatial axes. The calibration of the spatial axes is scaled accordingly.
+	 */
+	public static <T> ImgPlus<T> subsample(ImgPlus<T> image, long factor) {
+		int n = image.numDimensions();
+		long[] steps = new long[n];
+		CalibratedAxis[] axes = new CalibratedAxis[n];
+		for (int d = 0; d < n; d++) {
+			CalibratedAxis axis = image.axis(d);
+			boolean isSpatial = axis.type().isSpatial();
+			steps[d] = isSpatial ? factor : 1;
+			axes[d] = isSpatial ? new DefaultLinearAxis(axis.type(), axis.unit(), axis
+				.averageScale(image.min(d), image.max(d)) * factor) : axis.copy();
+		}
+		Img<T> img = ImgView.wrap((RandomAccessibleInterval) Views.subsample(image,
+			steps));
+		ImgPlus<T> out = new ImgPlus<>(img, image.getName(), axes);
+		copyMetadataFromTo(image, out);
+		return out;
+	}
+
 	public static <T> List<ImgPlus<?>> hyperSlices(ImgPlus<T> image, AxisType axis) {
 		int d = image.dimensionIndex(axis);
 		if (d < 0)
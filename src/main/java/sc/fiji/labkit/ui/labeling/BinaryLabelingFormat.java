@@ -0,0 +1,505 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import com.google.gson.Gson;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Cast;
+import sc.fiji.labkit.ui.utils.sparse.BlockIndexer;
+import sc.fiji.labkit.ui.utils.sparse.SparseRandomAccessIntType;
+
+import java.awt.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary file format for a {@link Labeling}. It's used by
+ * {@link LabelingSerializer} as an alternative to the JSON format.
+ * <p>
+ * The file starts with the {@link #MAGIC} bytes and a version number, which
+ * allows to distinguish it from a JSON file. A small JSON header follows, that
+ * stores the interval, pixel sizes, label names and colors, the table of label
+ * sets and the block size. The rest of the file is a sequence of blocks of the
+ * index image, see {@link BlockIndexer}. Each block is either run-length
+ * encoded, or stored as a list of (index, value) pairs, whatever is smaller.
+ * Numbers are written as variable length integers. Empty blocks are omitted.
+ */
+public class BinaryLabelingFormat {
+
+	private static final byte[] MAGIC = "LabkitBL".getBytes(
+		StandardCharsets.US_ASCII);
+
+	private static final int VERSION = 1;
+
+	private static final int END_OF_BLOCKS = -1;
+
+	private static final byte RUN_LENGTH_ENCODED = 0;
+
+	private static final byte INDEX_VALUE_PAIRS = 1;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private BinaryLabelingFormat() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * @return true, if the file starts with the magic bytes of the binary
+	 *         labeling format.
+	 */
+	public static boolean isBinaryLabeling(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) < 0)
+					return false;
+			return Arrays.equals(MAGIC, buffer.array());
+		}
+	}
+
+	public static void write(Labeling labeling, Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+			StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			write(labeling, channel);
+		}
+	}
+
+	public static Labeling read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return read(channel);
+		}
+	}
+
+	public static void write(Labeling labeling, WritableByteChannel channel)
+		throws IOException
+	{
+		SparseRandomAccessIntType indexImg = sparseIndexImg(labeling);
+		BlockIndexer indexer = indexImg.blockIndexer();
+		int[] remapping = new int[labeling.getLabelSets().size()];
+		Header header = new Header(labeling, indexer, remapping);
+		Output out = new Output(channel);
+		out.putBytes(MAGIC);
+		out.putInt(VERSION);
+		byte[] json = new Gson().toJson(header).getBytes(StandardCharsets.UTF_8);
+		out.putInt(json.length);
+		out.putBytes(json);
+		int[] values = new int[indexer.blockSize()];
+		for (int blockIndex = 0; blockIndex < indexer.numBlocks(); blockIndex++) {
+			if (!indexImg.getBlock(blockIndex, values))
+				continue;
+			for (int i = 0; i < values.length; i++)
+				values[i] = remapping[values[i]];
+			out.putInt(blockIndex);
+			writeBlock(out, values);
+		}
+		out.putInt(END_OF_BLOCKS);
+		out.flush();
+	}
+
+	public static Labeling read(ReadableByteChannel channel) throws IOException {
+		Input in = new Input(channel);
+		byte[] magic = in.getBytes(MAGIC.length);
+		if (!Arrays.equals(MAGIC, magic))
+			throw new IOException("Not a binary labeling file.");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary labeling version: " +
+				version);
+		String json = new String(in.getBytes(in.getInt()), StandardCharsets.UTF_8);
+		Header header = new Gson().fromJson(json, Header.class);
+		Interval interval = header.interval;
+		List<Label> labels = header.labels();
+		SparseRandomAccessIntType indexImg = new SparseRandomAccessIntType(
+			interval);
+		BlockIndexer fileIndexer = new BlockIndexer(interval, header.blockBits);
+		boolean sameBlocks = Arrays.equals(header.blockBits, indexImg
+			.blockIndexer().blockBits());
+		int[] values = new int[fileIndexer.blockSize()];
+		while (true) {
+			int blockIndex = in.getInt();
+			if (blockIndex == END_OF_BLOCKS)
+				break;
+			if (blockIndex < 0 || blockIndex >= fileIndexer.numBlocks())
+				throw new IOException("Corrupt labeling block in binary labeling file:" +
+					" block index " + blockIndex + " out of bounds.");
+			readBlock(in, values);
+			for (int value : values)
+				if (value < 0 || value >= header.labelSets.size())
+					throw new IOException("Corrupt labeling block in binary labeling file:" +
+						" label set " + value + " out of bounds.");
+			if (sameBlocks)
+				indexImg.setBlock(blockIndex, values);
+			else
+				copyBlock(fileIndexer, blockIndex, values, indexImg);
+		}
+		ImgLabeling<Label, IntType> imgLabeling = ImgLabeling.fromImageAndLabelSets(
+			indexImg, header.labelSets(labels));
+		Labeling labeling = Labeling.fromImgLabeling(labels, imgLabeling);
+		labeling.setAxes(LabelingSerializer.pixelSizesToAxes(header.pixelSizes));
+		return labeling;
+	}
+
+	static SparseRandomAccessIntType sparseIndexImg(Labeling labeling) {
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = labeling
+			.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType)
+			return (SparseRandomAccessIntType) indexImg;
+		SparseRandomAccessIntType copy = new SparseRandomAccessIntType(labeling);
+		Cursor<?> cursor = labeling.sparsityCursor();
+		RandomAccess<? extends IntegerType<?>> in = indexImg.randomAccess();
+		RandomAccess<IntType> out = copy.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			in.setPosition(cursor);
+			out.setPosition(cursor);
+			out.get().setInteger(in.get().getInteger());
+		}
+		return copy;
+	}
+
+	private static void copyBlock(BlockIndexer fileIndexer, int blockIndex,
+		int[] values, SparseRandomAccessIntType indexImg)
+	{
+		long[] blockMin = new long[fileIndexer.numDimensions()];
+		long[] position = new long[fileIndexer.numDimensions()];
+		fileIndexer.blockMin(blockIndex, blockMin);
+		RandomAccess<IntType> ra = indexImg.randomAccess();
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != 0) {
+				fileIndexer.position(blockMin, i, position);
+				ra.setPosition(position);
+				ra.get().set(values[i]);
+			}
+	}
+
+	// -- block encoding --
+
+	static void writeBlock(Output out, int[] values) throws IOException {
+		int runs = 1;
+		int count = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0 && values[i] != values[i - 1])
+				runs++;
+			if (values[i] != 0)
+				count++;
+		}
+		if (runs <= count) {
+			out.putByte(RUN_LENGTH_ENCODED);
+			out.putVarInt(runs);
+			int start = 0;
+			for (int i = 1; i <= values.length; i++)
+				if (i == values.length || values[i] != values[start]) {
+					out.putVarInt(i - start);
+					out.putVarInt(values[start]);
+					start = i;
+				}
+		}
+		else {
+			out.putByte(INDEX_VALUE_PAIRS);
+			out.putVarInt(count);
+			int previous = 0;
+			for (int i = 0; i < values.length; i++)
+				if (values[i] != 0) {
+					out.putVarInt(i - previous);
+					out.putVarInt(values[i]);
+					previous = i;
+				}
+		}
+	}
+
+	static void readBlock(Input in, int[] values) throws IOException {
+		byte encoding = in.getByte();
+		if (encoding == RUN_LENGTH_ENCODED) {
+			int runs = in.getVarInt();
+			if (runs < 0 || runs > values.length)
+				throw corruptBlock("invalid number of runs " + runs);
+			int start = 0;
+			for (int r = 0; r < runs; r++) {
+				int length = in.getVarInt();
+				int value = in.getVarInt();
+				if (length <= 0 || length > values.length - start)
+					throw corruptBlock("invalid run length " + length);
+				Arrays.fill(values, start, start + length, value);
+				start += length;
+			}
+			if (start != values.length)
+				throw corruptBlock("runs don't cover the block");
+		}
+		else if (encoding == INDEX_VALUE_PAIRS) {
+			Arrays.fill(values, 0);
+			int count = in.getVarInt();
+			if (count < 0 || count > values.length)
+				throw corruptBlock("invalid number of pixels " + count);
+			int index = 0;
+			for (int i = 0; i < count; i++) {
+				int step = in.getVarInt();
+				if (step < 0 || step >= values.length - index)
+					throw corruptBlock("pixel index out of bounds");
+				index += step;
+				values[index] = in.getVarInt();
+			}
+		}
+		else
+			throw new IOException("Unknown block encoding in binary labeling file.");
+	}
+
+	private static IOException corruptBlock(String reason) {
+		return new IOException("Corrupt labeling block in binary labeling file: " +
+			reason + ".");
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Meta data of the labeling, stored as JSON at the beginning of the file.
+	 * Label sets are stored as lists of indices into the list of labels.
+	 */
+	private static class Header {
+
+		private FinalInterval interval;
+
+		private LabelingSerializer.PixelSize[] pixelSizes;
+
+		private List<String> labels;
+
+		private List<String> colors;
+
+		private List<int[]> labelSets;
+
+		private int[] blockBits;
+
+		/**
+		 * Stores the meta data of the given labeling. The label sets are
+		 * simplified: labels that are no longer part of the labeling are removed
+		 * and duplicate sets are merged. The remapping from the original set
+		 * indices to the new indices is written to {@code remapping}.
+		 */
+		private Header(Labeling labeling, BlockIndexer indexer, int[] remapping) {
+			this.interval = new FinalInterval(labeling);
+			this.pixelSizes = LabelingSerializer.getPixelSizes(labeling);
+			this.labels = new ArrayList<>();
+			this.colors = new ArrayList<>();
+			Map<Label, Integer> labelIndices = new IdentityHashMap<>();
+			for (Label label : labeling.getLabels()) {
+				labelIndices.put(label, labels.size());
+				labels.add(label.name());
+				colors.add(String.format("#%06X", label.color().get() & 0xffffff));
+			}
+			this.labelSets = new ArrayList<>();
+			Map<List<Integer>, Integer> setIndices = new HashMap<>();
+			List<Set<Label>> sets = labeling.getLabelSets();
+			for (int i = 0; i < sets.size(); i++) {
+				List<Integer> key = new ArrayList<>();
+				for (Label label : sets.get(i)) {
+					Integer index = labelIndices.get(label);
+					if (index != null)
+						key.add(index);
+				}
+				key.sort(null);
+				Integer newIndex = setIndices.get(key);
+				if (newIndex == null) {
+					newIndex = labelSets.size();
+					setIndices.put(key, newIndex);
+					labelSets.add(key.stream().mapToInt(x -> x).toArray());
+				}
+				remapping[i] = newIndex;
+			}
+			this.blockBits = indexer.blockBits();
+		}
+
+		private List<Label> labels() {
+			List<Label> result = new ArrayList<>(labels.size());
+			for (int i = 0; i < labels.size(); i++)
+				result.add(new Label(labels.get(i), new ARGBType(Color.decode(colors
+					.get(i)).getRGB())));
+			return result;
+		}
+
+		private List<Set<Label>> labelSets(List<Label> labels) {
+			List<Set<Label>> result = new ArrayList<>(labelSets.size());
+			for (int[] set : labelSets) {
+				Set<Label> labelSet = new HashSet<>();
+				for (int index : set)
+					labelSet.add(labels.get(index));
+				result.add(labelSet);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Buffered output to a {@link WritableByteChannel}.
+	 */
+	static class Output {
+
+		private final WritableByteChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Output(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		private void ensureRemaining(int bytes) throws IOException {
+			if (buffer.remaining() < bytes)
+				flush();
+		}
+
+		void putByte(byte value) throws IOException {
+			ensureRemaining(1);
+			buffer.put(value);
+		}
+
+		void putInt(int value) throws IOException {
+			ensureRemaining(4);
+			buffer.putInt(value);
+		}
+
+		void putVarInt(int value) throws IOException {
+			ensureRemaining(5);
+			while ((value & ~0x7f) != 0) {
+				buffer.put((byte) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+			buffer.put((byte) value);
+		}
+
+		void putBytes(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				ensureRemaining(1);
+				int length = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Buffered input from a {@link ReadableByteChannel}.
+	 */
+	static class Input {
+
+		private final ReadableByteChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		private long bytesFromChannel = 0;
+
+		Input(ReadableByteChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		private void ensureRemaining(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes)
+				return;
+			buffer.compact();
+			while (buffer.position() < bytes) {
+				int n = channel.read(buffer);
+				if (n < 0)
+					throw new EOFException("Unexpected end of binary labeling file.");
+				bytesFromChannel += n;
+			}
+			buffer.flip();
+		}
+
+		/**
+		 * @return The number of bytes, that have been consumed so far.
+		 */
+		long position() {
+			return bytesFromChannel - buffer.remaining();
+		}
+
+		byte getByte() throws IOException {
+			ensureRemaining(1);
+			return buffer.get();
+		}
+
+		int getInt() throws IOException {
+			ensureRemaining(4);
+			return buffer.getInt();
+		}
+
+		int getVarInt() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				byte b = getByte();
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Corrupted number in binary labeling file.");
+		}
+
+		byte[] getBytes(int length) throws IOException {
+			byte[] bytes = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				ensureRemaining(1);
+				int n = Math.min(buffer.remaining(), length - offset);
+				buffer.get(bytes, offset, n);
+				offset += n;
+			}
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import bdv.export.ProgressWriter;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.ARGBType;
+
+import java.awt.*;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Reads a {@link Labeling} from the JSON format written by
+ * {@link LabelingSerializer.Adapter}.
+ * <p>
+ * The reader uses the pull parser {@link JsonReader} and writes the
+ * coordinates of each label directly into the labeling, as they are read. The
+ * JSON document is never materialized as a tree of {@link JsonElement}s, so
+ * memory usage is bounded by the size of the resulting labeling.
+ */
+class JsonLabelingReader {
+
+	private static final int PROGRESS_INTERVAL = 1 << 16;
+
+	private final Gson gson = new Gson();
+
+	private final JsonReader reader;
+
+	private final ProgressWriter progressWriter;
+
+	private final DoubleSupplier completionRatio;
+
+	private Interval interval = null;
+
+	private LabelingSerializer.PixelSize[] pixelSizes = null;
+
+	private Map<String, String> colors = null;
+
+	private String pendingLabels = null;
+
+	private Labeling labeling = null;
+
+	private long pixelCount = 0;
+
+	/**
+	 * @param completionRatio Returns the fraction of the input that has been
+	 *          read. It's used to report progress to the {@code progressWriter}.
+	 */
+	JsonLabelingReader(JsonReader reader, ProgressWriter progressWriter,
+		DoubleSupplier completionRatio)
+	{
+		this.reader = reader;
+		this.progressWriter = progressWriter;
+		this.completionRatio = completionRatio;
+	}
+
+	Labeling read() throws IOException {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			switch (name) {
+				case "interval":
+					interval = gson.fromJson(reader, FinalInterval.class);
+					break;
+				case "pixelSizes":
+					pixelSizes = gson.fromJson(reader,
+						LabelingSerializer.PixelSize[].class);
+					break;
+				case "labels":
+					if (interval == null)
+						// NB: The labels can only be read, if the interval is known.
+						// Files written by Labkit store the interval first.
+						pendingLabels = JsonParser.parseReader(reader).toString();
+					else
+						readLabels(reader);
+					break;
+				case "colors":
+					colors = gson.fromJson(reader, new TypeToken<Map<String, String>>()
+					{}.getType());
+					break;
+				default:
+					reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (interval == null)
+			throw new JsonParseException("Labeling has no interval.");
+		if (pendingLabels != null)
+			readLabels(new JsonReader(new StringReader(pendingLabels)));
+		if (labeling == null)
+			labeling = Labeling.createEmptyLabels(Collections.emptyList(), interval);
+		if (pixelSizes != null)
+			labeling.setAxes(LabelingSerializer.pixelSizesToAxes(pixelSizes));
+		setColors();
+		progressWriter.setProgress(1.0);
+		return labeling;
+	}
+
+	private void readLabels(JsonReader reader) throws IOException {
+		labeling = Labeling.createEmptyLabels(Collections.emptyList(), interval);
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		long[] coords = new long[interval.numDimensions()];
+		reader.beginObject();
+		while (reader.hasNext()) {
+			Label label = labeling.addLabel(reader.nextName());
+			reader.beginArray();
+			while (reader.hasNext()) {
+				readCoordinates(reader, coords);
+				ra.setPosition(coords);
+				ra.get().add(label);
+				if (++pixelCount % PROGRESS_INTERVAL == 0)
+					progressWriter.setProgress(completionRatio.getAsDouble());
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+	}
+
+	private static void readCoordinates(JsonReader reader, long[] coords)
+		throws IOException
+	{
+		reader.beginArray();
+		for (int d = 0; d < coords.length; d++)
+			coords[d] = reader.nextLong();
+		if (reader.peek() != JsonToken.END_ARRAY)
+			throw new JsonParseException(
+				"Coordinates don't match the dimensions of the labeling.");
+		reader.endArray();
+	}
+
+	private void setColors() {
+		if (colors == null)
+			return;
+		for (Label label : labeling.getLabels()) {
+			String color = colors.get(label.name());
+			if (color != null)
+				label.setColor(new ARGBType(Color.decode(color).getRGB()));
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.roi.labeling.LabelingMapping;
+import sc.fiji.labkit.ui.utils.sparse.BlockIndexer;
+import sc.fiji.labkit.ui.utils.sparse.SparseRandomAccessIntType;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Index of the pixels of each {@link Label} of a {@link Labeling}. For each
+ * label it keeps the number of pixels, the bounding box and the blocks of the
+ * index image, that contain the label. The index listens to the changes of the
+ * {@link SparseRandomAccessIntType} index image, and is therefore updated
+ * incrementally on every write.
+ * <p>
+ * The number of pixels and the bounding box are available in constant time.
+ * Only when pixels are removed from the border of the bounding box, the
+ * bounding box is recalculated lazily, which only requires to read the blocks
+ * that contain the label. The same is true for visiting all pixels of a label,
+ * see {@link #forEachPixel}.
+ */
+class LabelIndex implements SparseRandomAccessIntType.ValueChangeListener {
+
+	private static final int MAX_BOUNDING_BOX_RETRIES = 3;
+
+	private final SparseRandomAccessIntType indexImg;
+
+	private final LabelingMapping<Label> mapping;
+
+	private final Map<Label, Entry> entries = new ConcurrentHashMap<>();
+
+	LabelIndex(SparseRandomAccessIntType indexImg,
+		LabelingMapping<Label> mapping)
+	{
+		this.indexImg = indexImg;
+		this.mapping = mapping;
+		BlockIndexer indexer = indexImg.blockIndexer();
+		int[] values = new int[indexer.blockSize()];
+		long[] blockMin = new long[indexer.numDimensions()];
+		long[] p = new long[indexer.numDimensions()];
+		Point position = new Point(indexer.numDimensions());
+		for (int blockIndex = 0; blockIndex < indexer.numBlocks(); blockIndex++) {
+			if (!indexImg.getBlock(blockIndex, values))
+				continue;
+			indexer.blockMin(blockIndex, blockMin);
+			for (int i = 0; i < values.length; i++) {
+				for (Label label : mapping.labelsAtIndex(values[i])) {
+					indexer.position(blockMin, i, p);
+					position.setPosition(p);
+					entry(label).add(blockIndex, position);
+				}
+			}
+		}
+		indexImg.addValueChangeListener(this);
+	}
+
+	@Override
+	public void valueChanged(int blockIndex, Localizable position, int oldValue,
+		int newValue)
+	{
+		Set<Label> oldLabels = mapping.labelsAtIndex(oldValue);
+		Set<Label> newLabels = mapping.labelsAtIndex(newValue);
+		for (Label label : oldLabels)
+			if (!newLabels.contains(label))
+				entry(label).remove(blockIndex, position);
+		for (Label label : newLabels)
+			if (!oldLabels.contains(label))
+				entry(label).add(blockIndex, position);
+	}
+
+	private Entry entry(Label label) {
+		return entries.computeIfAbsent(label, ignore -> new Entry(indexImg
+			.numDimensions()));
+	}
+
+	/**
+	 * Returns the number of pixels, that are labeled with the given label.
+	 */
+	long pixelCount(Label label) {
+		Entry entry = entries.get(label);
+		return entry == null ? 0 : entry.size();
+	}
+
+	/**
+	 * Returns the bounding box of the label, or null if the label is empty. If
+	 * the label is modified concurrently, the returned interval might be larger
+	 * than the actual bounding box.
+	 */
+	Interval boundingBox(Label label) {
+		Entry entry = entries.get(label);
+		if (entry == null)
+			return null;
+		for (int retry = 0; retry < MAX_BOUNDING_BOX_RETRIES; retry++) {
+			long modCount = entry.modCount();
+			Interval cached = entry.boundingBox();
+			if (cached != null || entry.size() == 0)
+				return cached;
+			long[] min = new long[indexImg.numDimensions()];
+			long[] max = new long[indexImg.numDimensions()];
+			Arrays.fill(min, Long.MAX_VALUE);
+			Arrays.fill(max, Long.MIN_VALUE);
+			forEachPixel(label, position -> {
+				for (int d = 0; d < min.length; d++) {
+					long x = position.getLongPosition(d);
+					min[d] = Math.min(min[d], x);
+					max[d] = Math.max(max[d], x);
+				}
+			});
+			if (entry.setBoundingBox(min, max, modCount))
+				return entry.boundingBox();
+		}
+		return entry.conservativeBoundingBox();
+	}
+
+	/**
+	 * Calls the consumer for each pixel of the given label. Only the blocks of
+	 * the index image, that contain the label are read. The blocks are copied
+	 * before they are visited, the consumer may therefore modify the labeling.
+	 */
+	void forEachPixel(Label label, Consumer<Localizable> consumer) {
+		Entry entry = entries.get(label);
+		if (entry == null)
+			return;
+		int[] blocks = entry.blocks();
+		BlockIndexer indexer = indexImg.blockIndexer();
+		boolean[] containsLabel = containsLabel(label);
+		int[] values = new int[indexer.blockSize()];
+		long[] blockMin = new long[indexer.numDimensions()];
+		long[] p = new long[indexer.numDimensions()];
+		Point position = new Point(indexer.numDimensions());
+		for (int blockIndex : blocks) {
+			if (!indexImg.getBlock(blockIndex, values))
+				continue;
+			indexer.blockMin(blockIndex, blockMin);
+			for (int i = 0; i < values.length; i++) {
+				int value = values[i];
+				boolean contains = value < containsLabel.length ? containsLabel[value]
+					: mapping.labelsAtIndex(value).contains(label);
+				if (contains) {
+					indexer.position(blockMin, i, p);
+					position.setPosition(p);
+					consumer.accept(position);
+				}
+			}
+		}
+	}
+
+	private boolean[] containsLabel(Label label) {
+		boolean[] result = new boolean[mapping.numSets()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = mapping.labelsAtIndex(i).contains(label);
+		return result;
+	}
+
+	/**
+	 * Stops listening to the changes of the index image.
+	 */
+	void detach() {
+		indexImg.removeValueChangeListener(this);
+	}
+
+	/**
+	 * Forgets the given label. Should be called after the label was cleared
+	 * and removed from the labeling.
+	 */
+	void remove(Label label) {
+		entries.remove(label);
+	}
+
+	/**
+	 * Statistics of a single label. The bounding box is exact as long as no
+	 * pixel is removed from its border.
+	 */
+	private static class Entry {
+
+		private final TIntIntHashMap blockCounts = new TIntIntHashMap();
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private long size = 0;
+
+		private boolean boundsValid = true;
+
+		private long modCount = 0;
+
+		private Entry(int numDimensions) {
+			min = new long[numDimensions];
+			max = new long[numDimensions];
+		}
+
+		private synchronized void add(int blockIndex, Localizable position) {
+			blockCounts.adjustOrPutValue(blockIndex, 1, 1);
+			for (int d = 0; d < min.length; d++) {
+				long x = position.getLongPosition(d);
+				min[d] = size == 0 ? x : Math.min(min[d], x);
+				max[d] = size == 0 ? x : Math.max(max[d], x);
+			}
+			size++;
+			modCount++;
+		}
+
+		private synchronized void remove(int blockIndex, Localizable position) {
+			if (blockCounts.adjustOrPutValue(blockIndex, -1, 0) <= 0)
+				blockCounts.remove(blockIndex);
+			size--;
+			modCount++;
+			if (size == 0)
+				boundsValid = true;
+			else if (boundsValid && onBorder(position))
+				boundsValid = false;
+		}
+
+		private boolean onBorder(Localizable position) {
+			for (int d = 0; d < min.length; d++) {
+				long x = position.getLongPosition(d);
+				if (x == min[d] || x == max[d])
+					return true;
+			}
+			return false;
+		}
+
+		private synchronized long size() {
+			return size;
+		}
+
+		private synchronized long modCount() {
+			return modCount;
+		}
+
+		private synchronized int[] blocks() {
+			int[] blocks = blockCounts.keys();
+			Arrays.sort(blocks);
+			return blocks;
+		}
+
+		/**
+		 * @return The bounding box, or null if the label is empty or the bounding
+		 *         box needs to be recalculated.
+		 */
+		private synchronized Interval boundingBox() {
+			if (size == 0 || !boundsValid)
+				return null;
+			return new FinalInterval(min, max);
+		}
+
+		/**
+		 * @return An interval that contains all pixels of the label, but might
+		 *         be larger than the bounding box. Or null if the label is empty.
+		 */
+		private synchronized Interval conservativeBoundingBox() {
+			if (size == 0)
+				return null;
+			return new FinalInterval(min, max);
+		}
+
+		/**
+		 * Sets the recalculated bounding box, if the label wasn't modified in
+		 * the meantime.
+		 */
+		private synchronized boolean setBoundingBox(long[] min, long[] max,
+			long expectedModCount)
+		{
+			if (modCount != expectedModCount)
+				return false;
+			System.arraycopy(min, 0, this.min, 0, min.length);
+			System.arraycopy(max, 0, this.max, 0, max.length);
+			boundsValid = true;
+			return true;
+		}
+	}
+}
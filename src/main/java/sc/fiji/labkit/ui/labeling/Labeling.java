@@ -72,6 +72,7 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 {
 
 	private final ImgLabeling<Label, ?> imgLabeling;
+	private LabelIndex labelIndex;
 	private List<Label> labels;
 	private List<CalibratedAxis> axes;
 	private ColorSupplier colorSupplier;
@@ -98,6 +99,17 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 			.getLabels()), labelsImgLabeling, colors);
 	}
 
+	/**
+	 * Creates a {@link Labeling} that wraps the given {@link ImgLabeling}. The
+	 * list of labels is used as is. It may contain labels that don't occur in
+	 * the image.
+	 */
+	public static Labeling fromImgLabeling(List<Label> labels,
+		ImgLabeling<Label, ?> imgLabeling)
+	{
+		return new Labeling(labels, imgLabeling, new ColorSupplier());
+	}
+
 	public static Labeling fromImg(RandomAccessibleInterval<? extends IntegerType<?>> img) {
 		ColorSupplier colors = new ColorSupplier();
 		TIntSet values = new TIntHashSet(100, 0.5f, 0);
@@ -170,6 +182,15 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		this.labels = new ArrayList<>(labels);
 		this.colorSupplier = colorSupplier;
 		this.axes = initAxes(labeling.numDimensions());
+		this.labelIndex = initLabelIndex(labeling);
+	}
+
+	private static LabelIndex initLabelIndex(ImgLabeling<Label, ?> imgLabeling) {
+		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
+		if (!(indexImg instanceof SparseRandomAccessIntType))
+			return null;
+		return new LabelIndex((SparseRandomAccessIntType) indexImg, imgLabeling
+			.getMapping());
 	}
 
 	private List<CalibratedAxis> initAxes(int i) {
@@ -202,6 +223,21 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	}
 
 	public Map<Label, IterableRegion<BitType>> iterableRegions() {
+		return Collections.unmodifiableMap(sparseIterableRegions());
+	}
+
+	/**
+	 * Returns a copy of the regions of all labels, stored as compressed bitmaps.
+	 * Without a label index, all the regions are collected in a single pass
+	 * over the labeled pixels.
+	 */
+	public Map<Label, SparseIterableRegion> sparseIterableRegions() {
+		if (labelIndex != null) {
+			Map<Label, SparseIterableRegion> regions = new HashMap<>();
+			for (Label label : labels)
+				regions.put(label, iterableRegion(label));
+			return regions;
+		}
 		Cursor<?> cursor = sparsityCursor();
 		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
 		Map<Label, SparseIterableRegion> regions = new HashMap<>();
@@ -212,7 +248,88 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 			ra.setPosition(cursor);
 			ra.get().forEach(label -> regions.get(label).add(cursor));
 		}
-		return Collections.unmodifiableMap(regions);
+		return regions;
+	}
+
+	/**
+	 * Returns a copy of the region of the given label, stored as compressed
+	 * bitmap. Unlike {@link #getRegion}, the returned region can be iterated
+	 * efficiently, and combined with other regions.
+	 */
+	public SparseIterableRegion iterableRegion(Label label) {
+		SparseIterableRegion region = new SparseIterableRegion(imgLabeling);
+		if (labelIndex != null) {
+			labelIndex.forEachPixel(label, region::add);
+			return region;
+		}
+		Cursor<?> cursor = sparsityCursor();
+		RandomAccess<LabelingType<Label>> ra = randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			ra.setPosition(cursor);
+			if (ra.get().contains(label))
+				region.add(cursor);
+		}
+		return region;
+	}
+
+	/**
+	 * Returns the number of pixels, that are labeled with the given label.
+	 */
+	public long getPixelCount(Label label) {
+		if (labelIndex != null)
+			return labelIndex.pixelCount(label);
+		long count = 0;
+		Cursor<?> cursor = sparsityCursor();
+		RandomAccess<LabelingType<Label>> ra = randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			ra.setPosition(cursor);
+			if (ra.get().contains(label))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the bounding box of the given label, or null if no pixel is
+	 * labeled with it.
+	 */
+	public Interval getBoundingBox(Label label) {
+		if (labelIndex != null)
+			return labelIndex.boundingBox(label);
+		Cursor<?> cursor = sparsityCursor();
+		RandomAccess<LabelingType<Label>> ra = randomAccess();
+		long[] min = null;
+		long[] max = null;
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			ra.setPosition(cursor);
+			if (!ra.get().contains(label))
+				continue;
+			if (min == null) {
+				min = cursor.positionAsLongArray();
+				max = cursor.positionAsLongArray();
+			}
+			for (int d = 0; d < min.length; d++) {
+				long x = cursor.getLongPosition(d);
+				min[d] = Math.min(min[d], x);
+				max[d] = Math.max(max[d], x);
+			}
+		}
+		return min == null ? null : new FinalInterval(min, max);
+	}
+
+	/**
+	 * Stops updating the label index. {@link LabelingJournal} calls this before
+	 * it reuses the index image for a new labeling. Afterwards, this labeling
+	 * falls back to scanning the index image.
+	 */
+	void detachLabelIndex() {
+		if (labelIndex != null) {
+			labelIndex.detach();
+			labelIndex = null;
+		}
 	}
 
 	public Cursor<?> sparsityCursor() {
@@ -282,6 +399,8 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		if (!labels.contains(label)) return;
 		labels.remove(label);
 		clearLabel(label);
+		if (labelIndex != null)
+			labelIndex.remove(label);
 	}
 
 	public void renameLabel(Label oldLabel, String newLabel) {
@@ -289,8 +408,15 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	}
 
 	public void clearLabel(Label label) {
-		Cursor<?> cursor = sparsityCursor();
 		RandomAccess<LabelingType<Label>> ra = randomAccess();
+		if (labelIndex != null) {
+			labelIndex.forEachPixel(label, position -> {
+				ra.setPosition(position);
+				ra.get().remove(label);
+			});
+			return;
+		}
+		Cursor<?> cursor = sparsityCursor();
 		while (cursor.hasNext()) {
 			cursor.fwd();
 			ra.setPosition(cursor);
@@ -0,0 +1,638 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import com.google.gson.Gson;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.IntType;
+import sc.fiji.labkit.ui.labeling.BinaryLabelingFormat.Input;
+import sc.fiji.labkit.ui.labeling.BinaryLabelingFormat.Output;
+import sc.fiji.labkit.ui.utils.sparse.BlockIndexer;
+import sc.fiji.labkit.ui.utils.sparse.SparseRandomAccessIntType;
+
+import java.awt.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only journal of the changes made to a {@link Labeling}. It allows to
+ * save a labeling incrementally: {@link #append()} only writes the blocks of
+ * the index image, that have been modified since the last call, see
+ * {@link SparseRandomAccessIntType#pollModifiedBlocks}. The time needed is
+ * therefore proportional to the size of the edit, rather than to the size of
+ * the labeling.
+ * <p>
+ * A journal refers to a base file, which holds the state of the labeling at
+ * the time the journal was created. {@link #read} opens the base file and
+ * replays the journal. Each record of the journal stores the modified blocks,
+ * in the encoding of the {@link BinaryLabelingFormat}, followed by the list of
+ * labels and the table of label sets. Labels are identified by ids, that are
+ * assigned when a label is written for the first time. A record, that hasn't
+ * been written completely, because of a crash for example, is ignored.
+ * <p>
+ * The journal grows with every edit. It should therefore be compacted from
+ * time to time, by saving the labeling completely and starting a new journal
+ * with the saved file as base.
+ */
+public class LabelingJournal implements Closeable {
+
+	private static final byte[] MAGIC = "LabkitJL".getBytes(
+		StandardCharsets.US_ASCII);
+
+	private static final int VERSION = 1;
+
+	private static final int END_OF_BLOCKS = -1;
+
+	private static final int COMMIT = 0x434f4d54;
+
+	private final Labeling labeling;
+
+	private final SparseRandomAccessIntType indexImg;
+
+	private final String baseFile;
+
+	private final Path file;
+
+	private final Map<Label, Integer> labelIds = new IdentityHashMap<>();
+
+	private int nextLabelId = 0;
+
+	private final BitSet pendingBlocks = new BitSet();
+
+	private FileChannel channel = null;
+
+	private Output output = null;
+
+	private long size = 0;
+
+	private LabelingJournal(Labeling labeling, String baseFile, Path file) {
+		if (!isSupported(labeling))
+			throw new IllegalArgumentException(
+				"The labeling must be backed by a SparseRandomAccessIntType.");
+		this.labeling = labeling;
+		this.indexImg = (SparseRandomAccessIntType) labeling.getIndexImg();
+		this.baseFile = baseFile;
+		this.file = file;
+	}
+
+	/**
+	 * @return true, if changes of the given labeling can be tracked by a
+	 *         {@link LabelingJournal}.
+	 */
+	public static boolean isSupported(Labeling labeling) {
+		return labeling.getIndexImg() instanceof SparseRandomAccessIntType;
+	}
+
+	/**
+	 * @return true, if the file starts with the magic bytes of a labeling
+	 *         journal.
+	 */
+	public static boolean isJournal(Path file) throws IOException {
+		if (!Files.isRegularFile(file))
+			return false;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return Arrays.equals(MAGIC, new Input(channel).getBytes(MAGIC.length));
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Starts a new journal for the given labeling. An existing journal file is
+	 * replaced, when the first record is appended.
+	 *
+	 * @param labeling The labeling to track.
+	 * @param baseFile File that stores the current state of the labeling, or
+	 *          null, if the labeling is empty.
+	 * @param file The journal file.
+	 */
+	public static LabelingJournal create(Labeling labeling, String baseFile,
+		Path file)
+	{
+		LabelingJournal journal = new LabelingJournal(labeling, baseFile, file);
+		for (Label label : labeling.getLabels())
+			journal.labelId(label);
+		journal.indexImg.pollModifiedBlocks(blockIndex -> {});
+		return journal;
+	}
+
+	/**
+	 * Continues to write an existing journal. An incomplete last record is
+	 * removed.
+	 *
+	 * @param labeling The labeling returned by {@link #read} for the same
+	 *          journal file.
+	 * @param file The journal file.
+	 */
+	public static LabelingJournal resume(Labeling labeling, Path file)
+		throws IOException
+	{
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		try {
+			JournalReader reader = new JournalReader(channel);
+			int maxLabelId = -1;
+			RecordHeader last = null;
+			for (Record record = reader.next(); record != null; record = reader
+				.next())
+			{
+				last = record.header;
+				maxLabelId = Math.max(maxLabelId, last.maxLabelId());
+			}
+			LabelingJournal journal = new LabelingJournal(labeling, reader.header
+				.base(file), file);
+			List<Label> labels = labeling.getLabels();
+			if (last == null)
+				for (Label label : labels)
+					journal.labelId(label);
+			else if (last.labelIds.length != labels.size())
+				throw new IOException(
+					"The labeling doesn't match the labeling journal: " + file);
+			else
+				for (int i = 0; i < labels.size(); i++)
+					journal.labelIds.put(labels.get(i), last.labelIds[i]);
+			journal.nextLabelId = Math.max(journal.nextLabelId, maxLabelId + 1);
+			journal.indexImg.pollModifiedBlocks(blockIndex -> {});
+			channel.truncate(reader.validLength);
+			channel.position(reader.validLength);
+			journal.channel = channel;
+			journal.output = new Output(channel);
+			journal.size = reader.validLength;
+			return journal;
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the base file of the given journal and replays all records.
+	 */
+	public static Labeling read(Path file, LabelingSerializer serializer)
+		throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file,
+			StandardOpenOption.READ))
+		{
+			JournalReader reader = new JournalReader(channel);
+			String base = reader.header.base(file);
+			Labeling baseLabeling = base == null ? Labeling.createEmptyLabels(
+				Collections.emptyList(), reader.header.interval) : serializer.open(
+					base);
+			Replay replay = new Replay(baseLabeling, reader.header);
+			for (Record record = reader.next(); record != null; record = reader
+				.next())
+				replay.apply(record);
+			return replay.result();
+		}
+	}
+
+	/**
+	 * @return The labeling, whose changes are written to this journal.
+	 */
+	public Labeling labeling() {
+		return labeling;
+	}
+
+	/**
+	 * @return The base file of the journal, or null if the journal is based on
+	 *         an empty labeling.
+	 */
+	public String baseFile() {
+		return baseFile;
+	}
+
+	/**
+	 * @return The size of the journal file in bytes.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Writes the current list of labels, and all blocks that have been modified
+	 * since the last call, to the journal.
+	 */
+	public void append() throws IOException {
+		if (channel == null)
+			start();
+		indexImg.pollModifiedBlocks(pendingBlocks::set);
+		try {
+			int[] values = new int[indexImg.blockIndexer().blockSize()];
+			for (int blockIndex = pendingBlocks.nextSetBit(0); blockIndex >= 0;
+				blockIndex = pendingBlocks.nextSetBit(blockIndex + 1))
+			{
+				indexImg.getBlock(blockIndex, values);
+				output.putInt(blockIndex);
+				BinaryLabelingFormat.writeBlock(output, values);
+			}
+			output.putInt(END_OF_BLOCKS);
+			// NB: The label sets are written after the blocks. This guarantees
+			// that the table contains all label sets used in the blocks.
+			byte[] json = new Gson().toJson(recordHeader()).getBytes(
+				StandardCharsets.UTF_8);
+			output.putInt(json.length);
+			output.putBytes(json);
+			output.putInt(COMMIT);
+			output.flush();
+			channel.force(false);
+			size = channel.position();
+			pendingBlocks.clear();
+		}
+		catch (IOException | RuntimeException e) {
+			output = new Output(channel);
+			channel.truncate(size);
+			channel.position(size);
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+
+	private void start() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.WRITE,
+			StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		output = new Output(channel);
+		output.putBytes(MAGIC);
+		output.putInt(VERSION);
+		FileHeader header = new FileHeader(baseFile, file, indexImg);
+		byte[] json = new Gson().toJson(header).getBytes(StandardCharsets.UTF_8);
+		output.putInt(json.length);
+		output.putBytes(json);
+		output.flush();
+		size = channel.position();
+	}
+
+	private int labelId(Label label) {
+		Integer id = labelIds.get(label);
+		if (id == null) {
+			id = nextLabelId++;
+			labelIds.put(label, id);
+		}
+		return id;
+	}
+
+	private RecordHeader recordHeader() {
+		RecordHeader header = new RecordHeader();
+		List<Label> labels = labeling.getLabels();
+		header.labelIds = new int[labels.size()];
+		header.labels = new ArrayList<>(labels.size());
+		header.colors = new ArrayList<>(labels.size());
+		for (int i = 0; i < labels.size(); i++) {
+			Label label = labels.get(i);
+			header.labelIds[i] = labelId(label);
+			header.labels.add(label.name());
+			header.colors.add(String.format("#%06X", label.color().get() &
+				0xffffff));
+		}
+		header.pixelSizes = LabelingSerializer.getPixelSizes(labeling);
+		header.labelSets = new ArrayList<>();
+		for (Set<Label> set : labeling.getLabelSets()) {
+			int[] ids = set.stream().mapToInt(this::labelId).toArray();
+			Arrays.sort(ids);
+			header.labelSets.add(ids);
+		}
+		return header;
+	}
+
+	// -- Helper classes --
+
+	/**
+	 * Stored as JSON at the beginning of the journal file. The path of the base
+	 * file is relative to the journal's directory, if possible.
+	 */
+	private static class FileHeader {
+
+		private String base;
+
+		private FinalInterval interval;
+
+		private int[] blockBits;
+
+		private FileHeader(String baseFile, Path file,
+			SparseRandomAccessIntType indexImg)
+		{
+			this.base = baseFile == null ? null : relativize(file, baseFile);
+			this.interval = new FinalInterval(indexImg);
+			this.blockBits = indexImg.blockIndexer().blockBits();
+		}
+
+		private static String relativize(Path file, String baseFile) {
+			Path base = Paths.get(baseFile).toAbsolutePath();
+			try {
+				return file.toAbsolutePath().getParent().relativize(base).toString();
+			}
+			catch (IllegalArgumentException e) {
+				return base.toString();
+			}
+		}
+
+		private String base(Path file) {
+			if (base == null)
+				return null;
+			return file.toAbsolutePath().getParent().resolve(base).toString();
+		}
+	}
+
+	/**
+	 * Stored as JSON at the end of each record. The label sets are lists of
+	 * sorted label ids. The list of label sets has the same order as in the
+	 * {@link net.imglib2.roi.labeling.LabelingMapping}. It therefore matches the
+	 * values of the index image.
+	 */
+	private static class RecordHeader {
+
+		private int[] labelIds;
+
+		private List<String> labels;
+
+		private List<String> colors;
+
+		private LabelingSerializer.PixelSize[] pixelSizes;
+
+		private List<int[]> labelSets;
+
+		private int maxLabelId() {
+			int max = -1;
+			for (int id : labelIds)
+				max = Math.max(max, id);
+			for (int[] set : labelSets)
+				for (int id : set)
+					max = Math.max(max, id);
+			return max;
+		}
+	}
+
+	private static class Record {
+
+		private final List<Integer> blockIndices = new ArrayList<>();
+
+		private final List<int[]> blocks = new ArrayList<>();
+
+		private RecordHeader header;
+	}
+
+	/**
+	 * Reads the journal record by record.
+	 */
+	private static class JournalReader {
+
+		private final Input in;
+
+		private final FileHeader header;
+
+		private final BlockIndexer indexer;
+
+		private long validLength;
+
+		private JournalReader(ReadableByteChannel channel) throws IOException {
+			this.in = new Input(channel);
+			if (!Arrays.equals(MAGIC, in.getBytes(MAGIC.length)))
+				throw new IOException("Not a labeling journal.");
+			int version = in.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported labeling journal version: " +
+					version);
+			String json = new String(in.getBytes(in.getInt()),
+				StandardCharsets.UTF_8);
+			this.header = new Gson().fromJson(json, FileHeader.class);
+			this.indexer = new BlockIndexer(header.interval, header.blockBits);
+			this.validLength = in.position();
+		}
+
+		/**
+		 * @return The next record, or null if there are no more complete records.
+		 */
+		private Record next() {
+			try {
+				Record record = new Record();
+				while (true) {
+					int blockIndex = in.getInt();
+					if (blockIndex == END_OF_BLOCKS)
+						break;
+					if (blockIndex < 0 || blockIndex >= indexer.numBlocks())
+						return null;
+					int[] values = new int[indexer.blockSize()];
+					BinaryLabelingFormat.readBlock(in, values);
+					record.blockIndices.add(blockIndex);
+					record.blocks.add(values);
+				}
+				int length = in.getInt();
+				if (length < 0)
+					return null;
+				String json = new String(in.getBytes(length), StandardCharsets.UTF_8);
+				record.header = new Gson().fromJson(json, RecordHeader.class);
+				if (in.getInt() != COMMIT)
+					return null;
+				validLength = in.position();
+				return record;
+			}
+			catch (IOException | RuntimeException e) {
+				// NB: The last record is incomplete or corrupted.
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Applies the records of a journal to the base labeling. The label sets of
+	 * all records are collected in one table, and the values of the blocks are
+	 * mapped to indices in this table.
+	 */
+	private static class Replay {
+
+		private final Labeling base;
+
+		private final SparseRandomAccessIntType indexImg;
+
+		private final BlockIndexer journalIndexer;
+
+		private final boolean sameBlocks;
+
+		private final List<List<Integer>> labelSets = new ArrayList<>();
+
+		private final Map<List<Integer>, Integer> setIndices = new HashMap<>();
+
+		private RecordHeader last = null;
+
+		private Replay(Labeling base, FileHeader header) {
+			this.base = base;
+			this.indexImg = BinaryLabelingFormat.sparseIndexImg(base);
+			this.journalIndexer = new BlockIndexer(header.interval,
+				header.blockBits);
+			this.sameBlocks = Arrays.equals(header.blockBits, indexImg
+				.blockIndexer().blockBits());
+			Map<Label, Integer> ids = new IdentityHashMap<>();
+			for (Label label : base.getLabels())
+				ids.put(label, ids.size());
+			for (Set<Label> set : base.getLabelSets()) {
+				List<Integer> key = new ArrayList<>();
+				for (Label label : set) {
+					Integer id = ids.get(label);
+					if (id != null)
+						key.add(id);
+				}
+				key.sort(null);
+				setIndices.putIfAbsent(key, labelSets.size());
+				labelSets.add(key);
+			}
+		}
+
+		private void apply(Record record) throws IOException {
+			// NB: The index image gets the label sets of the journal, which the
+			// label index of the base labeling doesn't know.
+			base.detachLabelIndex();
+			List<int[]> sets = record.header.labelSets;
+			int[] mapping = new int[sets.size()];
+			for (int i = 0; i < mapping.length; i++)
+				mapping[i] = setIndex(sets.get(i));
+			for (int b = 0; b < record.blocks.size(); b++) {
+				int[] values = record.blocks.get(b);
+				for (int i = 0; i < values.length; i++) {
+					if (values[i] < 0 || values[i] >= mapping.length)
+						throw new IOException("Corrupted labeling journal.");
+					values[i] = mapping[values[i]];
+				}
+				int blockIndex = record.blockIndices.get(b);
+				if (sameBlocks)
+					indexImg.setBlock(blockIndex, values);
+				else
+					copyBlock(blockIndex, values);
+			}
+			last = record.header;
+		}
+
+		private int setIndex(int[] ids) {
+			List<Integer> key = new ArrayList<>(ids.length);
+			for (int id : ids)
+				key.add(id);
+			Integer index = setIndices.get(key);
+			if (index == null) {
+				index = labelSets.size();
+				setIndices.put(key, index);
+				labelSets.add(key);
+			}
+			return index;
+		}
+
+		private void copyBlock(int blockIndex, int[] values) {
+			long[] blockMin = new long[journalIndexer.numDimensions()];
+			long[] position = new long[journalIndexer.numDimensions()];
+			journalIndexer.blockMin(blockIndex, blockMin);
+			RandomAccess<IntType> ra = indexImg.randomAccess();
+			for (int i = 0; i < values.length; i++) {
+				journalIndexer.position(blockMin, i, position);
+				ra.setPosition(position);
+				ra.get().set(values[i]);
+			}
+		}
+
+		private Labeling result() {
+			if (last == null)
+				return base;
+			List<Label> labels = new ArrayList<>(last.labels.size());
+			Map<Integer, Label> labelsById = new HashMap<>();
+			for (int i = 0; i < last.labels.size(); i++) {
+				Label label = new Label(last.labels.get(i), new ARGBType(Color.decode(
+					last.colors.get(i)).getRGB()));
+				labels.add(label);
+				labelsById.put(last.labelIds[i], label);
+			}
+			List<Set<Label>> sets = new ArrayList<>();
+			Map<Set<Label>, Integer> indices = new HashMap<>();
+			int[] remapping = new int[labelSets.size()];
+			boolean remap = false;
+			for (int i = 0; i < labelSets.size(); i++) {
+				Set<Label> set = new HashSet<>();
+				for (int id : labelSets.get(i)) {
+					Label label = labelsById.get(id);
+					if (label != null)
+						set.add(label);
+				}
+				Integer index = indices.get(set);
+				if (index == null) {
+					index = sets.size();
+					indices.put(set, index);
+					sets.add(set);
+				}
+				remapping[i] = index;
+				remap |= index != i;
+			}
+			if (remap)
+				remapValues(remapping);
+			ImgLabeling<Label, IntType> imgLabeling = ImgLabeling
+				.fromImageAndLabelSets(indexImg, sets);
+			Labeling labeling = Labeling.fromImgLabeling(labels, imgLabeling);
+			labeling.setAxes(LabelingSerializer.pixelSizesToAxes(last.pixelSizes));
+			return labeling;
+		}
+
+		/**
+		 * Merges duplicate label sets, that arise if labels have been removed.
+		 */
+		private void remapValues(int[] remapping) {
+			BlockIndexer indexer = indexImg.blockIndexer();
+			int[] values = new int[indexer.blockSize()];
+			for (int blockIndex = 0; blockIndex < indexer.numBlocks(); blockIndex++) {
+				if (!indexImg.getBlock(blockIndex, values))
+					continue;
+				for (int i = 0; i < values.length; i++)
+					values[i] = remapping[values[i]];
+				indexImg.setBlock(blockIndex, values);
+			}
+		}
+	}
+}
@@ -29,10 +29,10 @@
 
 package sc.fiji.labkit.ui.labeling;
 
+import bdv.export.ProgressWriter;
 import com.google.gson.*;
-import com.google.gson.internal.LinkedTreeMap;
-import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 import io.scif.config.SCIFIOConfig;
 import io.scif.services.DatasetIOService;
@@ -43,18 +43,15 @@ import net.imagej.axis.DefaultLinearAxis;
 import net.imagej.axis.LinearAxis;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
-import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.RealTypeConverters;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import sc.fiji.labkit.ui.utils.NumberAwareStringComparator;
+import sc.fiji.labkit.ui.utils.progress.DummyProgressWriter;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.roi.labeling.ImgLabeling;
-import sc.fiji.labkit.ui.utils.sparse.SparseIterableRegion;
 import net.imglib2.type.logic.BitType;
-import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
@@ -63,16 +60,20 @@ import net.imglib2.util.Intervals;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.Context;
 
-import java.awt.*;
+import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -94,7 +95,10 @@ import java.util.stream.Stream;
  * serializer.save(labeling, filename);
  * </pre>
  * 
- * This allows to use JSON and TIF as formats.
+ * This allows to use JSON and TIF as formats. Labelings can also be saved
+ * in the compact {@link BinaryLabelingFormat}, see {@link #setBinary}. A
+ * *.labeling file is opened correctly, regardless of the format it was
+ * written in. Opening a *.journal file replays the {@link LabelingJournal}.
  *
  * @author Matthias Arzt
  */
@@ -102,25 +106,66 @@ public class LabelingSerializer {
 
 	private final Context context;
 
+	private boolean binary = false;
+
+	private ProgressWriter progressWriter = new DummyProgressWriter();
+
 	public LabelingSerializer(Context context) {
 		this.context = context;
 	}
 
+	/**
+	 * Sets the {@link ProgressWriter} that is used to report the progress of
+	 * opening a *.labeling file.
+	 */
+	public void setProgressWriter(ProgressWriter progressWriter) {
+		this.progressWriter = progressWriter;
+	}
+
+	/**
+	 * If set to true, *.labeling files are written in the
+	 * {@link BinaryLabelingFormat}, instead of JSON. This is much faster and
+	 * produces smaller files for large labelings. But the files can't be opened
+	 * with older versions of Labkit.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
 	public Labeling open(String filename) throws IOException {
 		if (FilenameUtils.isExtension(filename, "tif", "tiff"))
 			return openFromTiff(filename);
 		if (FilenameUtils.isExtension(filename, "labeling", "json"))
 			return openFromJson(filename);
+		if (FilenameUtils.isExtension(filename, "journal"))
+			return LabelingJournal.read(Paths.get(filename), this);
 		throw new IllegalArgumentException(
 			"Filename must have supported extension (*.labeling, *.tif, *.tiff)");
 	}
 
 	private Labeling openFromJson(String filename) throws IOException {
-		try (FileReader reader = new FileReader(filename)) {
-			Labeling result = new Gson().fromJson(reader, Labeling.class);
-			if (result == null) throw new IOException(
+		Path path = Paths.get(filename);
+		if (BinaryLabelingFormat.isBinaryLabeling(path))
+			return BinaryLabelingFormat.read(path);
+		long fileSize = Math.max(1, Files.size(path));
+		try (CountingInputStream input = new CountingInputStream(Files
+			.newInputStream(path));
+			JsonReader reader = new JsonReader(new BufferedReader(
+				new InputStreamReader(input, Charset.defaultCharset()))))
+		{
+			if (isEmpty(reader)) throw new IOException(
 				"Error, labeling file is empty: " + filename);
-			return result;
+			return new JsonLabelingReader(reader, progressWriter,
+				() -> (double) input.count / fileSize).read();
+		}
+	}
+
+	private static boolean isEmpty(JsonReader reader) throws IOException {
+		try {
+			return reader.peek() == JsonToken.END_DOCUMENT;
+		}
+		catch (EOFException e) {
+			return true;
 		}
 	}
 
@@ -167,6 +212,8 @@ public class LabelingSerializer {
 	public void save(Labeling labeling, String filename) throws IOException {
 		if (FilenameUtils.isExtension(filename, "tif", "tiff"))
 			saveAsTiff(labeling, filename);
+		else if (binary && FilenameUtils.isExtension(filename, "labeling"))
+			saveAsBinary(labeling, filename);
 		else if (FilenameUtils.isExtension(filename, "labeling",
 			"json")) saveAsJson(labeling, filename);
 		else throw new IllegalArgumentException(
@@ -186,6 +233,15 @@ public class LabelingSerializer {
 			StandardCopyOption.REPLACE_EXISTING);
 	}
 
+	private void saveAsBinary(Labeling labeling, String filename)
+		throws IOException
+	{
+		final String tmpFilename = filename + ".tmp";
+		BinaryLabelingFormat.write(labeling, Paths.get(tmpFilename));
+		Files.move(Paths.get(tmpFilename), Paths.get(filename),
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
 	private <I extends IntegerType<I>> void saveAsTiff(Labeling labeling,
 		String filename) throws IOException
 	{
@@ -223,7 +279,7 @@ public class LabelingSerializer {
 			JsonObject jsonLabeling = new JsonObject();
 			jsonLabeling.add("interval", gson.toJsonTree(new FinalInterval(labeling),
 				FinalInterval.class));
-			jsonLabeling.add("pixelSizes", gson.toJsonTree(getPixelSize(labeling),
+			jsonLabeling.add("pixelSizes", gson.toJsonTree(getPixelSizes(labeling),
 				PixelSize[].class));
 			jsonLabeling.add("labels", regionsToJson(labeling, gson));
 			jsonLabeling.add("colors", colorsToJson(labeling.getLabels()));
@@ -239,18 +295,6 @@ public class LabelingSerializer {
 			return map;
 		}
 
-		private PixelSize[] getPixelSize(Labeling labeling) {
-			return labeling.axes().stream().map(this::toPixelSize).toArray(
-				PixelSize[]::new);
-		}
-
-		private PixelSize toPixelSize(CalibratedAxis calibratedAxis) {
-			if (!(calibratedAxis instanceof LinearAxis)) return new PixelSize(1,
-				"unknown");
-			LinearAxis linear = (LinearAxis) calibratedAxis;
-			return new PixelSize(linear.scale(), linear.unit());
-		}
-
 		private JsonObject regionsToJson(
 			Labeling labeling, Gson gson)
 		{
@@ -278,83 +322,76 @@ public class LabelingSerializer {
 
 		@Override
 		public Labeling read(JsonReader jsonReader) throws IOException {
-			Gson gson = new GsonBuilder().registerTypeAdapter(Labeling.class,
-				new MyDeserializer()).create();
-			return gson.fromJson(jsonReader, Labeling.class);
+			return new JsonLabelingReader(jsonReader, new DummyProgressWriter(),
+				() -> 0).read();
 		}
+	}
 
-		private static class MyDeserializer implements JsonDeserializer<Labeling> {
-
-			@Override
-			public Labeling deserialize(JsonElement json, Type typeOfT,
-				JsonDeserializationContext context) throws JsonParseException
-			{
-				JsonObject object = json.getAsJsonObject();
-				Interval interval = context.deserialize(object.get("interval"),
-					FinalInterval.class);
-				PixelSize[] axes = context.deserialize(object.get("pixelSizes"),
-					PixelSize[].class);
-				Map<String, IterableRegion<BitType>> regions = new LinkedTreeMap<>();
-				for (Map.Entry<String, JsonElement> entry : object.getAsJsonObject("labels").entrySet()) {
-					regions.put(entry.getKey(), regionFromJson(context, interval, entry.getValue()));
-				}
-				Labeling labeling = regions.isEmpty() ? Labeling.createEmptyLabels(
-					Collections.emptyList(), interval) : Labeling.fromMap(regions);
-				labeling.setAxes(pixelSizesToAxes(axes));
-				deserializeColors(context, object, labeling);
-				return labeling;
-			}
+	static PixelSize[] getPixelSizes(Labeling labeling) {
+		return labeling.axes().stream().map(LabelingSerializer::toPixelSize)
+			.toArray(PixelSize[]::new);
+	}
 
-			private void deserializeColors(JsonDeserializationContext context, JsonObject object,
-				Labeling labeling)
-			{
-				if (!object.has("colors"))
-					return;
-				Map<String, String> map = context.deserialize(object.get("colors"),
-					new TypeToken<Map<String, String>>()
-					{}.getType());
-				for (Label label : labeling.getLabels()) {
-					String color = map.get(label.name());
-					if (color != null)
-						label.setColor(new ARGBType(Color.decode(color).getRGB()));
-				}
-			}
+	private static PixelSize toPixelSize(CalibratedAxis calibratedAxis) {
+		if (!(calibratedAxis instanceof LinearAxis)) return new PixelSize(1,
+			"unknown");
+		LinearAxis linear = (LinearAxis) calibratedAxis;
+		return new PixelSize(linear.scale(), linear.unit());
+	}
 
-			private List<CalibratedAxis> pixelSizesToAxes(PixelSize[] axes) {
-				return Stream.of(axes).map(this::pixelSizeToAxis).collect(Collectors
-					.toList());
-			}
+	static List<CalibratedAxis> pixelSizesToAxes(PixelSize[] axes) {
+		return Stream.of(axes).map(LabelingSerializer::pixelSizeToAxis).collect(
+			Collectors.toList());
+	}
 
-			private LinearAxis pixelSizeToAxis(PixelSize pixelSize) {
-				return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
-					pixelSize.size);
-			}
+	private static LinearAxis pixelSizeToAxis(PixelSize pixelSize) {
+		return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
+			pixelSize.size);
+	}
 
-			private SparseIterableRegion regionFromJson(
-				JsonDeserializationContext context, Interval interval,
-				JsonElement jsonCoords)
-			{
-				SparseIterableRegion result = new SparseIterableRegion(interval);
-				JsonArray array = jsonCoords.getAsJsonArray();
-				Point point = new Point(interval.numDimensions());
-				for (JsonElement item : array) {
-					long[] coords = context.deserialize(item, long[].class);
-					point.setPosition(coords);
-					result.add(point);
-				}
-				return result;
-			}
+	/**
+	 * {@link FilterInputStream} that counts the number of bytes read.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count = 0;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
 		}
 
-		private static class PixelSize {
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
 
-			public double size;
-			public String unit;
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
 
-			public PixelSize(double size, String unit) {
-				this.size = size;
-				this.unit = unit;
-			}
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	static class PixelSize {
+
+		public double size;
+		public String unit;
+
+		public PixelSize(double size, String unit) {
+			this.size = size;
+			this.unit = unit;
 		}
 	}
 }
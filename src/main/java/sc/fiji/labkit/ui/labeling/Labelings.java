@@ -42,9 +42,11 @@ import net.imglib2.view.Views;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -65,6 +67,43 @@ public class Labelings {
 		return slices;
 	}
 
+	/**
+	 * Splits the labeling along the last dimension, like {@link #slices}, but
+	 * only returns the slices that contain labeled pixels. The keys of the
+	 * returned map are the indices of the slices, in ascending order. The
+	 * labeling is traversed only once.
+	 */
+	public static Map<Integer, Labeling> nonEmptySlices(Labeling labeling) {
+		int sliceDimension = labeling.numDimensions() - 1;
+		Interval sliceInterval = DimensionUtils.removeLastDimension(labeling);
+		List<Label> labels = labeling.getLabels();
+		long offset = labeling.min(sliceDimension);
+		Map<Integer, Labeling> slices = new TreeMap<>();
+		Map<Integer, RandomAccess<LabelingType<Label>>> outs = new HashMap<>();
+		Cursor<?> cursor = labeling.sparsityCursor();
+		RandomAccess<LabelingType<Label>> in = labeling.randomAccess();
+		long[] position = new long[sliceDimension];
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			in.setPosition(cursor);
+			Set<Label> set = in.get();
+			if (set.isEmpty()) continue;
+			int index = Math.toIntExact(cursor.getLongPosition(sliceDimension) -
+				offset);
+			RandomAccess<LabelingType<Label>> out = outs.computeIfAbsent(index,
+				ignore -> {
+					Labeling slice = Labeling.createEmptyLabels(labels, sliceInterval);
+					slices.put(index, slice);
+					return slice.randomAccess();
+				});
+			for (int d = 0; d < sliceDimension; d++)
+				position[d] = cursor.getLongPosition(d);
+			out.setPosition(position);
+			copy(set, out.get());
+		}
+		return slices;
+	}
+
 	private static void sparseCopy(Labeling labeling,
 		RandomAccessibleInterval<LabelingType<Label>> target)
 	{
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.models;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * {@link CellLoader} used by {@link DefaultCachedImageFactory}. It restores a
+ * cell from the disk cache of a {@link CellCachePolicy}, if possible.
+ * Otherwise the cell is calculated and written to the disk cache. The cell is
+ * copied directly from and into its storage array.
+ */
+class CachedCellLoader<T extends NativeType<T>> implements CellLoader<T> {
+
+	private final CellCachePolicy policy;
+
+	private final Path directory;
+
+	private final CellGrid grid;
+
+	private final Consumer<RandomAccessibleInterval<T>> loader;
+
+	CachedCellLoader(CellCachePolicy policy, Path directory, CellGrid grid,
+		Consumer<RandomAccessibleInterval<T>> loader)
+	{
+		this.policy = policy;
+		this.directory = directory;
+		this.grid = grid;
+		this.loader = loader;
+	}
+
+	@Override
+	public void load(SingleCellArrayImg<T, ?> cell) {
+		long index = cellIndex(cell);
+		Object data = cell.update(null);
+		policy.cellLoaded(directory, data);
+		Object array = ((ArrayDataAccess<?>) data).getCurrentStorageArray();
+		ByteBuffer bytes = ByteBuffer.allocate(byteCount(array));
+		if (policy.readCell(directory, index, bytes)) {
+			fromBytes(bytes, array);
+			return;
+		}
+		loader.accept(cell);
+		toBytes(array, bytes);
+		policy.writeCell(directory, index, bytes);
+	}
+
+	private long cellIndex(SingleCellArrayImg<T, ?> cell) {
+		long[] position = new long[grid.numDimensions()];
+		grid.getCellPosition(Intervals.minAsLongArray(cell), position);
+		return grid.getCellGridIndexFlat(position);
+	}
+
+	private static int byteCount(Object array) {
+		if (array instanceof byte[]) return ((byte[]) array).length;
+		if (array instanceof boolean[]) return ((boolean[]) array).length;
+		if (array instanceof short[]) return ((short[]) array).length * Short.BYTES;
+		if (array instanceof char[]) return ((char[]) array).length * Character.BYTES;
+		if (array instanceof int[]) return ((int[]) array).length * Integer.BYTES;
+		if (array instanceof float[]) return ((float[]) array).length * Float.BYTES;
+		if (array instanceof long[]) return ((long[]) array).length * Long.BYTES;
+		if (array instanceof double[]) return ((double[]) array).length *
+			Double.BYTES;
+		throw new UnsupportedOperationException("Unsupported storage array: " +
+			array.getClass());
+	}
+
+	private static void toBytes(Object array, ByteBuffer bytes) {
+		bytes.clear();
+		if (array instanceof byte[]) bytes.put((byte[]) array);
+		else if (array instanceof boolean[]) {
+			for (boolean value : (boolean[]) array)
+				bytes.put((byte) (value ? 1 : 0));
+		}
+		else if (array instanceof short[]) bytes.asShortBuffer().put((short[]) array);
+		else if (array instanceof char[]) bytes.asCharBuffer().put((char[]) array);
+		else if (array instanceof int[]) bytes.asIntBuffer().put((int[]) array);
+		else if (array instanceof float[]) bytes.asFloatBuffer().put((float[]) array);
+		else if (array instanceof long[]) bytes.asLongBuffer().put((long[]) array);
+		else if (array instanceof double[]) bytes.asDoubleBuffer().put(
+			(double[]) array);
+		bytes.rewind();
+	}
+
+	private static void fromBytes(ByteBuffer bytes, Object array) {
+		if (array instanceof byte[]) bytes.get((byte[]) array);
+		else if (array instanceof boolean[]) {
+			boolean[] values = (boolean[]) array;
+			for (int i = 0; i < values.length; i++)
+				values[i] = bytes.get() != 0;
+		}
+		else if (array instanceof short[]) bytes.asShortBuffer().get((short[]) array);
+		else if (array instanceof char[]) bytes.asCharBuffer().get((char[]) array);
+		else if (array instanceof int[]) bytes.asIntBuffer().get((int[]) array);
+		else if (array instanceof float[]) bytes.asFloatBuffer().get((float[]) array);
+		else if (array instanceof long[]) bytes.asLongBuffer().get((long[]) array);
+		else if (array instanceof double[]) bytes.asDoubleBuffer().get(
+			(double[]) array);
+	}
+}
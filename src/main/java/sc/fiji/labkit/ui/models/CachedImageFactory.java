@@ -47,4 +47,13 @@ public interface CachedImageFactory {
 	<T extends NativeType<T>> Img<T> setupCachedImage(Segmenter segmenter,
 		Consumer<RandomAccessibleInterval<T>> loader,
 		CellGrid grid, T type);
+
+	/**
+	 * Frees the resources, like memory and disk cache files, held by an image
+	 * that was created by {@link #setupCachedImage}. This is called when the
+	 * image is no longer displayed or used.
+	 */
+	default void release(Img<?> image) {
+		// do nothing by default
+	}
 }
@@ -0,0 +1,524 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.models;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Limits the memory and disk space used by the cached segmentation and
+ * probability map images, that are created by {@link DefaultCachedImageFactory}.
+ * <p>
+ * All images created with the same policy share one heap budget
+ * {@link #getMaxHeapBytes()} and one disk budget {@link #getMaxDiskBytes()}.
+ * By default, all images use the process wide policy returned by
+ * {@link #getInstance()}. This way the budgets hold, no matter how many
+ * images and segmenters are open in a project.
+ * <p>
+ * Each image keeps at most as many cells on the heap, as fit into the part of
+ * the heap budget, that is not used by other images when the image is created.
+ * The policy counts the cells of an image, until they are garbage collected.
+ * If the heap budget is exceeded, the cells of the least recently used images
+ * are dropped from the heap. Cells that are dropped from the heap are kept in
+ * the disk cache. If the disk budget is exceeded, the least recently used
+ * cells are deleted, and recalculated when needed again.
+ * <p>
+ * The counters {@link #getHits()}, {@link #getMisses()} and
+ * {@link #getEvictions()} describe the disk cache: A hit is a cell that was
+ * read from disk, a miss is a cell that needed to be calculated by the
+ * segmenter, and an eviction is a cell that was deleted from the disk cache to
+ * stay within the budget.
+ */
+public class CellCachePolicy {
+
+	public static final long DEFAULT_MAX_DISK_BYTES = 8L << 30;
+
+	private static final String CELL_SUFFIX = ".cell";
+
+	private static final CellCachePolicy instance = new CellCachePolicy();
+
+	/**
+	 * @return The process wide policy, that is used by default for all cached
+	 *         segmentation and probability map images.
+	 */
+	public static CellCachePolicy getInstance() {
+		return instance;
+	}
+
+	private volatile long maxHeapBytes;
+
+	private volatile long maxDiskBytes;
+
+	private final Path directory;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final Map<Path, CachedImage> images = new HashMap<>();
+
+	private final ReferenceQueue<Object> releasedCells = new ReferenceQueue<>();
+
+	private final Set<CellReference> loadedCells = new HashSet<>();
+
+	private final LinkedHashMap<Path, Long> files = new LinkedHashMap<>(16, 0.75f,
+		true);
+
+	private long diskBytes = 0;
+
+	private long heapBytes = 0;
+
+	private long time = 0;
+
+	/**
+	 * Creates a policy that uses a quarter of the maximum heap size, and
+	 * {@link #DEFAULT_MAX_DISK_BYTES} of disk space in the temporary directory.
+	 */
+	public CellCachePolicy() {
+		this(Runtime.getRuntime().maxMemory() / 4, DEFAULT_MAX_DISK_BYTES);
+	}
+
+	public CellCachePolicy(long maxHeapBytes, long maxDiskBytes) {
+		this(maxHeapBytes, maxDiskBytes, null);
+	}
+
+	/**
+	 * @param maxHeapBytes Maximal number of bytes, used by all cached images
+	 *          together, on the heap.
+	 * @param maxDiskBytes Maximal number of bytes, used by all cached images
+	 *          together, for the disk cache.
+	 * @param directory Directory, in which the disk caches are created. The
+	 *          system's temporary directory is used if null.
+	 */
+	public CellCachePolicy(long maxHeapBytes, long maxDiskBytes, Path directory) {
+		setMaxHeapBytes(maxHeapBytes);
+		setMaxDiskBytes(maxDiskBytes);
+		this.directory = directory;
+	}
+
+	public long getMaxHeapBytes() {
+		return maxHeapBytes;
+	}
+
+	/**
+	 * Sets the heap budget. Images that are already created keep their number of
+	 * cells per image, but the total is limited to the new budget.
+	 */
+	public void setMaxHeapBytes(long maxHeapBytes) {
+		if (maxHeapBytes < 0)
+			throw new IllegalArgumentException("Cache budgets must not be negative.");
+		this.maxHeapBytes = maxHeapBytes;
+	}
+
+	public long getMaxDiskBytes() {
+		return maxDiskBytes;
+	}
+
+	/**
+	 * Sets the disk budget. It's enforced the next time a cell is written to
+	 * the disk cache.
+	 */
+	public void setMaxDiskBytes(long maxDiskBytes) {
+		if (maxDiskBytes < 0)
+			throw new IllegalArgumentException("Cache budgets must not be negative.");
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return Number of bytes currently used by the disk cache.
+	 */
+	public synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	/**
+	 * @return Estimated number of bytes currently used on the heap, by the cells
+	 *         of all cached images.
+	 */
+	public synchronized long getHeapBytes() {
+		expungeReleasedCells();
+		return heapBytes;
+	}
+
+	/**
+	 * Returns the number of cells, with the given size in bytes, that fit into
+	 * the part of the heap budget, that is not used by other images. If less
+	 * than half of the budget is left, the least recently used images are
+	 * dropped from the heap first. The result is at least one.
+	 */
+	long maxCachedCells(long cellBytes) {
+		List<Runnable> invalidate = new ArrayList<>();
+		List<Path> orphans = new ArrayList<>();
+		long remainingBytes;
+		synchronized (this) {
+			expungeReleasedCells();
+			freeHeap(maxHeapBytes / 2, null, invalidate, orphans);
+			remainingBytes = Math.max(0, maxHeapBytes - heapBytes);
+		}
+		invalidate.forEach(Runnable::run);
+		orphans.forEach(this::releaseDirectory);
+		return Math.max(1, remainingBytes / Math.max(1, cellBytes));
+	}
+
+	/**
+	 * Creates a new, empty directory for the disk cache of one image.
+	 */
+	Path createDirectory() throws IOException {
+		Path result = directory == null ? Files.createTempDirectory("labkit-cache-")
+			: Files.createTempDirectory(directory, "labkit-cache-");
+		synchronized (this) {
+			images.put(result, new CachedImage());
+		}
+		return result;
+	}
+
+	/**
+	 * Registers a cached image and its cache directory. The policy only keeps a
+	 * weak reference to the image. If the image is garbage collected, its cache
+	 * directory is deleted during the next eviction.
+	 *
+	 * @param image The cached image.
+	 * @param directory Cache directory created by {@link #createDirectory()}.
+	 * @param cellBytes Size of one cell in bytes.
+	 * @param maxCells Maximal number of cells, the image keeps on the heap.
+	 * @param invalidate Drops all cells of the image from the heap.
+	 */
+	synchronized void register(Object image, Path directory, long cellBytes,
+		long maxCells, Runnable invalidate)
+	{
+		CachedImage cachedImage = images.get(directory);
+		if (cachedImage == null)
+			return;
+		cachedImage.owner = new WeakReference<>(image);
+		cachedImage.registered = true;
+		cachedImage.cellBytes = cellBytes;
+		cachedImage.maxCells = maxCells;
+		cachedImage.invalidate = invalidate;
+		cachedImage.lastUse = ++time;
+	}
+
+	/**
+	 * Needs to be called whenever a cell of the image, that uses the given cache
+	 * directory, is loaded into the heap. The cell is counted until the given
+	 * cell data is garbage collected. If the heap budget is exceeded, the least
+	 * recently used other images are dropped from the heap.
+	 *
+	 * @param directory Cache directory of the image.
+	 * @param cellData The data of the cell, as it's kept on the heap.
+	 */
+	void cellLoaded(Path directory, Object cellData) {
+		List<Runnable> invalidate = new ArrayList<>();
+		List<Path> orphans = new ArrayList<>();
+		synchronized (this) {
+			expungeReleasedCells();
+			CachedImage image = images.get(directory);
+			if (image == null)
+				return;
+			image.lastUse = ++time;
+			loadedCells.add(new CellReference(cellData, releasedCells, image));
+			setCells(image, image.cells + 1);
+			freeHeap(maxHeapBytes, image, invalidate, orphans);
+		}
+		invalidate.forEach(Runnable::run);
+		orphans.forEach(this::releaseDirectory);
+	}
+
+	/**
+	 * Drops orphans, and the least recently used images except the given one,
+	 * from the heap until the estimated heap usage is below the given limit.
+	 * The callbacks, that need to be called outside the lock, are added to the
+	 * given lists.
+	 */
+	private void freeHeap(long limit, CachedImage keep, List<Runnable> invalidate,
+		List<Path> orphans)
+	{
+		if (heapBytes <= limit)
+			return;
+		for (Map.Entry<Path, CachedImage> entry : images.entrySet()) {
+			CachedImage other = entry.getValue();
+			if (other.isOrphan()) {
+				dropCells(other);
+				orphans.add(entry.getKey());
+			}
+		}
+		List<CachedImage> leastRecentlyUsed = images.values().stream().filter(
+			other -> other != keep && other.cells > 0).sorted(Comparator
+				.comparingLong(other -> other.lastUse)).collect(Collectors.toList());
+		for (CachedImage other : leastRecentlyUsed) {
+			if (heapBytes <= limit)
+				break;
+			dropCells(other);
+			invalidate.add(other.invalidate);
+		}
+	}
+
+	/**
+	 * Subtracts the cells, whose data was garbage collected, from the estimated
+	 * heap usage.
+	 */
+	private void expungeReleasedCells() {
+		CellReference reference;
+		while ((reference = (CellReference) releasedCells.poll()) != null) {
+			loadedCells.remove(reference);
+			CachedImage image = reference.image;
+			if (reference.generation == image.generation)
+				setCells(image, image.cells - 1);
+		}
+	}
+
+	private void setCells(CachedImage image, long cells) {
+		heapBytes -= image.heapBytes();
+		image.cells = cells;
+		heapBytes += image.heapBytes();
+	}
+
+	/**
+	 * Stops counting the cells of the given image. Cells that are still
+	 * referenced by the image, are loaded and counted again when needed.
+	 */
+	private void dropCells(CachedImage image) {
+		setCells(image, 0);
+		image.generation++;
+	}
+
+	/**
+	 * Deletes the cache directory that belongs to the given image.
+	 */
+	void release(Object image) {
+		Path directory = null;
+		synchronized (this) {
+			for (Map.Entry<Path, CachedImage> entry : images.entrySet())
+				if (entry.getValue().owner.get() == image)
+					directory = entry.getKey();
+		}
+		if (directory != null)
+			releaseDirectory(directory);
+	}
+
+	/**
+	 * Deletes the given cache directory, and all the cells stored in it.
+	 */
+	void releaseDirectory(Path directory) {
+		synchronized (this) {
+			CachedImage image = images.remove(directory);
+			if (image == null)
+				return;
+			dropCells(image);
+			Iterator<Map.Entry<Path, Long>> iterator = files.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Path, Long> entry = iterator.next();
+				if (directory.equals(entry.getKey().getParent())) {
+					diskBytes -= entry.getValue();
+					iterator.remove();
+				}
+			}
+		}
+		deleteRecursively(directory);
+	}
+	/**
+	 * Reads a cell from the disk cache.
+	 *
+	 * @return true if the cell was found, and completely read into the buffer.
+	 */
+	boolean readCell(Path directory, long index, ByteBuffer buffer) {
+		Path file = cellFile(directory, index);
+		synchronized (this) {
+			if (files.get(file) == null) {
+				misses.incrementAndGet();
+				return false;
+			}
+		}
+		buffer.clear();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) < 0)
+					throw new EOFException();
+		}
+		catch (IOException e) {
+			// NB: The file was evicted in the meanwhile, or is damaged.
+			forget(file);
+			misses.incrementAndGet();
+			return false;
+		}
+		buffer.rewind();
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Writes a cell into the disk cache, and deletes the least recently used
+	 * cells if the disk budget is exceeded.
+	 */
+	void writeCell(Path directory, long index, ByteBuffer buffer) {
+		long size = buffer.remaining();
+		if (size > maxDiskBytes)
+			return;
+		Path file = cellFile(directory, index);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		catch (IOException e) {
+			// NB: The cell is simply not cached, it can be recalculated.
+			deleteQuietly(file);
+			return;
+		}
+		List<Path> evicted = new ArrayList<>();
+		synchronized (this) {
+			if (!images.containsKey(directory))
+				evicted.add(file);
+			else {
+				Long previous = files.put(file, size);
+				diskBytes += size - (previous == null ? 0 : previous);
+				Iterator<Map.Entry<Path, Long>> iterator = files.entrySet().iterator();
+				while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+					Map.Entry<Path, Long> entry = iterator.next();
+					diskBytes -= entry.getValue();
+					iterator.remove();
+					evicted.add(entry.getKey());
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		evicted.forEach(CellCachePolicy::deleteQuietly);
+	}
+
+	private synchronized void forget(Path file) {
+		Long size = files.remove(file);
+		if (size != null)
+			diskBytes -= size;
+	}
+
+	private static Path cellFile(Path directory, long index) {
+		return directory.resolve(index + CELL_SUFFIX);
+	}
+
+	private static void deleteRecursively(Path directory) {
+		List<Path> content;
+		try (Stream<Path> stream = Files.walk(directory)) {
+			content = stream.sorted(Comparator.reverseOrder()).collect(Collectors
+				.toList());
+		}
+		catch (IOException e) {
+			return;
+		}
+		content.forEach(CellCachePolicy::deleteQuietly);
+	}
+
+	private static void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		}
+		catch (IOException e) {
+			// ignore, the file is in a temporary directory anyway
+		}
+	}
+
+	private static class CachedImage {
+
+		private boolean registered = false;
+
+		private WeakReference<Object> owner = new WeakReference<>(null);
+
+		private Runnable invalidate = () -> {};
+
+		private long cellBytes = 0;
+
+		private long maxCells = 0;
+
+		private long cells = 0;
+
+		private long generation = 0;
+
+		private long lastUse = 0;
+
+		private boolean isOrphan() {
+			return registered && owner.get() == null;
+		}
+
+		/**
+		 * At most maxCells cells are strongly referenced by the image. Cells
+		 * above that are garbage, that is not collected yet.
+		 */
+		private long heapBytes() {
+			return Math.min(cells, maxCells) * cellBytes;
+		}
+	}
+
+	private static class CellReference extends WeakReference<Object> {
+
+		private final CachedImage image;
+
+		private final long generation;
+
+		private CellReference(Object cellData, ReferenceQueue<Object> queue,
+			CachedImage image)
+		{
+			super(cellData, queue);
+			this.image = image;
+			this.generation = image.generation;
+		}
+	}
+}
@@ -30,25 +30,57 @@
 package sc.fiji.labkit.ui.models;
 
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.CellLoader;
-import net.imglib2.cache.img.DiskCachedCellImgFactory;
-import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.ref.GuardedStrongRefLoaderCache;
 import net.imglib2.img.Img;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
 import sc.fiji.labkit.ui.segmentation.Segmenter;
 import net.imglib2.type.NativeType;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
 import java.util.function.Consumer;
 
+/**
+ * {@link CachedImageFactory} that creates {@link CachedCellImg}s, whose memory
+ * and disk usage is limited by a {@link CellCachePolicy}.
+ * <p>
+ * The images keep a bounded number of cells on the heap. Cells that are
+ * evicted from the heap are not written back to disk. Instead the
+ * {@link CachedCellLoader} stores each calculated cell in the disk cache of
+ * the policy. The policy is therefore the only one writing to the cache
+ * directory, and it accounts for every byte written.
+ */
 public class DefaultCachedImageFactory implements CachedImageFactory {
 
+	private final CellCachePolicy policy;
+
 	public static CachedImageFactory getInstance() {
-		return new DefaultCachedImageFactory();
+		return new DefaultCachedImageFactory(CellCachePolicy.getInstance());
+	}
+
+	public static CachedImageFactory getInstance(CellCachePolicy policy) {
+		return new DefaultCachedImageFactory(policy);
 	}
 
-	private DefaultCachedImageFactory() {
+	private DefaultCachedImageFactory(CellCachePolicy policy) {
+		this.policy = Objects.requireNonNull(policy);
+	}
 
+	public CellCachePolicy getPolicy() {
+		return policy;
 	}
 
 	@Override
@@ -59,14 +91,62 @@ public class DefaultCachedImageFactory implements CachedImageFactory {
 		final long[] imgDimensions = grid.getImgDimensions();
 		Arrays.setAll(cellDimensions,
 			i -> (int) Math.min(cellDimensions[i], imgDimensions[i]));
-		DiskCachedCellImgOptions optional = DiskCachedCellImgOptions.options()
-			// .cacheType( CacheType.BOUNDED )
-			// .maxCacheSize( 1000 )
-			.cellDimensions(cellDimensions).initializeCellsAsDirty(true);
-		final DiskCachedCellImgFactory<T> factory =
-			new DiskCachedCellImgFactory<>(type, optional);
-		return factory.create(imgDimensions, loader::accept,
-			DiskCachedCellImgOptions.options().initializeCellsAsDirty(true));
+		final Path directory = createDirectory();
+		final CellGrid cellGrid = new CellGrid(imgDimensions, cellDimensions);
+		final CachedCellLoader<T> cellLoader = new CachedCellLoader<>(policy,
+			directory, cellGrid, loader);
+		final long cellBytes = cellBytes(cellDimensions, type);
+		final long maxCells = policy.maxCachedCells(cellBytes);
+		final CachedCellImg<T, ?> image = createImage(cellGrid, type, cellLoader,
+			maxCells);
+		final WeakReference<CachedCellImg<T, ?>> reference =
+			new WeakReference<>(image);
+		policy.register(image, directory, cellBytes, maxCells, () -> {
+			CachedCellImg<T, ?> cachedImage = reference.get();
+			if (cachedImage != null)
+				cachedImage.getCache().invalidateAll();
+		});
+		return image;
+	}
+
+	/**
+	 * Creates a {@link CachedCellImg}, that keeps at most maxCells cells
+	 * strongly referenced, and doesn't write evicted cells anywhere.
+	 */
+	private static <T extends NativeType<T>, A extends ArrayDataAccess<A>>
+		CachedCellImg<T, A> createImage(CellGrid grid, T type,
+			CellLoader<T> cellLoader, long maxCells)
+	{
+		final Set<AccessFlags> flags = AccessFlags.setOf();
+		final LoadedCellCacheLoader<T, A> cacheLoader = LoadedCellCacheLoader.get(
+			grid, cellLoader, type, flags);
+		final Cache<Long, Cell<A>> cache = new GuardedStrongRefLoaderCache<Long, Cell<A>>(
+			(int) Math.min(Integer.MAX_VALUE, maxCells)).withLoader(cacheLoader);
+		final A accessType = ArrayDataAccessFactory.get(type, flags);
+		return new CachedCellImg<>(grid, type, cache, accessType);
+	}
+
+	@Override
+	public void release(Img<?> image) {
+		if (image instanceof CachedCellImg)
+			((CachedCellImg<?, ?>) image).getCache().invalidateAll();
+		policy.release(image);
+	}
+
+	private Path createDirectory() {
+		try {
+			return policy.createDirectory();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long cellBytes(int[] cellDimensions, NativeType<?> type) {
+		long entities = type.getEntitiesPerPixel().mulCeil(Intervals.numElements(
+			cellDimensions));
+		return entities * type.getNativeTypeFactory().getPrimitiveType()
+			.getByteCount();
 	}
 
 	private static int[] getCellDimensions(CellGrid grid) {
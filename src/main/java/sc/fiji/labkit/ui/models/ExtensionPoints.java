@@ -33,6 +33,12 @@ import java.util.Objects;
 
 public class ExtensionPoints {
 
+	/**
+	 * Limits memory and disk usage of the default cached image factory. The
+	 * process wide policy is used by default.
+	 */
+	private CellCachePolicy cellCachePolicy = CellCachePolicy.getInstance();
+
 	/**
 	 * Factory for creating the cached image for segmentation result.
 	 */
@@ -44,6 +50,8 @@ public class ExtensionPoints {
 	private CachedImageFactory cachedPredictionImageFactory;
 
 	public CachedImageFactory getCachedSegmentationImageFactory() {
+		if (cachedSegmentationImageFactory == null)
+			return DefaultCachedImageFactory.getInstance(cellCachePolicy);
 		return cachedSegmentationImageFactory;
 	}
 
@@ -54,6 +62,8 @@ public class ExtensionPoints {
 	}
 
 	public CachedImageFactory getCachedPredictionImageFactory() {
+		if (cachedPredictionImageFactory == null)
+			return DefaultCachedImageFactory.getInstance(cellCachePolicy);
 		return cachedPredictionImageFactory;
 	}
 
@@ -62,4 +72,16 @@ public class ExtensionPoints {
 	{
 		cachedPredictionImageFactory = factory;
 	}
+
+	public CellCachePolicy getCellCachePolicy() {
+		return cellCachePolicy;
+	}
+
+	/**
+	 * Sets the memory and disk budget of the cached images, that are created
+	 * after this call, if no custom cached image factory is set.
+	 */
+	public void setCellCachePolicy(final CellCachePolicy policy) {
+		cellCachePolicy = Objects.requireNonNull(policy);
+	}
 }
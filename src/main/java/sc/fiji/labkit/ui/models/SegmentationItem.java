@@ -105,7 +105,7 @@ public class SegmentationItem extends ForwardingSegmenter {
 
 	@Override
 	public void train(List<Pair<ImgPlus<?>, Labeling>> data) {
-		results.forEach((i, r) -> r.clear());
+		results.forEach((i, r) -> r.markOutdated());
 		modified = true;
 		super.train(data);
 		results.forEach((i, r) -> r.update());
@@ -33,6 +33,8 @@ import net.imagej.ImgPlus;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import sc.fiji.labkit.ui.inputimage.ImgPlusViewsOld;
 import sc.fiji.labkit.ui.labeling.Label;
 import sc.fiji.labkit.ui.labeling.Labeling;
 import sc.fiji.labkit.ui.segmentation.SegmentationUtils;
@@ -44,6 +46,7 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.ConstantUtils;
 import net.imglib2.util.Intervals;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -53,6 +56,18 @@ import java.util.stream.Collectors;
  * SegmentationResultsModel is segmentation + probability map. It and updates
  * whenever the Segmentation changes. It's possible to listen to the
  * SegmentationResultsModel.
+ * <p>
+ * If the segmenter {@link Segmenter#segmentsByMaximumProbability() segments by
+ * maximum probability}, the segmentation is derived from the cached probability
+ * map. Otherwise the probability map is only created, when it's requested.
+ * <p>
+ * When the segmenter is retrained, the previous segmentation is kept, see
+ * {@link #previousSegmentation()}. This allows to show the previous results
+ * until the new results are calculated.
+ * <p>
+ * For large images, {@link #segmentationPyramid()} additionally provides
+ * segmentations of subsampled versions of the image. These are much cheaper to
+ * calculate and allow to show a preview when zoomed out.
  */
 public class SegmentationResultsModel {
 
@@ -62,8 +77,15 @@ public class SegmentationResultsModel {
 	private boolean hasResults = false;
 	private RandomAccessibleInterval<UnsignedByteType> segmentation;
 	private RandomAccessibleInterval<FloatType> prediction;
+	private List<RandomAccessibleInterval<UnsignedByteType>> segmentationPyramid;
 	private List<String> labels = Collections.emptyList();
 	private List<ARGBType> colors = Collections.emptyList();
+	private List<Runnable> releaseResults = new ArrayList<>();
+	private RandomAccessibleInterval<UnsignedByteType> previousSegmentation = null;
+	private List<RandomAccessibleInterval<UnsignedByteType>> previousSegmentationPyramid =
+		Collections.emptyList();
+	private List<ARGBType> previousColors = Collections.emptyList();
+	private List<Runnable> releasePrevious = new ArrayList<>();
 
 	private final Notifier listeners = new Notifier();
 
@@ -75,7 +97,14 @@ public class SegmentationResultsModel {
 		this.segmenter = segmenter;
 		segmentation = dummy(new UnsignedByteType());
 		prediction = dummy(new FloatType());
-		model.imageForSegmentation().notifier().addListener(this::update);
+		segmentationPyramid = Collections.singletonList(segmentation);
+		model.imageForSegmentation().notifier().addListener(this::onImageChanged);
+		update();
+	}
+
+	private void onImageChanged() {
+		// NB: The previous results don't fit to the new image.
+		clear();
 		update();
 	}
 
@@ -85,13 +114,28 @@ public class SegmentationResultsModel {
 
 	public void update() {
 		if (segmenter.isTrained()) {
-			updateSegmentation(segmenter);
-			updatePrediction(segmenter);
+			List<Runnable> releaseOldResults;
+			synchronized (this) {
+				releaseOldResults = keepAsPrevious();
+				if (segmenter.segmentsByMaximumProbability()) {
+					Img<FloatType> probabilityMap = createPrediction();
+					prediction = probabilityMap;
+					segmentation = createSegmentation(probabilityMap);
+				}
+				else {
+					// NB: The probability map is only calculated if requested.
+					prediction = null;
+					segmentation = createSegmentation(null);
+				}
+				// NB: The subsampled segmentations are only created if requested.
+				segmentationPyramid = null;
+			}
 			this.labels = segmenter.classNames();
 			this.colors = this.labels.stream().map(this::getLabelColor).collect(
 				Collectors.toList());
 			hasResults = true;
 			listeners.notifyListeners();
+			releaseOldResults.forEach(Runnable::run);
 		}
 	}
 
@@ -109,14 +153,64 @@ public class SegmentationResultsModel {
 		}
 	}
 
+	/**
+	 * Marks the results as outdated, for example because the segmenter is being
+	 * retrained. The current segmentation becomes the
+	 * {@link #previousSegmentation()}, until the next call to {@link #update()}
+	 * or {@link #markOutdated()}.
+	 */
+	public void markOutdated() {
+		List<Runnable> releaseOldResults;
+		synchronized (this) {
+			releaseOldResults = keepAsPrevious();
+			segmentation = dummy(new UnsignedByteType());
+			prediction = dummy(new FloatType());
+			segmentationPyramid = Collections.singletonList(segmentation);
+		}
+		hasResults = false;
+		listeners.notifyListeners();
+		releaseOldResults.forEach(Runnable::run);
+	}
+
+	/**
+	 * Makes the current results the previous results, and returns the actions
+	 * that release the results, that are no longer needed.
+	 */
+	private List<Runnable> keepAsPrevious() {
+		List<Runnable> releaseOldResults;
+		if (hasResults) {
+			releaseOldResults = releasePrevious;
+			previousSegmentation = segmentation;
+			previousSegmentationPyramid = segmentationPyramid != null
+				? segmentationPyramid : Collections.singletonList(segmentation);
+			previousColors = colors;
+			releasePrevious = releaseResults;
+		}
+		else
+			releaseOldResults = releaseResults;
+		releaseResults = new ArrayList<>();
+		return releaseOldResults;
+	}
+
 	public void clear() {
-		segmentation = dummy(new UnsignedByteType());
-		prediction = dummy(new FloatType());
+		List<Runnable> releaseOldResults;
+		synchronized (this) {
+			segmentation = dummy(new UnsignedByteType());
+			prediction = dummy(new FloatType());
+			segmentationPyramid = Collections.singletonList(segmentation);
+			previousSegmentation = null;
+			previousSegmentationPyramid = Collections.emptyList();
+			releaseOldResults = releaseResults;
+			releaseOldResults.addAll(releasePrevious);
+			releaseResults = new ArrayList<>();
+			releasePrevious = new ArrayList<>();
+		}
 		hasResults = false;
 		listeners.notifyListeners();
+		releaseOldResults.forEach(Runnable::run);
 	}
 
-	public RandomAccessibleInterval<UnsignedByteType> segmentation() {
+	public synchronized RandomAccessibleInterval<UnsignedByteType> segmentation() {
 		return segmentation;
 	}
 
@@ -125,20 +219,98 @@ public class SegmentationResultsModel {
 		return ConstantUtils.constantRandomAccessibleInterval(value, interval);
 	}
 
-	public RandomAccessibleInterval<FloatType> prediction() {
+	/**
+	 * Returns the segmentation of the previously trained segmenter, or null if
+	 * there is none. It should only be shown, where the current
+	 * {@link #segmentation()} is not yet calculated.
+	 */
+	public synchronized RandomAccessibleInterval<UnsignedByteType>
+		previousSegmentation()
+	{
+		return previousSegmentation;
+	}
+
+	/**
+	 * Returns the {@link #segmentationPyramid()} of the previously trained
+	 * segmenter, or an empty list if there is none. It only contains the levels,
+	 * that were requested while the previous segmenter was current. Just like
+	 * {@link #previousSegmentation()}, it should only be shown, where the
+	 * current segmentation is not yet calculated.
+	 */
+	public synchronized List<RandomAccessibleInterval<UnsignedByteType>>
+		previousSegmentationPyramid()
+	{
+		return previousSegmentationPyramid;
+	}
+
+	/**
+	 * @return The colors of the classes in {@link #previousSegmentation()}.
+	 */
+	public synchronized List<ARGBType> previousColors() {
+		return previousColors;
+	}
+
+	public synchronized RandomAccessibleInterval<FloatType> prediction() {
+		if (prediction == null)
+			prediction = createPrediction();
 		return prediction;
 	}
 
-	private void updatePrediction(Segmenter segmenter) {
+	/**
+	 * Returns the segmentation at multiple resolutions, sorted from high to low
+	 * resolution. The first image is the {@link #segmentation()}. The image at
+	 * index i is the segmentation of the image subsampled by a factor of 2^i
+	 * along the spatial axes. The list only contains the full resolution
+	 * segmentation, if the image is small.
+	 */
+	public synchronized List<RandomAccessibleInterval<UnsignedByteType>>
+		segmentationPyramid()
+	{
+		if (segmentationPyramid == null)
+			segmentationPyramid = createSegmentationPyramid();
+		return segmentationPyramid;
+	}
+
+	private List<RandomAccessibleInterval<UnsignedByteType>> createSegmentationPyramid() {
+		ImgPlus<?> image = model.imageForSegmentation().get();
+		CachedImageFactory factory = extensionPoints.getCachedSegmentationImageFactory();
+		int levels = SegmentationUtils.numberOfPyramidLevels(segmenter, image);
+		List<RandomAccessibleInterval<UnsignedByteType>> pyramid = new ArrayList<>();
+		pyramid.add(segmentation);
+		for (int i = 1; i < levels; i++) {
+			ImgPlus<?> subsampled = ImgPlusViewsOld.subsample(image, 1L << i);
+			Img<UnsignedByteType> level = SegmentationUtils.createCachedSegmentation(
+				segmenter, subsampled, factory);
+			releaseResults.add(() -> factory.release(level));
+			pyramid.add(level);
+		}
+		return Collections.unmodifiableList(pyramid);
+	}
+
+	private Img<FloatType> createPrediction() {
 		ImgPlus<?> image = model.imageForSegmentation().get();
-		this.prediction = SegmentationUtils.createCachedProbabilityMap(segmenter, image,
-			extensionPoints.getCachedPredictionImageFactory());
+		CachedImageFactory factory = extensionPoints.getCachedPredictionImageFactory();
+		Img<FloatType> prediction = SegmentationUtils.createCachedProbabilityMap(segmenter,
+			image, factory);
+		releaseResults.add(() -> factory.release(prediction));
+		return prediction;
 	}
 
-	private void updateSegmentation(Segmenter segmenter) {
+	/**
+	 * Creates the cached segmentation. It's derived from the given probability
+	 * map, if it isn't null. Otherwise the segmenter calculates it.
+	 */
+	private Img<UnsignedByteType> createSegmentation(
+		RandomAccessibleInterval<FloatType> probabilityMap)
+	{
 		ImgPlus<?> image = model.imageForSegmentation().get();
-		this.segmentation = SegmentationUtils.createCachedSegmentation(segmenter, image,
-			extensionPoints.getCachedSegmentationImageFactory());
+		CachedImageFactory factory = extensionPoints.getCachedSegmentationImageFactory();
+		Img<UnsignedByteType> segmentation = probabilityMap == null ? SegmentationUtils
+			.createCachedSegmentation(segmenter, image, factory) : SegmentationUtils
+				.createCachedSegmentation(segmenter, image, probabilityMap, factory,
+					new UnsignedByteType());
+		releaseResults.add(() -> factory.release(segmentation));
+		return segmentation;
 	}
 
 	public List<String> labels() {
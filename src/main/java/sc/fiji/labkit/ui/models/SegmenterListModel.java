@@ -77,6 +77,7 @@ public class SegmenterListModel {
 	public void remove(SegmentationItem item) {
 		segmenters.get().remove(item);
 		segmenters.notifier().notifyListeners();
+		item.releaseCaches();
 	}
 
 	public Holder<Boolean> segmentationVisibility() {
@@ -173,6 +173,9 @@ public class LabelPanel {
 			setLayout(new MigLayout("insets 4pt, gap 4pt, fillx"));
 			add(initColorButton());
 			add(new JLabel(label.name()), "grow, push, width 0:0:pref");
+			// NB: Registers the entry at the tool tip manager, the text is
+			// provided by getToolTipText(MouseEvent).
+			setToolTipText("");
 			JPopupMenu menu = menuFactory.apply(() -> this.label);
 			add(initPopupMenuButton(menu));
 			setComponentPopupMenu(menu);
@@ -181,6 +184,16 @@ public class LabelPanel {
 			initRenameOnDoubleClick();
 		}
 
+		/**
+		 * Shows the current number of pixels of the label. It's calculated only
+		 * when the tool tip is shown, which is cheap thanks to the label index of
+		 * the labeling.
+		 */
+		@Override
+		public String getToolTipText(MouseEvent event) {
+			return label.name() + ": " + model.pixelCount(label) + " pixels";
+		}
+
 		private JCheckBox initVisibilityCheckbox() {
 			JCheckBox checkBox = GuiUtils.styleCheckboxUsingEye(new JCheckBox());
 			checkBox.setSelected(label.isVisible());
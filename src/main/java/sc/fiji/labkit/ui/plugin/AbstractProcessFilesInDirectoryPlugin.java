@@ -44,15 +44,35 @@ import org.scijava.command.Command;
 import org.scijava.log.Logger;
 import org.scijava.plugin.Parameter;
 import sc.fiji.labkit.ui.segmentation.SegmentationTool;
+import sc.fiji.labkit.ui.utils.LabkitUtils;
 import sc.fiji.labkit.ui.utils.progress.StatusServiceProgressWriter;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Base class for plugins that process all images in a directory.
+ * <p>
+ * The results are first written to a temporary file, which is then renamed.
+ * An output file therefore either doesn't exist or is complete. The progress
+ * is recorded in a {@link BatchJobManifest} in the output directory. A job
+ * that crashed or was stopped can simply be started again, and continues
+ * with the files that have not been processed yet.
+ */
 abstract class AbstractProcessFilesInDirectoryPlugin implements Command, Cancelable {
 
+	private static final String TMP_PREFIX = ".labkit-tmp-";
+
 	@Parameter
 	private Context context;
 
@@ -86,43 +106,138 @@ abstract class AbstractProcessFilesInDirectoryPlugin implements Command, Cancela
 	@Parameter
 	private Boolean use_gpu = false;
 
+	@Parameter(min = "1")
+	private Integer images_in_parallel = 1;
+
+	/**
+	 * Processes the files in a pipeline: One thread opens the images, a pool
+	 * of {@code images_in_parallel} threads processes them and another thread
+	 * saves the results. Reading, processing and writing therefore overlap. The
+	 * number of images that are opened but not yet saved is limited, to bound
+	 * the memory usage.
+	 */
 	@Override
 	public void run() {
 		SegmentationTool segmenter = new SegmentationTool(context);
 		segmenter.setUseGpu(use_gpu);
 		segmenter.openModel(segmenter_file.getAbsolutePath());
 		segmenter.setProgressWriter(new StatusServiceProgressWriter(statusService));
+		BatchJobManifest manifest = openManifest();
 		FileFilter wildcardFileFilter = new WildcardFileFilter(file_filter);
-		File[] files = input_directory.listFiles(wildcardFileFilter);
+		File[] files = input_directory.listFiles(file -> wildcardFileFilter.accept(
+			file) && !file.getName().startsWith(TMP_PREFIX));
 		Arrays.sort(files);
-		for (int i = 0; i < files.length; i++) {
-			try {
-				processFile(segmenter, files, i);
-			}
-			catch (Exception e) {
-				logger.error(e);
+		int numberOfWorkers = Math.max(1, images_in_parallel);
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		ExecutorService workers = Executors.newFixedThreadPool(numberOfWorkers);
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		// NB: One image is read ahead and one is written, while the others are
+		// processed.
+		Semaphore imagesInPipeline = new Semaphore(numberOfWorkers + 2);
+		List<CompletableFuture<Void>> pipeline = new ArrayList<>();
+		try {
+			for (int i = 0; i < files.length; i++) {
+				File inputFile = files[i];
+				File outputFile = outputFile(inputFile);
+				if (outputFile.exists()) {
+					skip(manifest, inputFile, outputFile);
+					continue;
+				}
+				String status = "Labkit " + getDescription() + " " + (i + 1) + "/" +
+					files.length + ": " + inputFile.getName();
+				long[] startTime = { 0 };
+				imagesInPipeline.acquireUninterruptibly();
+				pipeline.add(CompletableFuture
+					.supplyAsync(() -> {
+						startTime[0] = System.nanoTime();
+						return openImage(inputFile);
+					}, reader)
+					.thenApplyAsync(inputImage -> {
+						statusService.showStatus(status);
+						return processImage(segmenter, inputImage);
+					}, workers)
+					.thenAcceptAsync(result -> saveImage(result, outputFile), writer)
+					.whenComplete((ignore, exception) -> {
+						try {
+							long duration = (System.nanoTime() - startTime[0]) / 1_000_000;
+							if (exception == null)
+								manifest.done(inputFile, outputFile, duration);
+							else {
+								Throwable cause = exception instanceof CompletionException
+									? exception.getCause() : exception;
+								logger.error(cause);
+								manifest.failed(inputFile, outputFile, duration, cause);
+							}
+						}
+						finally {
+							imagesInPipeline.release();
+						}
+					}));
 			}
+			CompletableFuture.allOf(pipeline.toArray(new CompletableFuture[0]))
+				.exceptionally(ignore -> null).join();
+		}
+		finally {
+			reader.shutdown();
+			workers.shutdown();
+			writer.shutdown();
 		}
 	}
 
-	private <T extends Type<T>> void processFile(SegmentationTool segmenter, File[] files, int i)
-		throws IOException
-	{
-		File inputFile = files[i];
-		String inputFileName = inputFile.getName();
-		String outputFileName = FilenameUtils.getBaseName(inputFileName) + output_file_suffix;
-		File outputFile = new File(output_directory, outputFileName);
-		if (outputFile.exists()) {
-			logger.warn("Labkit: Skipping " + inputFile + " because output file exists already: " +
-				outputFile);
-			return;
+	private BatchJobManifest openManifest() {
+		try {
+			return BatchJobManifest.open(output_directory, segmenter_file);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void skip(BatchJobManifest manifest, File inputFile, File outputFile) {
+		logger.warn("Labkit: Skipping " + inputFile +
+			" because output file exists already: " + outputFile);
+		if (!BatchJobManifest.DONE.equals(manifest.status(inputFile)))
+			manifest.skipped(inputFile, outputFile);
+		else if (!manifest.classifierHash().equals(manifest.classifierHash(inputFile)))
+			logger.warn("Labkit: " + outputFile +
+				" was calculated with a different classifier.");
+	}
+
+	private File outputFile(File inputFile) {
+		String outputFileName = FilenameUtils.getBaseName(inputFile.getName()) +
+			output_file_suffix;
+		return new File(output_directory, outputFileName);
+	}
+
+	private ImgPlus<?> openImage(File inputFile) {
+		try {
+			return io.open(inputFile.getAbsolutePath()).getImgPlus();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Saves the image to a temporary file, and renames it to the output file
+	 * when it's complete.
+	 */
+	private <T extends Type<T>> void saveImage(ImgPlus<?> result, File outputFile) {
+		File tmpFile = new File(outputFile.getParentFile(), TMP_PREFIX + outputFile
+			.getName());
+		try {
+			ImgPlus<T> image = Cast.unchecked(result);
+			Dataset dataset = datasetService.create(image);
+			Files.deleteIfExists(tmpFile.toPath());
+			io.save(dataset, tmpFile.getAbsolutePath());
+			LabkitUtils.moveAtomically(tmpFile, outputFile);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			tmpFile.delete();
 		}
-		ImgPlus<?> inputImage = io.open(inputFile.getAbsolutePath()).getImgPlus();
-		statusService.showStatus("Labkit " + getDescription() + " " + (i + 1) + "/" + files.length +
-			": " + inputFileName);
-		ImgPlus<T> restult = Cast.unchecked(processImage(segmenter, inputImage));
-		Dataset dataset = datasetService.create(restult);
-		io.save(dataset, outputFile.getAbsolutePath());
 	}
 
 	protected abstract ImgPlus<?> processImage(SegmentationTool segmenter, ImgPlus<?> inputImage);
@@ -0,0 +1,222 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.plugin;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import sc.fiji.labkit.ui.utils.LabkitUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link BatchJobManifest} records the state of a batch job, that processes
+ * all files in a directory, see {@link AbstractProcessFilesInDirectoryPlugin}.
+ * For each input file it records the status, the duration, the SHA-256 hash of
+ * the classifier that was used, and the error if the file failed.
+ * <p>
+ * The manifest is a YAML file in the output directory. It's rewritten
+ * (atomically) whenever a file is finished, such that it's up to date even if
+ * the job crashes. When the job is started again, the existing manifest is
+ * continued.
+ */
+class BatchJobManifest {
+
+	static final String FILENAME = "labkit-batch-manifest.yaml";
+
+	static final String DONE = "done";
+
+	static final String FAILED = "failed";
+
+	static final String SKIPPED = "skipped";
+
+	private final File file;
+
+	private final String classifierFile;
+
+	private final String classifierHash;
+
+	private final Map<String, PlainFileEntry> entries = new LinkedHashMap<>();
+
+	private BatchJobManifest(File file, File classifierFile) throws IOException {
+		this.file = file;
+		this.classifierFile = classifierFile.getAbsolutePath();
+		this.classifierHash = sha256(classifierFile);
+	}
+
+	/**
+	 * Opens the manifest in the given output directory, or starts a new one if
+	 * there is none.
+	 */
+	static BatchJobManifest open(File outputDirectory, File classifierFile)
+		throws IOException
+	{
+		BatchJobManifest manifest = new BatchJobManifest(new File(outputDirectory,
+			FILENAME), classifierFile);
+		if (manifest.file.exists()) {
+			PlainManifest plain = jackson().readValue(manifest.file,
+				PlainManifest.class);
+			if (plain.files != null)
+				for (PlainFileEntry entry : plain.files)
+					manifest.entries.put(entry.input_file, entry);
+		}
+		return manifest;
+	}
+
+	String classifierHash() {
+		return classifierHash;
+	}
+
+	/**
+	 * Returns the recorded status of the given input file, or null if there is
+	 * none.
+	 */
+	synchronized String status(File inputFile) {
+		PlainFileEntry entry = entries.get(inputFile.getName());
+		return entry == null ? null : entry.status;
+	}
+
+	/**
+	 * Returns the hash of the classifier that was used to process the given
+	 * input file, or null if there is none.
+	 */
+	synchronized String classifierHash(File inputFile) {
+		PlainFileEntry entry = entries.get(inputFile.getName());
+		return entry == null ? null : entry.classifier_sha256;
+	}
+
+	void done(File inputFile, File outputFile, long durationMillis) {
+		record(inputFile, outputFile, DONE, durationMillis, null);
+	}
+
+	void failed(File inputFile, File outputFile, long durationMillis,
+		Throwable exception)
+	{
+		record(inputFile, outputFile, FAILED, durationMillis, exception.toString());
+	}
+
+	void skipped(File inputFile, File outputFile) {
+		record(inputFile, outputFile, SKIPPED, 0, null);
+	}
+
+	private synchronized void record(File inputFile, File outputFile,
+		String status, long durationMillis, String error)
+	{
+		PlainFileEntry entry = new PlainFileEntry();
+		entry.input_file = inputFile.getName();
+		entry.output_file = outputFile.getName();
+		entry.status = status;
+		entry.classifier_sha256 = status.equals(SKIPPED) ? null : classifierHash;
+		entry.duration_ms = durationMillis;
+		entry.finished = Instant.now().toString();
+		entry.error = error;
+		entries.put(entry.input_file, entry);
+		try {
+			write();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void write() throws IOException {
+		PlainManifest plain = new PlainManifest();
+		plain.classifier_file = classifierFile;
+		plain.classifier_sha256 = classifierHash;
+		plain.files = new ArrayList<>(entries.values());
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		jackson().writeValue(tmp, plain);
+		LabkitUtils.moveAtomically(tmp, file);
+	}
+
+	private static ObjectMapper jackson() {
+		return new ObjectMapper(new YAMLFactory());
+	}
+
+	private static String sha256(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		try (InputStream in = new DigestInputStream(Files.newInputStream(file
+			.toPath()), digest))
+		{
+			byte[] buffer = new byte[8192];
+			while (in.read(buffer) >= 0) {
+				// NB: The DigestInputStream updates the digest.
+			}
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	// -- Helper classes --
+
+	private static class PlainManifest {
+
+		public String classifier_file;
+
+		public String classifier_sha256;
+
+		public List<PlainFileEntry> files;
+	}
+
+	private static class PlainFileEntry {
+
+		public String input_file;
+
+		public String output_file;
+
+		public String status;
+
+		public String classifier_sha256;
+
+		public long duration_ms;
+
+		public String finished;
+
+		public String error;
+	}
+}
@@ -0,0 +1,390 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.plugin;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the connected components of a binary mask, and measures their size,
+ * bounding box and centroid. Two pixels are connected if they share a face,
+ * just as with {@link net.imglib2.algorithm.neighborhood.DiamondShape} of
+ * radius one.
+ * <p>
+ * The mask is divided into blocks, that are labeled in parallel with a
+ * union-find data structure. The components of neighboring blocks are then
+ * merged by comparing the pixels on the shared block faces. Both steps take
+ * time linear in the number of pixels. Only the labels of the block faces are
+ * kept in memory, not the labels of the entire mask. Blocks that are known to
+ * be empty can be skipped, see {@link #measure(RandomAccessibleInterval,
+ * IntPredicate)}.
+ */
+class ConnectedComponents {
+
+	private static final int BLOCK_SIZE = 64;
+
+	static class Component {
+
+		private final long size;
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private final double[] centroid;
+
+		private Component(long size, long[] min, long[] max, double[] centroid) {
+			this.size = size;
+			this.min = min;
+			this.max = max;
+			this.centroid = centroid;
+		}
+
+		/** Number of pixels in the component. */
+		long size() {
+			return size;
+		}
+
+		/** Minimum of the component's bounding box, in pixel coordinates. */
+		long[] min() {
+			return min;
+		}
+
+		/** Maximum of the component's bounding box, in pixel coordinates. */
+		long[] max() {
+			return max;
+		}
+
+		/** Center of mass of the component, in pixel coordinates. */
+		double[] centroid() {
+			return centroid;
+		}
+	}
+
+	static List<Component> measure(RandomAccessibleInterval<BitType> mask) {
+		return measure(mask, i -> false);
+	}
+
+	/**
+	 * Returns the connected components of the mask. The pixels of the blocks,
+	 * for which isEmptyBlock returns true, are not read, and treated as
+	 * background.
+	 *
+	 * @param isEmptyBlock Takes the flat index of a block in the
+	 *          {@link #blockGrid(Interval)}.
+	 */
+	static List<Component> measure(RandomAccessibleInterval<BitType> mask,
+		IntPredicate isEmptyBlock)
+	{
+		int[] blockSize = new int[mask.numDimensions()];
+		Arrays.fill(blockSize, BLOCK_SIZE);
+		return measure(mask, blockSize, isEmptyBlock);
+	}
+
+	/**
+	 * Returns the grid of blocks, into which the given mask is divided by
+	 * {@link #measure(RandomAccessibleInterval, IntPredicate)}. The grid starts
+	 * at the min of the mask.
+	 */
+	static CellGrid blockGrid(Interval mask) {
+		int[] blockSize = new int[mask.numDimensions()];
+		Arrays.fill(blockSize, BLOCK_SIZE);
+		return new CellGrid(Intervals.dimensionsAsLongArray(mask), blockSize);
+	}
+
+	/**
+	 * Returns the connected components of the mask. The blocks that are labeled
+	 * in parallel have the given size.
+	 */
+	static List<Component> measure(RandomAccessibleInterval<BitType> mask,
+		int[] blockSize)
+	{
+		return measure(mask, blockSize, i -> false);
+	}
+
+	private static List<Component> measure(
+		RandomAccessibleInterval<BitType> mask, int[] blockSize,
+		IntPredicate isEmptyBlock)
+	{
+		int n = mask.numDimensions();
+		CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(mask),
+			blockSize);
+		long[] gridDimensions = grid.getGridDimensions();
+		int numBlocks = (int) Intervals.numElements(gridDimensions);
+		Block[] blocks = new Block[numBlocks];
+		List<Integer> indices = IntStream.range(0, numBlocks).boxed().collect(
+			Collectors.toList());
+		Parallelization.getTaskExecutor().forEach(indices, i -> {
+			long[] min = new long[n];
+			int[] dimensions = new int[n];
+			grid.getCellDimensions(i, min, dimensions);
+			for (int d = 0; d < n; d++)
+				min[d] += mask.min(d);
+			blocks[i] = isEmptyBlock.test(i) ? Block.EMPTY : new Block(mask,
+				Intervals.createMinSize(concat(min, dimensions)));
+		});
+		int[] offsets = new int[numBlocks + 1];
+		for (int i = 0; i < numBlocks; i++)
+			offsets[i + 1] = Math.addExact(offsets[i], blocks[i].count);
+		UnionFind components = new UnionFind(offsets[numBlocks]);
+		long[] gridPosition = new long[n];
+		for (int i = 0; i < numBlocks; i++) {
+			IntervalIndexer.indexToPosition(i, gridDimensions, gridPosition);
+			int step = 1;
+			for (int d = 0; d < n; d++) {
+				if (gridPosition[d] + 1 < gridDimensions[d] && blocks[i].count > 0 &&
+					blocks[i + step].count > 0)
+				{
+					int j = i + step;
+					int[] face = blocks[i].maxFaces[d];
+					int[] neighborFace = blocks[j].minFaces[d];
+					for (int k = 0; k < face.length; k++)
+						if (face[k] >= 0 && neighborFace[k] >= 0)
+							components.union(offsets[i] + face[k], offsets[j] +
+								neighborFace[k]);
+				}
+				step *= gridDimensions[d];
+			}
+		}
+		return collect(blocks, offsets, components, n);
+	}
+
+	private static List<Component> collect(Block[] blocks, int[] offsets,
+		UnionFind components, int n)
+	{
+		int total = offsets[blocks.length];
+		long[] sizes = new long[total];
+		long[] mins = new long[total * n];
+		long[] maxs = new long[total * n];
+		double[] sums = new double[total * n];
+		Arrays.fill(mins, Long.MAX_VALUE);
+		Arrays.fill(maxs, Long.MIN_VALUE);
+		for (int i = 0; i < blocks.length; i++) {
+			Block block = blocks[i];
+			for (int c = 0; c < block.count; c++) {
+				int root = components.find(offsets[i] + c);
+				sizes[root] += block.sizes[c];
+				for (int d = 0; d < n; d++) {
+					mins[root * n + d] = Math.min(mins[root * n + d], block.mins[c * n +
+						d]);
+					maxs[root * n + d] = Math.max(maxs[root * n + d], block.maxs[c * n +
+						d]);
+					sums[root * n + d] += block.sums[c * n + d];
+				}
+			}
+		}
+		List<Component> result = new ArrayList<>();
+		for (int root = 0; root < total; root++) {
+			if (components.find(root) != root)
+				continue;
+			long size = sizes[root];
+			int offset = root * n;
+			double[] centroid = new double[n];
+			for (int d = 0; d < n; d++)
+				centroid[d] = sums[offset + d] / size;
+			result.add(new Component(size, Arrays.copyOfRange(mins, offset, offset +
+				n), Arrays.copyOfRange(maxs, offset, offset + n), centroid));
+		}
+		return result;
+	}
+
+	private static long[] concat(long[] min, int[] size) {
+		long[] result = Arrays.copyOf(min, min.length + size.length);
+		for (int d = 0; d < size.length; d++)
+			result[min.length + d] = size[d];
+		return result;
+	}
+
+	/**
+	 * Connected components of one block. The components are numbered in the
+	 * order of their first pixel. Background pixels on the faces of the block
+	 * are marked with -1. {@link #EMPTY} stands for a block, that wasn't read,
+	 * and has no faces.
+	 */
+	private static class Block {
+
+		private static final Block EMPTY = new Block();
+
+		private final int count;
+
+		private final long[] sizes;
+
+		private final long[] mins;
+
+		private final long[] maxs;
+
+		private final double[] sums;
+
+		private final int[][] minFaces;
+
+		private final int[][] maxFaces;
+
+		private Block() {
+			this.count = 0;
+			this.sizes = new long[0];
+			this.mins = new long[0];
+			this.maxs = new long[0];
+			this.sums = new double[0];
+			this.minFaces = null;
+			this.maxFaces = null;
+		}
+
+		private Block(RandomAccessibleInterval<BitType> mask, Interval block) {
+			int n = block.numDimensions();
+			int[] dimensions = Intervals.dimensionsAsIntArray(block);
+			int volume = (int) Intervals.numElements(block);
+			int[] steps = new int[n];
+			IntervalIndexer.createAllocationSteps(dimensions, steps);
+			// Label the pixels: parent[i] is -1 for background, the root of a
+			// tree is always the pixel with the smallest index.
+			int[] parent = new int[volume];
+			int[] position = new int[n];
+			Cursor<BitType> cursor = Views.flatIterable(Views.interval(mask, block))
+				.cursor();
+			for (int i = 0; i < volume; i++) {
+				if (cursor.next().get()) {
+					parent[i] = i;
+					for (int d = 0; d < n; d++)
+						if (position[d] > 0 && parent[i - steps[d]] >= 0)
+							UnionFind.union(parent, i, i - steps[d]);
+				}
+				else parent[i] = -1;
+				increment(position, dimensions);
+			}
+			// Number the components.
+			int[] ids = new int[volume];
+			int count = 0;
+			for (int i = 0; i < volume; i++) {
+				if (parent[i] < 0)
+					ids[i] = -1;
+				else {
+					int root = UnionFind.find(parent, i);
+					ids[i] = root == i ? count++ : ids[root];
+				}
+			}
+			this.count = count;
+			this.sizes = new long[count];
+			this.mins = new long[count * n];
+			this.maxs = new long[count * n];
+			this.sums = new double[count * n];
+			Arrays.fill(mins, Long.MAX_VALUE);
+			Arrays.fill(maxs, Long.MIN_VALUE);
+			this.minFaces = new int[n][];
+			this.maxFaces = new int[n][];
+			int[] minFaceIndices = new int[n];
+			int[] maxFaceIndices = new int[n];
+			for (int d = 0; d < n; d++) {
+				minFaces[d] = new int[volume / dimensions[d]];
+				maxFaces[d] = new int[volume / dimensions[d]];
+			}
+			// Measure the components and copy the faces.
+			Arrays.fill(position, 0);
+			for (int i = 0; i < volume; i++) {
+				int id = ids[i];
+				if (id >= 0) {
+					sizes[id]++;
+					for (int d = 0; d < n; d++) {
+						long x = block.min(d) + position[d];
+						mins[id * n + d] = Math.min(mins[id * n + d], x);
+						maxs[id * n + d] = Math.max(maxs[id * n + d], x);
+						sums[id * n + d] += x;
+					}
+				}
+				for (int d = 0; d < n; d++) {
+					if (position[d] == 0)
+						minFaces[d][minFaceIndices[d]++] = id;
+					if (position[d] == dimensions[d] - 1)
+						maxFaces[d][maxFaceIndices[d]++] = id;
+				}
+				increment(position, dimensions);
+			}
+		}
+
+		private static void increment(int[] position, int[] dimensions) {
+			for (int d = 0; d < position.length; d++) {
+				if (++position[d] < dimensions[d])
+					return;
+				position[d] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Union-find data structure, with path halving. The smaller index always
+	 * becomes the root, which keeps the order of the components stable.
+	 */
+	private static class UnionFind {
+
+		private final int[] parent;
+
+		private UnionFind(int size) {
+			this.parent = IntStream.range(0, size).toArray();
+		}
+
+		private int find(int i) {
+			return find(parent, i);
+		}
+
+		private void union(int a, int b) {
+			union(parent, a, b);
+		}
+
+		private static int find(int[] parent, int i) {
+			while (parent[i] != i) {
+				parent[i] = parent[parent[i]];
+				i = parent[i];
+			}
+			return i;
+		}
+
+		private static void union(int[] parent, int a, int b) {
+			int rootA = find(parent, a);
+			int rootB = find(parent, b);
+			if (rootA < rootB)
+				parent[rootB] = rootA;
+			else
+				parent[rootA] = rootB;
+		}
+	}
+}
@@ -39,19 +39,20 @@ import org.scijava.table.GenericTable;
 import org.scijava.table.Table;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
-import net.imglib2.algorithm.fill.Filter;
-import net.imglib2.algorithm.fill.FloodFill;
-import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
 import sc.fiji.labkit.ui.Extensible;
 import sc.fiji.labkit.ui.MenuBar;
+import sc.fiji.labkit.ui.labeling.Label;
 import sc.fiji.labkit.ui.labeling.Labeling;
 import sc.fiji.labkit.ui.labeling.LabelingSerializer;
 import sc.fiji.labkit.ui.models.LabelingModel;
 import net.imglib2.roi.IterableRegion;
-import sc.fiji.labkit.ui.utils.sparse.SparseRandomAccessIntType;
 import net.imglib2.type.logic.BitType;
-import net.imglib2.type.numeric.integer.IntType;
-import net.imglib2.util.Pair;
+import net.imglib2.type.numeric.IntegerType;
 import org.scijava.Context;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -62,8 +63,12 @@ import org.scijava.ui.UIService;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.stream.Collectors;
 
 @Plugin(type = Command.class,
 	menuPath = "Plugins > Segmentation > Measure Connected Components")
@@ -106,34 +111,73 @@ public class MeasureConnectedComponents implements Command {
 		boolean calibratedSize)
 	{
 		TableBuilder builder = new TableBuilder();
-		builder.setPixelSize(labeling.axes());
-		labeling.iterableRegions().forEach((label, mask) -> builder.add(label
-			.name(), connectedComponetsSizes(mask)));
+		builder.setAxes(labeling.axes());
+		List<Set<Label>> labelSets = labeling.getLabelSets();
+		BitSet[] labelSetsPerBlock = labelSetsPerBlock(labeling,
+			ConnectedComponents.blockGrid(labeling.getIndexImg()));
+		for (Label label : labeling.getLabels()) {
+			BitSet containsLabel = new BitSet(labelSets.size());
+			for (int i = 0; i < labelSets.size(); i++)
+				if (labelSets.get(i).contains(label))
+					containsLabel.set(i);
+			builder.add(label.name(), ConnectedComponents.measure(mask(labeling,
+				containsLabel), block -> !labelSetsPerBlock[block].intersects(
+					containsLabel)));
+		}
 		return builder.getTable(calibratedSize);
 	}
 
-	static List<Long> connectedComponetsSizes(IterableRegion<BitType> region) {
-		List<Long> sizes = new ArrayList<>();
-		Cursor<Void> cursor = region.inside().cursor();
-		SparseRandomAccessIntType visitedImage = new SparseRandomAccessIntType(
-			region);
-		RandomAccess<IntType> visited = visitedImage.randomAccess();
-		int currentIndex = 0;
+	/**
+	 * Returns for each block of the given grid, which label sets occur in it.
+	 * The index image is read once, in a sparse labeling only the labeled
+	 * pixels are visited. This allows to measure each label only in the blocks
+	 * that contain it.
+	 */
+	private static BitSet[] labelSetsPerBlock(Labeling labeling, CellGrid grid) {
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = labeling
+			.getIndexImg();
+		int n = indexImg.numDimensions();
+		BitSet[] result = new BitSet[(int) Intervals.numElements(grid
+			.getGridDimensions())];
+		Arrays.setAll(result, ignore -> new BitSet());
+		RandomAccess<? extends IntegerType<?>> randomAccess = indexImg
+			.randomAccess();
+		Cursor<?> cursor = labeling.sparsityCursor();
+		long[] position = new long[n];
+		long[] cellPosition = new long[n];
 		while (cursor.hasNext()) {
 			cursor.fwd();
-			visited.setPosition(cursor);
-			if (visited.get().get() == 0) {
-				currentIndex++;
-				long countBefore = visitedImage.sparsityPattern().inside().size();
-				Filter<Pair<BitType, IntType>, Pair<BitType, IntType>> filter = (
-					current, seed) -> current.getA().get() && current.getB().get() == 0;
-				FloodFill.fill(region, visitedImage, cursor, new IntType(currentIndex),
-					new DiamondShape(1), filter);
-				long countAfter = visitedImage.sparsityPattern().inside().size();
-				sizes.add(countAfter - countBefore);
-			}
+			randomAccess.setPosition(cursor);
+			cursor.localize(position);
+			for (int d = 0; d < n; d++)
+				position[d] -= indexImg.min(d);
+			grid.getCellPosition(position, cellPosition);
+			result[(int) grid.getCellGridIndexFlat(cellPosition)].set(randomAccess
+				.get().getInteger());
 		}
-		return sizes;
+		return result;
+	}
+
+	/**
+	 * Returns the region of the label as binary mask. Unlike
+	 * {@link Labeling#getRegion(Label)} this only looks up the index image and a
+	 * precomputed table, and doesn't search the label sets for each pixel.
+	 *
+	 * @param containsLabel The indices of the label sets, that contain the
+	 *          label.
+	 */
+	private static RandomAccessibleInterval<BitType> mask(Labeling labeling,
+		BitSet containsLabel)
+	{
+		Converter<IntegerType<?>, BitType> converter = (in, out) -> out.set(
+			containsLabel.get(in.getInteger()));
+		return Converters.convert(labeling.getIndexImg(), converter,
+			new BitType());
+	}
+
+	static List<Long> connectedComponetsSizes(IterableRegion<BitType> region) {
+		return ConnectedComponents.measure(region).stream().map(
+			ConnectedComponents.Component::size).collect(Collectors.toList());
 	}
 
 	private static class TableBuilder {
@@ -143,10 +187,23 @@ public class MeasureConnectedComponents implements Command {
 			"connect component");
 		Column<Long> number = new DefaultColumn<>(Long.class, "size in pixels");
 		Column<Double> sizes = new DoubleColumn("size");
+		List<Column<Double>> centroids = new ArrayList<>();
+		List<Column<Long>> mins = new ArrayList<>();
+		List<Column<Long>> maxs = new ArrayList<>();
 
 		private double pixelSize = 1;
 		private String unit = "unknown";
 
+		private void setAxes(List<CalibratedAxis> axes) {
+			for (CalibratedAxis axis : axes) {
+				String name = axis.type().getLabel();
+				centroids.add(new DoubleColumn("centroid " + name));
+				mins.add(new DefaultColumn<>(Long.class, "min " + name));
+				maxs.add(new DefaultColumn<>(Long.class, "max " + name));
+			}
+			setPixelSize(axes);
+		}
+
 		private void setPixelSize(List<CalibratedAxis> axes) {
 			double pixelSize = 1;
 			StringJoiner units = new StringJoiner("*");
@@ -161,14 +218,21 @@ public class MeasureConnectedComponents implements Command {
 			this.unit = units.toString();
 		}
 
-		private void add(String label, List<Long> sizesInPixels) {
+		private void add(String label,
+			List<ConnectedComponents.Component> components)
+		{
 			int index = 0;
-			for (Long size : sizesInPixels) {
+			for (ConnectedComponents.Component component : components) {
 				index++;
 				labels.add(label);
 				indices.add(index);
-				number.add(size);
-				sizes.add(size * pixelSize);
+				number.add(component.size());
+				sizes.add(component.size() * pixelSize);
+				for (int d = 0; d < centroids.size(); d++) {
+					centroids.get(d).add(component.centroid()[d]);
+					mins.get(d).add(component.min()[d]);
+					maxs.get(d).add(component.max()[d]);
+				}
 			}
 		}
 
@@ -181,6 +245,9 @@ public class MeasureConnectedComponents implements Command {
 				sizes.setHeader("size in " + unit);
 				table.add(sizes);
 			}
+			table.addAll(centroids);
+			table.addAll(mins);
+			table.addAll(maxs);
 			return table;
 		}
 	}
@@ -34,6 +34,7 @@ import net.imagej.Dataset;
 import net.imglib2.Interval;
 import sc.fiji.labkit.ui.inputimage.DatasetInputImage;
 import sc.fiji.labkit.ui.labeling.Labeling;
+import sc.fiji.labkit.ui.labeling.LabelingJournal;
 import sc.fiji.labkit.ui.labeling.LabelingSerializer;
 import sc.fiji.labkit.ui.models.DefaultHolder;
 import sc.fiji.labkit.ui.models.Holder;
@@ -42,19 +43,42 @@ import sc.fiji.labkit.ui.models.MappedHolder;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.Context;
 
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
 /**
  * Represents an {@link ImageLabelingModel} that stored on disk.
+ * <p>
+ * Changes to an opened labeling are autosaved incrementally to a
+ * {@link LabelingJournal}, shortly after they are made and when the labeling
+ * is closed. The journal is compacted into the temporary labeling file, when
+ * it gets larger than the file it is based on. Autosaving is done by a single
+ * background thread, such that the user interface doesn't freeze while a large
+ * labeling is compacted. A journal that is left over
+ * after a crash is recovered, when the {@link LabeledImage} is created again.
  */
 public class LabeledImage {
 
+	private static final int AUTOSAVE_DELAY_MILLIS = 5000;
+
+	private static final long MIN_COMPACTION_SIZE = 1 << 20;
+
+	private static final ExecutorService AUTOSAVE_EXECUTOR = Executors
+		.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "labkit-autosave");
+			thread.setDaemon(true);
+			return thread;
+		});
+
 	private final Context context;
 
 	private String name;
@@ -65,7 +89,32 @@ public class LabeledImage {
 
 	private final String modifiedLabelingFile;
 
-	private ImageLabelingModel imageLabelingModel;
+	private final String journalFile;
+
+	/**
+	 * Guards {@link #journal} and {@link #imageLabelingModel}, which are used by
+	 * the autosave thread.
+	 */
+	private final Object lock = new Object();
+
+	private LabelingJournal journal;
+
+	private final Timer autosaveTimer = new Timer(AUTOSAVE_DELAY_MILLIS,
+		event -> scheduleAutosave());
+
+	private volatile ImageLabelingModel imageLabelingModel;
+
+	/**
+	 * Incremented for every change of the labeling. An autosave only marks the
+	 * labeling as stored, if there was no change while it was running.
+	 */
+	private volatile long changes = 0;
+
+	/**
+	 * Incremented when the labeling is saved, closed or discarded. A pending
+	 * autosave is skipped, if this happened after it was scheduled.
+	 */
+	private volatile long generation = 0;
 
 	private final Holder<String> storedIn;
 
@@ -85,7 +134,10 @@ public class LabeledImage {
 		this.imageFile = imageFile;
 		this.labelingFile = labelingFile;
 		this.modifiedLabelingFile = initModifiedLabelingFile();
-		this.storedIn = new DefaultHolder<>(labelingFile);
+		this.journalFile = modifiedLabelingFile + ".journal";
+		this.storedIn = new DefaultHolder<>(new File(journalFile).exists()
+			? journalFile : labelingFile);
+		this.autosaveTimer.setRepeats(false);
 		this.modified = new MappedHolder<>(storedIn, value -> !labelingFile.equals(value));
 	}
 
@@ -122,10 +174,14 @@ public class LabeledImage {
 	 * @return The opened {@link ImageLabelingModel}.
 	 */
 	public ImageLabelingModel open() {
-		this.imageLabelingModel = snapshot();
-		imageLabelingModel.dataChangedNotifier().addListener(onLabelingChangedConsumer);
-		imageLabelingModel.labeling().notifier().addListener(onLabelingChanged);
-		return imageLabelingModel;
+		ImageLabelingModel model = snapshot();
+		synchronized (lock) {
+			this.imageLabelingModel = model;
+			journal = startJournal(model.labeling().get());
+		}
+		model.dataChangedNotifier().addListener(onLabelingChangedConsumer);
+		model.labeling().notifier().addListener(onLabelingChanged);
+		return model;
 	}
 
 	/**
@@ -137,19 +193,135 @@ public class LabeledImage {
 			return;
 		imageLabelingModel.dataChangedNotifier().removeListener(onLabelingChangedConsumer);
 		imageLabelingModel.labeling().notifier().removeListener(onLabelingChanged);
-		if (storedIn.get() == null) {
-			try {
-				new LabelingSerializer(context).save(imageLabelingModel.labeling().get(),
-					modifiedLabelingFile);
-				storedIn.set(modifiedLabelingFile);
+		autosaveTimer.stop();
+		generation++;
+		synchronized (lock) {
+			autosave();
+			if (storedIn.get() != null) {
+				closeJournal();
 				imageLabelingModel = null;
 			}
+		}
+	}
+
+	/**
+	 * Appends the changes of the opened labeling to the journal file. This takes
+	 * time proportional to the size of the changes, rather than to the size of
+	 * the labeling. The journal is compacted, if it gets too large.
+	 * <p>
+	 * This method blocks until the changes are written. While the labeling is
+	 * edited, the changes are instead autosaved in the background.
+	 */
+	public void autosave() {
+		synchronized (lock) {
+			if (imageLabelingModel == null || storedIn.get() != null)
+				return;
+			String file = writeChanges(imageLabelingModel);
+			if (file != null)
+				storedIn.set(file);
+		}
+	}
+
+	/**
+	 * Called by the {@link #autosaveTimer} on the event dispatch thread. Writes
+	 * the changes on the autosave thread, and marks the labeling as stored
+	 * afterwards, unless it has been changed, saved or closed in the meantime.
+	 */
+	private void scheduleAutosave() {
+		ImageLabelingModel model = imageLabelingModel;
+		if (model == null || storedIn.get() != null)
+			return;
+		long expectedChanges = changes;
+		long expectedGeneration = generation;
+		AUTOSAVE_EXECUTOR.execute(() -> {
+			String file;
+			synchronized (lock) {
+				if (generation != expectedGeneration || imageLabelingModel != model)
+					return;
+				file = writeChanges(model);
+			}
+			if (file != null)
+				SwingUtilities.invokeLater(() -> {
+					if (changes == expectedChanges && generation == expectedGeneration)
+						storedIn.set(file);
+				});
+		});
+	}
+
+	/**
+	 * Appends the changes to the journal, or compacts it.
+	 *
+	 * @return The file, that holds the labeling now, or null if writing failed.
+	 */
+	private String writeChanges(ImageLabelingModel model) {
+		assert Thread.holdsLock(lock);
+		try {
+			if (journal != null && journal.labeling() == model.labeling().get()) {
+				journal.append();
+				if (journal.size() > compactionThreshold())
+					return compact(model);
+				return journalFile;
+			}
+			return compact(model);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the opened labeling completely to {@link #modifiedLabelingFile},
+	 * and starts a new journal.
+	 */
+	private String compact(ImageLabelingModel model) throws IOException {
+		closeJournal();
+		Files.deleteIfExists(Paths.get(journalFile));
+		Labeling labeling = model.labeling().get();
+		// NB: The journal is created before saving, such that changes made
+		// during saving are recorded.
+		LabelingJournal newJournal = LabelingJournal.isSupported(labeling)
+			? LabelingJournal.create(labeling, modifiedLabelingFile, Paths.get(
+				journalFile)) : null;
+		new LabelingSerializer(context).save(labeling, modifiedLabelingFile);
+		journal = newJournal;
+		return modifiedLabelingFile;
+	}
+
+	private long compactionThreshold() {
+		String base = journal.baseFile();
+		long baseSize = base == null ? 0 : new File(base).length();
+		return Math.max(MIN_COMPACTION_SIZE, baseSize);
+	}
+
+	private LabelingJournal startJournal(Labeling labeling) {
+		if (!LabelingJournal.isSupported(labeling))
+			return null;
+		String base = storedIn.get();
+		if (journalFile.equals(base)) {
+			try {
+				return LabelingJournal.resume(labeling, Paths.get(journalFile));
+			}
 			catch (IOException e) {
 				e.printStackTrace();
+				return null;
 			}
 		}
-		else
-			imageLabelingModel = null;
+		if (base == null || !new File(base).exists())
+			base = null;
+		return LabelingJournal.create(labeling, base, Paths.get(journalFile));
+	}
+
+	private void closeJournal() {
+		if (journal == null)
+			return;
+		try {
+			journal.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		journal = null;
 	}
 
 	/**
@@ -159,17 +331,25 @@ public class LabeledImage {
 	public void discardChanges() {
 		if (modified.get())
 			return;
-		if (imageLabelingModel != null) {
-			imageLabelingModel.labeling().set(openOrEmptyLabeling(labelingFile, imageLabelingModel
-				.imageForSegmentation().get()));
-		}
-		try {
-			Files.deleteIfExists(Paths.get(modifiedLabelingFile));
-		}
-		catch (IOException e) {
-			e.printStackTrace();
+		autosaveTimer.stop();
+		generation++;
+		synchronized (lock) {
+			closeJournal();
+			if (imageLabelingModel != null) {
+				imageLabelingModel.labeling().set(openOrEmptyLabeling(labelingFile,
+					imageLabelingModel.imageForSegmentation().get()));
+			}
+			try {
+				Files.deleteIfExists(Paths.get(modifiedLabelingFile));
+				Files.deleteIfExists(Paths.get(journalFile));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			storedIn.set(labelingFile);
+			if (imageLabelingModel != null)
+				journal = startJournal(imageLabelingModel.labeling().get());
 		}
-		storedIn.set(labelingFile);
 	}
 
 	/**
@@ -178,10 +358,25 @@ public class LabeledImage {
 	public void save() {
 		if (!modified.get())
 			return;
+		autosaveTimer.stop();
+		generation++;
+		synchronized (lock) {
+			saveLocked();
+		}
+	}
+
+	private void saveLocked() {
 		if (imageLabelingModel == null) {
 			try {
-				Files.move(Paths.get(modifiedLabelingFile), Paths.get(labelingFile),
-					StandardCopyOption.REPLACE_EXISTING);
+				if (journalFile.equals(storedIn.get())) {
+					LabelingSerializer serializer = new LabelingSerializer(context);
+					serializer.save(serializer.open(journalFile), labelingFile);
+					Files.deleteIfExists(Paths.get(journalFile));
+					Files.deleteIfExists(Paths.get(modifiedLabelingFile));
+				}
+				else
+					Files.move(Paths.get(modifiedLabelingFile), Paths.get(labelingFile),
+						StandardCopyOption.REPLACE_EXISTING);
 				storedIn.set(labelingFile);
 			}
 			catch (IOException e) {
@@ -190,10 +385,13 @@ public class LabeledImage {
 		}
 		else {
 			try {
-				new LabelingSerializer(context).save(imageLabelingModel.labeling().get(),
-					labelingFile);
+				closeJournal();
+				Labeling labeling = imageLabelingModel.labeling().get();
+				new LabelingSerializer(context).save(labeling, labelingFile);
 				Files.deleteIfExists(Paths.get(modifiedLabelingFile));
+				Files.deleteIfExists(Paths.get(journalFile));
 				storedIn.set(labelingFile);
+				journal = startJournal(labeling);
 			}
 			catch (IOException e) {
 				e.printStackTrace();
@@ -202,7 +400,10 @@ public class LabeledImage {
 	}
 
 	private void onLabelingChanged() {
+		changes++;
 		storedIn.set(null);
+		if (journal != null)
+			autosaveTimer.restart();
 	}
 
 	/**
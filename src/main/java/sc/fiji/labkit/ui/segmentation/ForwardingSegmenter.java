@@ -84,6 +84,16 @@ public class ForwardingSegmenter implements Segmenter {
 		source.setUseGpu(useGpu);
 	}
 
+	@Override
+	public boolean segmentsByMaximumProbability() {
+		return source.segmentsByMaximumProbability();
+	}
+
+	@Override
+	public void releaseCaches() {
+		source.releaseCaches();
+	}
+
 	@Override
 	public boolean isTrained() {
 		return source.isTrained();
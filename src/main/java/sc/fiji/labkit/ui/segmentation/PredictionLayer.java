@@ -31,8 +31,11 @@ package sc.fiji.labkit.ui.segmentation;
 
 import bdv.util.volatiles.SharedQueue;
 import bdv.util.volatiles.VolatileViews;
+import bdv.viewer.ViewerPanel;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
@@ -50,6 +53,10 @@ import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.volatiles.VolatileARGBType;
 import net.imglib2.type.volatiles.VolatileUnsignedByteType;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * A {@link BdvLayer} that lazily shows the result of a {@link Segmenter}.
  */
@@ -57,8 +64,9 @@ public class PredictionLayer implements BdvLayer {
 
 	private final Holder<SegmentationResultsModel> model;
 	private final AffineTransform3D transformation;
-	private final SharedQueue queue = new SharedQueue(Runtime.getRuntime()
-		.availableProcessors());
+	private final boolean isTimeSeries;
+	private SharedQueue queue = null;
+	private final ViewerCellScheduler scheduler;
 	private final Holder<Boolean> visibility;
 	private final Runnable classifierChanged = this::classifierChanged;
 	private ParametricNotifier<Interval> listeners = new ParametricNotifier<>();
@@ -68,28 +76,55 @@ public class PredictionLayer implements BdvLayer {
 	private SegmentationResultsModel segmenter;
 
 	public static PredictionLayer createPredictionLayer(SegmentationModel segmentationModel) {
+		return createPredictionLayer(segmentationModel, null);
+	}
+
+	/**
+	 * Creates a PredictionLayer, that calculates the segmentation in the order
+	 * needed by the given viewer: The visible cells closest to the center of
+	 * the screen first, then their neighbors. {@link #close()} needs to be
+	 * called, when the viewer is closed.
+	 */
+	public static PredictionLayer createPredictionLayer(
+		SegmentationModel segmentationModel, ViewerPanel viewer)
+	{
 		ImageLabelingModel imageLabelingModel = segmentationModel.imageLabelingModel();
 		return new PredictionLayer(
 			new MappedHolder<>(segmentationModel.segmenterList().selectedSegmenter(), si -> si == null
 				? null : si.results(imageLabelingModel)),
 			segmentationModel.segmenterList().segmentationVisibility(),
-			imageLabelingModel.labelTransformation());
+			imageLabelingModel.labelTransformation(),
+			imageLabelingModel.isTimeSeries(),
+			viewer);
 	}
 
 	private PredictionLayer(
 		Holder<SegmentationResultsModel> model,
 		Holder<Boolean> visibility,
-		AffineTransform3D transformation)
+		AffineTransform3D transformation,
+		boolean isTimeSeries,
+		ViewerPanel viewer)
 	{
 		this.model = model;
 		this.transformation = transformation;
+		this.isTimeSeries = isTimeSeries;
 		this.showable = new DefaultHolder<>(null);
 		this.visibility = visibility;
+		this.scheduler = viewer == null ? null : new ViewerCellScheduler(viewer,
+			transformation, isTimeSeries, Runtime.getRuntime().availableProcessors());
 		model.notifier().addWeakListener(classifierChanged);
 		registerListener(model.get());
 		classifierChanged();
 	}
 
+	/**
+	 * Stops the calculation of the cells for the viewer.
+	 */
+	public void close() {
+		if (scheduler != null)
+			scheduler.close();
+	}
+
 	/**
 	 * Makes this PredictionLayer listen to the given SegmentationResultsModel
 	 *
@@ -116,25 +151,72 @@ public class PredictionLayer implements BdvLayer {
 		SegmentationResultsModel results = model.get();
 		registerListener(results);
 		boolean hasResult = results != null && results.hasResults();
-		if (hasResult)
-			showable.set(BdvShowable.wrap(coloredVolatileView(results), transformation));
+		boolean hasPrevious = results != null && results.previousSegmentation() != null;
+		if (scheduler != null)
+			scheduler.setResolutionPyramid(hasResult ? results.segmentationPyramid()
+				: Collections.emptyList());
+		if (hasResult || hasPrevious)
+			showable.set(showable(results));
 		else
 			showable.set(null);
 		listeners.notifyListeners(null);
 	}
 
+	/**
+	 * Shows the segmentation. For large images, the segmentation is shown as
+	 * resolution pyramid, such that zoomed out only the low resolution levels
+	 * need to be calculated. Every level falls back to the same level of the
+	 * previous segmentation, where it's not yet calculated.
+	 */
+	private BdvShowable showable(SegmentationResultsModel selected) {
+		List<RandomAccessibleInterval<UnsignedByteType>> pyramid = selected.hasResults()
+			? selected.segmentationPyramid() : Collections.emptyList();
+		List<RandomAccessibleInterval<UnsignedByteType>> previousPyramid = selected
+			.previousSegmentationPyramid();
+		int numLevels = selected.hasResults() ? pyramid.size() : previousPyramid.size();
+		List<RandomAccessibleInterval<VolatileARGBType>> levels = new ArrayList<>();
+		for (int i = 0; i < numLevels; i++)
+			levels.add(coloredVolatileView(selected,
+				i < pyramid.size() ? pyramid.get(i) : null,
+				i < previousPyramid.size() ? previousPyramid.get(i) : null));
+		if (levels.size() <= 1)
+			return BdvShowable.wrap(levels.get(0), transformation);
+		return BdvShowable.wrap(new SegmentationPyramidSource<>(levels, transformation,
+			isTimeSeries, new VolatileARGBType(), title()));
+	}
+
+	/**
+	 * Shows one level of the current segmentation. Cells that are not yet
+	 * calculated show the same level of the previous segmentation, as long as
+	 * it's cached.
+	 */
 	private RandomAccessibleInterval<VolatileARGBType> coloredVolatileView(
-		SegmentationResultsModel selected)
+		SegmentationResultsModel selected,
+		RandomAccessibleInterval<UnsignedByteType> currentSegmentation,
+		RandomAccessibleInterval<UnsignedByteType> previousSegmentation)
 	{
-		ARGBType[] colors = selected.colors().toArray(new ARGBType[0]);
-		return mapColors(colors, wrapAsVolatile(selected.segmentation()));
+		RandomAccessibleInterval<VolatileARGBType> current = currentSegmentation != null
+			? mapColors(selected.colors(), wrapAsVolatile(currentSegmentation, null))
+			: null;
+		if (previousSegmentation == null)
+			return current;
+		// NB: Never calculate cells of the previous segmentation, only show the
+		// cells that are still in the cache.
+		RandomAccessibleInterval<VolatileARGBType> previous = mapColors(selected
+			.previousColors(), wrapAsVolatile(previousSegmentation, new CacheHints(
+				LoadingStrategy.DONTLOAD, 0, false)));
+		if (current == null)
+			return previous;
+		return Converters.convert(current, previous, (c, p, output) -> output.set(c
+			.isValid() ? c : p), new VolatileARGBType());
 	}
 
 	private RandomAccessibleInterval<VolatileUnsignedByteType> wrapAsVolatile(
-		RandomAccessibleInterval<UnsignedByteType> image)
+		RandomAccessibleInterval<UnsignedByteType> image, CacheHints hints)
 	{
 		try {
-			return VolatileViews.wrapAsVolatile(image, queue);
+			return hints == null ? VolatileViews.wrapAsVolatile(image, queue())
+				: VolatileViews.wrapAsVolatile(image, queue(), hints);
 		}
 		catch (IllegalArgumentException e) {
 			// This happens when image isn't some sort of CachedCellImg.
@@ -142,9 +224,21 @@ public class PredictionLayer implements BdvLayer {
 		}
 	}
 
+	private SharedQueue queue() {
+		if (queue == null) {
+			// NB: If the cells are calculated by the scheduler, BDV's fetcher threads
+			// mostly wait for cells that are already being calculated.
+			int numThreads = scheduler != null ? 1 : Runtime.getRuntime()
+				.availableProcessors();
+			queue = new SharedQueue(numThreads);
+		}
+		return queue;
+	}
+
 	private RandomAccessibleInterval<VolatileARGBType> mapColors(
-		ARGBType[] colors, RandomAccessibleInterval<VolatileUnsignedByteType> source)
+		List<ARGBType> colorList, RandomAccessibleInterval<VolatileUnsignedByteType> source)
 	{
+		ARGBType[] colors = colorList.toArray(new ARGBType[0]);
 		final Converter<VolatileUnsignedByteType, VolatileARGBType> conv = (input,
 			output) -> {
 			final boolean isValid = input.isValid();
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.segmentation;
+
+import bdv.util.AbstractSource;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.view.Views;
+
+import java.util.List;
+
+/**
+ * A {@link bdv.viewer.Source} that shows a resolution pyramid of a
+ * segmentation, as returned by
+ * {@link sc.fiji.labkit.ui.models.SegmentationResultsModel#segmentationPyramid()}.
+ * The image at level i is expected to be subsampled by a factor of 2^i along
+ * the spatial axes. Unlike {@link sc.fiji.labkit.ui.plugin.ResolutionPyramidSource}
+ * this supports 2D and 3D images, and time series.
+ */
+class SegmentationPyramidSource<T extends NumericType<T>> extends
+	AbstractSource<T>
+{
+
+	private final List<? extends RandomAccessibleInterval<T>> levels;
+
+	private final AffineTransform3D transformation;
+
+	private final boolean isTimeSeries;
+
+	/**
+	 * @param levels Images sorted from high to low resolution.
+	 * @param transformation Source transformation of the full resolution image.
+	 * @param isTimeSeries True if the last axis of the images is the time axis.
+	 */
+	SegmentationPyramidSource(List<? extends RandomAccessibleInterval<T>> levels,
+		AffineTransform3D transformation, boolean isTimeSeries, T type,
+		String name)
+	{
+		super(type, name);
+		this.levels = levels;
+		this.transformation = transformation;
+		this.isTimeSeries = isTimeSeries;
+	}
+
+	@Override
+	public boolean isPresent(int t) {
+		if (!isTimeSeries)
+			return true;
+		RandomAccessibleInterval<T> image = levels.get(0);
+		int timeAxis = image.numDimensions() - 1;
+		return t >= image.min(timeAxis) && t <= image.max(timeAxis);
+	}
+
+	@Override
+	public RandomAccessibleInterval<T> getSource(int t, int level) {
+		RandomAccessibleInterval<T> image = levels.get(level);
+		if (isTimeSeries)
+			image = Views.hyperSlice(image, image.numDimensions() - 1, t);
+		// NB: Big Data Viewer expects 3d images.
+		while (image.numDimensions() < 3)
+			image = Views.addDimension(image, 0, 0);
+		return image;
+	}
+
+	@Override
+	public int getNumMipmapLevels() {
+		return levels.size();
+	}
+
+	@Override
+	public void getSourceTransform(int t, int level,
+		AffineTransform3D transform)
+	{
+		int spatialDimensions = levels.get(0).numDimensions() - (isTimeSeries ? 1
+			: 0);
+		AffineTransform3D scale = new AffineTransform3D();
+		for (int d = 0; d < Math.min(3, spatialDimensions); d++)
+			scale.set(1L << level, d, d);
+		transform.set(transformation);
+		transform.concatenate(scale);
+	}
+}
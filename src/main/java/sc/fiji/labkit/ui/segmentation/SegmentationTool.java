@@ -36,6 +36,7 @@ import net.imagej.axis.Axes;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.IdentityAxis;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
@@ -45,6 +46,7 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 import org.apache.commons.lang3.ArrayUtils;
 import org.scijava.Context;
 import sc.fiji.labkit.ui.inputimage.DatasetInputImage;
@@ -53,7 +55,9 @@ import sc.fiji.labkit.ui.models.CachedImageFactory;
 import sc.fiji.labkit.ui.models.DefaultCachedImageFactory;
 import sc.fiji.labkit.ui.segmentation.weka.TrainableSegmentationSegmenter;
 import sc.fiji.labkit.ui.utils.ParallelUtils;
+import sc.fiji.labkit.ui.utils.TileWriter;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -119,6 +123,45 @@ public class SegmentationTool {
 			axes.toArray(new CalibratedAxis[0]));
 	}
 
+	/**
+	 * Segments the image tile by tile, and passes each tile to the given writer
+	 * as soon as it's calculated. Unlike {@link #segment(ImgPlus, IntegerType)}
+	 * the segmentation is never held in memory completely. Only the tiles that
+	 * are currently processed are, which allows to segment images much larger
+	 * than the available memory. The writer is not closed by this method.
+	 */
+	public <T extends IntegerType<T> & NativeType<T>> void segment(ImgPlus<?> image,
+		TileWriter<T> writer, T type)
+	{
+		segment(image, writer, type, 0, 1);
+	}
+
+	/**
+	 * Same as {@link #segment(ImgPlus, TileWriter, IntegerType)}, but only
+	 * segments the tiles of one shard, see {@link ParallelUtils#shard}.
+	 * Processes, that segment all the shards of an image, together write the
+	 * complete segmentation.
+	 */
+	public <T extends IntegerType<T> & NativeType<T>> void segment(ImgPlus<?> image,
+		TileWriter<T> writer, T type, int shardIndex, int numberOfShards)
+	{
+		ImgPlus<?> imgPlus = new DatasetInputImage(image).imageForSegmentation();
+		Interval outputInterval = SegmentationUtils.intervalNoChannels(imgPlus);
+		int[] cellSize = segmenter.suggestCellSize(imgPlus);
+		ParallelUtils.forEachCell(outputInterval, cellSize, shardIndex,
+			numberOfShards, cell -> {
+				RandomAccessibleInterval<T> tile = Views.translate(new ArrayImgFactory<>(
+					type).create(cell), Intervals.minAsLongArray(cell));
+				segmenter.segment(imgPlus, tile);
+				try {
+					writer.write(tile);
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}, progressWriter);
+	}
+
 	private boolean useCacheForSegmentation(ImgPlus<?> imgPlus) {
 		return Intervals.numElements(imgPlus) > 100_000_000;
 	}
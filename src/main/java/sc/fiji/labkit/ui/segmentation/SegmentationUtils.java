@@ -38,6 +38,7 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.cell.CellGrid;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import org.apache.commons.lang3.ArrayUtils;
@@ -95,6 +96,76 @@ public class SegmentationUtils {
 			grid, type);
 	}
 
+	/**
+	 * Returns a cached segmentation, that is derived from the given cached
+	 * probability map. Each pixel is set to the index of the class with the
+	 * highest probability. The classifier therefor only runs once per cell, for
+	 * the probability map.
+	 *
+	 * @see Segmenter#segmentsByMaximumProbability()
+	 */
+	public static <T extends IntegerType<T> & NativeType<T>> Img<T>
+		createCachedSegmentation(Segmenter segmenter, ImgPlus<?> image,
+			RandomAccessibleInterval<FloatType> probabilityMap,
+			CachedImageFactory cachedImageFactory, T type)
+	{
+		if (cachedImageFactory == null)
+			cachedImageFactory = DefaultCachedImageFactory.getInstance();
+		int[] cellSize = segmenter.suggestCellSize(image);
+		Interval interval = intervalNoChannels(image);
+		CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(interval), cellSize);
+		return cachedImageFactory.setupCachedImage(segmenter,
+			target -> maximumProbability(probabilityMap, target), grid, type);
+	}
+
+	/**
+	 * Sets each pixel of the output to the index of the class with the highest
+	 * probability. The last axis of the probability map is the class axis.
+	 */
+	private static <T extends IntegerType<T>> void maximumProbability(
+		RandomAccessibleInterval<FloatType> probabilityMap,
+		RandomAccessibleInterval<T> output)
+	{
+		int classes = (int) probabilityMap.dimension(probabilityMap.numDimensions() - 1);
+		LoopBuilder.setImages(Views.interval(Views.collapse(probabilityMap), output),
+			output).forEachPixel((probabilities, out) -> {
+				int best = 0;
+				float max = probabilities.get(0).get();
+				for (int i = 1; i < classes; i++) {
+					float value = probabilities.get(i).get();
+					if (value > max) {
+						max = value;
+						best = i;
+					}
+				}
+				out.setInteger(best);
+			});
+	}
+
+	/**
+	 * Returns the number of levels of a resolution pyramid for the given image.
+	 * Each level halves the resolution along the spatial axes. The lowest
+	 * resolution level fits into a single cell.
+	 *
+	 * @see ImgPlusViewsOld#subsample
+	 */
+	public static int numberOfPyramidLevels(Segmenter segmenter, ImgPlus<?> image) {
+		int[] cellSize = segmenter.suggestCellSize(image);
+		Interval interval = intervalNoChannels(image);
+		int spatialDimensions = ImgPlusViewsOld.numberOfSpatialDimensions(image);
+		int levels = 1;
+		for (int d = 0; d < spatialDimensions; d++) {
+			long size = interval.dimension(d);
+			int levelsD = 1;
+			while (size > cellSize[d]) {
+				size = (size + 1) / 2;
+				levelsD++;
+			}
+			levels = Math.max(levels, levelsD);
+		}
+		return levels;
+	}
+
 	private static CellGrid addDimensionToGrid(int size, CellGrid grid) {
 		long[] dimensions = ArrayUtils.add(grid.getImgDimensions(), size);
 		int[] cellDimensions = ArrayUtils.add(getCellDimensions(grid), size);
@@ -92,6 +92,23 @@ public interface Segmenter {
 
 	default void setUseGpu(boolean useGpu) {}
 
+	/**
+	 * Return true if the pixel values written by {@link #segment} are always the
+	 * index of the class with the highest probability, as written by
+	 * {@link #predict}. Labkit then calculates the probability map only once,
+	 * and derives the segmentation from it.
+	 */
+	default boolean segmentsByMaximumProbability() {
+		return false;
+	}
+
+	/**
+	 * Releases memory, that the segmenter keeps between calls, for example the
+	 * features calculated for the training data. Labkit calls this method, when
+	 * the segmenter is removed. The segmenter stays usable.
+	 */
+	default void releaseCaches() {}
+
 	/**
 	 * Return true if the model is trained.
 	 */
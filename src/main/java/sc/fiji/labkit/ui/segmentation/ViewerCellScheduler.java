@@ -0,0 +1,373 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.segmentation;
+
+import bdv.viewer.ViewerPanel;
+import bdv.viewer.ViewerStateChange;
+import bdv.viewer.ViewerStateChangeListener;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calculates the cells of a cached image, like the cached segmentation, in the
+ * order in which they are needed by the BigDataViewer.
+ * <p>
+ * The cells visible on the screen, at the current time point, are calculated
+ * first, ordered by their distance to the center of the screen. Afterwards the
+ * neighboring cells, and the cells at the neighboring time points are
+ * calculated. Whenever the viewer transformation or time point changes, the
+ * pending cells are discarded and the order is updated. Cells that are already
+ * being calculated are finished.
+ * <p>
+ * If a resolution pyramid is given, only the cells of the resolution level
+ * that matches the current zoom level are calculated.
+ * <p>
+ * {@link #close()} needs to be called, when the viewer is closed.
+ */
+public class ViewerCellScheduler {
+
+	private static final AtomicInteger threadCounter = new AtomicInteger();
+
+	private final ViewerPanel viewer;
+
+	private final AffineTransform3D transformation;
+
+	private final boolean isTimeSeries;
+
+	private final ThreadPoolExecutor executor;
+
+	private final ViewerStateChangeListener viewerListener = change -> {
+		if (change == ViewerStateChange.VIEWER_TRANSFORM_CHANGED ||
+			change == ViewerStateChange.CURRENT_TIMEPOINT_CHANGED)
+			update();
+	};
+
+	private List<AbstractCellImg<?, ?, ?, ?>> levels = Collections.emptyList();
+
+	/**
+	 * @param viewer The BigDataViewer that shows the image.
+	 * @param transformation Transformation from image to global coordinates.
+	 * @param isTimeSeries True if the last axis of the image is the time axis.
+	 * @param numThreads Number of threads used to calculate the cells.
+	 */
+	public ViewerCellScheduler(ViewerPanel viewer,
+		AffineTransform3D transformation, boolean isTimeSeries, int numThreads)
+	{
+		this.viewer = viewer;
+		this.transformation = transformation;
+		this.isTimeSeries = isTimeSeries;
+		this.executor = new ThreadPoolExecutor(numThreads, numThreads, 10,
+			TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+				Thread thread = new Thread(runnable, "labkit-cell-scheduler-" +
+					threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+		this.executor.allowCoreThreadTimeOut(true);
+		viewer.state().changeListeners().add(viewerListener);
+	}
+
+	/**
+	 * Stops listening to the viewer, discards the pending cells and stops the
+	 * threads.
+	 */
+	public synchronized void close() {
+		viewer.state().changeListeners().remove(viewerListener);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Sets the image, whose cells are calculated. Images that are not cell
+	 * images are ignored.
+	 */
+	public synchronized void setImage(RandomAccessibleInterval<?> image) {
+		setResolutionPyramid(image == null ? Collections.emptyList() : Collections
+			.singletonList(image));
+	}
+
+	/**
+	 * Sets the resolution pyramid, whose cells are calculated. The image at
+	 * index i is expected to be subsampled by a factor of 2^i along the spatial
+	 * axes. The pyramid is cut at the first image, that is not a cell image.
+	 */
+	public synchronized void setResolutionPyramid(
+		List<? extends RandomAccessibleInterval<?>> pyramid)
+	{
+		List<AbstractCellImg<?, ?, ?, ?>> levels = new ArrayList<>();
+		for (RandomAccessibleInterval<?> image : pyramid) {
+			if (!(image instanceof AbstractCellImg))
+				break;
+			levels.add((AbstractCellImg<?, ?, ?, ?>) image);
+		}
+		this.levels = levels;
+		update();
+	}
+
+	/**
+	 * Discards the pending cells, and schedules the cells around the current
+	 * view again.
+	 */
+	public synchronized void update() {
+		executor.getQueue().clear();
+		if (executor.isShutdown() || levels.isEmpty())
+			return;
+		AffineTransform3D screenToImage = screenToImageTransform();
+		int width = viewer.getDisplay().getWidth();
+		int height = viewer.getDisplay().getHeight();
+		if (screenToImage == null || width <= 0 || height <= 0)
+			return;
+		int level = resolutionLevel(screenToImage);
+		AbstractCellImg<?, ?, ?, ?> image = levels.get(level);
+		CellGrid grid = image.getCellGrid();
+		int n = grid.numDimensions();
+		int spatialDimensions = Math.min(3, isTimeSeries ? n - 1 : n);
+		if (level > 0)
+			screenToImage.preConcatenate(subsampling(level, spatialDimensions)
+				.inverse());
+		long[] visibleMin = new long[n];
+		long[] visibleMax = new long[n];
+		visibleCells(grid, spatialDimensions, screenToImage, width, height,
+			visibleMin, visibleMax);
+		if (isTimeSeries) {
+			long timeCell = viewer.state().getCurrentTimepoint() / grid.cellDimension(
+				n - 1);
+			visibleMin[n - 1] = timeCell;
+			visibleMax[n - 1] = timeCell;
+		}
+		AffineTransform3D imageToScreen = screenToImage.inverse();
+		double[] center = { width * 0.5, height * 0.5, 0 };
+		RandomAccessible<?> cells = image.getCells();
+		List<CellTask> tasks = cellTasks(grid, spatialDimensions, visibleMin,
+			visibleMax, imageToScreen, center, cells);
+		// NB: Idle threads are started for the first tasks, without passing the
+		// priority queue. Submitting the tasks in priority order makes sure these
+		// are the most important tasks.
+		Collections.sort(tasks);
+		for (CellTask task : tasks)
+			executor.execute(task);
+	}
+
+	private AffineTransform3D screenToImageTransform() {
+		AffineTransform3D imageToScreen = viewer.state().getViewerTransform();
+		imageToScreen.concatenate(transformation);
+		try {
+			return imageToScreen.inverse();
+		}
+		catch (RuntimeException e) {
+			// NB: The transformation is not invertible.
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the lowest resolution level, whose pixels are not larger than a
+	 * screen pixel.
+	 */
+	private int resolutionLevel(AffineTransform3D screenToImage) {
+		double[] origin = new double[3];
+		double[] unitX = { 1, 0, 0 };
+		screenToImage.apply(origin, origin);
+		screenToImage.apply(unitX, unitX);
+		double pixelSize = Math.sqrt(square(unitX[0] - origin[0]) + square(unitX[1] -
+			origin[1]) + square(unitX[2] - origin[2]));
+		int level = 0;
+		while (level + 1 < levels.size() && (1L << (level + 1)) <= pixelSize)
+			level++;
+		return level;
+	}
+
+	private static AffineTransform3D subsampling(int level,
+		int spatialDimensions)
+	{
+		AffineTransform3D scale = new AffineTransform3D();
+		for (int d = 0; d < spatialDimensions; d++)
+			scale.set(1L << level, d, d);
+		return scale;
+	}
+
+	/**
+	 * Calculates the grid positions of the cells that are visible on the
+	 * screen.
+	 */
+	private static void visibleCells(CellGrid grid, int spatialDimensions,
+		AffineTransform3D screenToImage, int width, int height, long[] cellMin,
+		long[] cellMax)
+	{
+		double[] min = new double[3];
+		double[] max = new double[3];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		double[] corner = new double[3];
+		double[] position = new double[3];
+		for (int x = 0; x <= width; x += width)
+			for (int y = 0; y <= height; y += height) {
+				corner[0] = x;
+				corner[1] = y;
+				screenToImage.apply(corner, position);
+				for (int d = 0; d < 3; d++) {
+					min[d] = Math.min(min[d], position[d]);
+					max[d] = Math.max(max[d], position[d]);
+				}
+			}
+		for (int d = 0; d < spatialDimensions; d++) {
+			long lastCell = grid.gridDimension(d) - 1;
+			cellMin[d] = clamp((long) Math.floor(min[d]) / grid.cellDimension(d), 0,
+				lastCell);
+			cellMax[d] = clamp((long) Math.floor(max[d]) / grid.cellDimension(d), 0,
+				lastCell);
+		}
+	}
+
+	/**
+	 * Returns the tasks for the visible cells, their spatial neighbors and the
+	 * visible cells at the neighboring time points.
+	 */
+	private List<CellTask> cellTasks(CellGrid grid, int spatialDimensions,
+		long[] visibleMin, long[] visibleMax, AffineTransform3D imageToScreen,
+		double[] center, RandomAccessible<?> cells)
+	{
+		int n = grid.numDimensions();
+		long[] min = visibleMin.clone();
+		long[] max = visibleMax.clone();
+		for (int d = 0; d < n; d++) {
+			if (d < spatialDimensions || (isTimeSeries && d == n - 1)) {
+				min[d] = Math.max(0, min[d] - 1);
+				max[d] = Math.min(grid.gridDimension(d) - 1, max[d] + 1);
+			}
+		}
+		List<CellTask> tasks = new ArrayList<>();
+		long[] position = min.clone();
+		double[] cellCenter = new double[3];
+		double[] screenPosition = new double[3];
+		do {
+			boolean visibleInSpace = isInside(position, spatialDimensions, visibleMin,
+				visibleMax);
+			boolean currentTime = !isTimeSeries || position[n - 1] == visibleMin[n -
+				1];
+			if (!visibleInSpace && !currentTime)
+				continue;
+			for (int d = 0; d < spatialDimensions; d++)
+				cellCenter[d] = (position[d] + 0.5) * grid.cellDimension(d);
+			imageToScreen.apply(cellCenter, screenPosition);
+			double distance = 0;
+			for (int d = 0; d < 3; d++)
+				distance += square(screenPosition[d] - center[d]);
+			boolean visible = visibleInSpace && currentTime;
+			int level = visible ? 0 : currentTime ? 1 : 2;
+			tasks.add(new CellTask(level, distance, position.clone(), cells,
+				visible ? viewer : null));
+		}
+		while (next(position, min, max));
+		return tasks;
+	}
+
+	private static boolean isInside(long[] position, int spatialDimensions,
+		long[] min, long[] max)
+	{
+		for (int d = 0; d < spatialDimensions; d++)
+			if (position[d] < min[d] || position[d] > max[d])
+				return false;
+		return true;
+	}
+
+	private static boolean next(long[] position, long[] min, long[] max) {
+		for (int d = 0; d < position.length; d++) {
+			if (position[d] < max[d]) {
+				position[d]++;
+				return true;
+			}
+			position[d] = min[d];
+		}
+		return false;
+	}
+
+	private static long clamp(long value, long min, long max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private static double square(double value) {
+		return value * value;
+	}
+
+	/**
+	 * Calculates one cell, by accessing it. Tasks are ordered by their level
+	 * (visible, neighbor, neighboring time point) and then by distance to the
+	 * center of the screen.
+	 */
+	private static class CellTask implements Runnable, Comparable<CellTask> {
+
+		private final int level;
+
+		private final double distance;
+
+		private final long[] position;
+
+		private final RandomAccessible<?> cells;
+
+		private final ViewerPanel repaint;
+
+		private CellTask(int level, double distance, long[] position,
+			RandomAccessible<?> cells, ViewerPanel repaint)
+		{
+			this.level = level;
+			this.distance = distance;
+			this.position = position;
+			this.cells = cells;
+			this.repaint = repaint;
+		}
+
+		@Override
+		public void run() {
+			cells.getAt(position);
+			if (repaint != null)
+				repaint.requestRepaint();
+		}
+
+		@Override
+		public int compareTo(CellTask other) {
+			if (level != other.level)
+				return Integer.compare(level, other.level);
+			return Double.compare(distance, other.distance);
+		}
+	}
+}
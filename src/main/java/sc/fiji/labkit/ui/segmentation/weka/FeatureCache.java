@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.segmentation.weka;
+
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the feature images of the training data between consecutive training
+ * runs, such that retraining only calculates the features of cells that
+ * haven't been touched before.
+ * <p>
+ * The feature images are {@link DiskCachedCellImg}s. Their cells are softly
+ * referenced and written to disk, when memory runs low. Only the least
+ * recently used feature images are kept, the others are shut down, which
+ * deletes their files. The whole cache is cleared, when the settings change,
+ * or when the segmenter releases its caches.
+ * <p>
+ * The images are only weakly referenced by the cache. The feature images must
+ * not reference their image strongly, otherwise it's never garbage collected.
+ * Feature images, whose image is garbage collected, are removed by
+ * {@link #trim()}.
+ */
+class FeatureCache {
+
+	private final int maxImages;
+
+	private final Map<Key, DiskCachedCellImg<FloatType, ?>> images =
+		new LinkedHashMap<>(16, 0.75f, true);
+
+	private Object settings = null;
+
+	FeatureCache(int maxImages) {
+		this.maxImages = maxImages;
+	}
+
+	/**
+	 * Sets the settings, that where used to calculate the cached features. All
+	 * feature images are removed, if the settings differ from the previous
+	 * settings.
+	 */
+	synchronized void setSettings(Object settings) {
+		if (!Objects.equals(this.settings, settings))
+			clear();
+		this.settings = settings;
+	}
+
+	/**
+	 * Returns the feature image of the given image or slice of an image. It's
+	 * created, if it's not in the cache.
+	 *
+	 * @param image The image, it's compared by identity.
+	 * @param slice The positions along the axes, that where used to slice the
+	 *          image.
+	 */
+	synchronized DiskCachedCellImg<FloatType, ?> get(Object image,
+		List<Long> slice, Supplier<DiskCachedCellImg<FloatType, ?>> factory)
+	{
+		return images.computeIfAbsent(new Key(image, slice), ignore -> factory
+			.get());
+	}
+
+	/**
+	 * Shuts down the least recently used feature images, if there are more
+	 * than allowed. Feature images, whose image has been garbage collected, are
+	 * removed as well.
+	 */
+	synchronized void trim() {
+		List<DiskCachedCellImg<FloatType, ?>> removed = new ArrayList<>();
+		Iterator<Map.Entry<Key, DiskCachedCellImg<FloatType, ?>>> iterator = images
+			.entrySet().iterator();
+		int remaining = images.size();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, DiskCachedCellImg<FloatType, ?>> entry = iterator.next();
+			if (remaining > maxImages || entry.getKey().image.get() == null) {
+				removed.add(entry.getValue());
+				iterator.remove();
+				remaining--;
+			}
+		}
+		removed.forEach(DiskCachedCellImg::shutdown);
+	}
+
+	/**
+	 * @return The number of cached feature images.
+	 */
+	synchronized int size() {
+		return images.size();
+	}
+
+	synchronized void clear() {
+		images.values().forEach(DiskCachedCellImg::shutdown);
+		images.clear();
+	}
+
+	private static class Key {
+
+		private final WeakReference<Object> image;
+
+		private final int imageHash;
+
+		private final List<Long> slice;
+
+		private Key(Object image, List<Long> slice) {
+			this.image = new WeakReference<>(image);
+			this.imageHash = System.identityHashCode(image);
+			this.slice = new ArrayList<>(slice);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			Object image = this.image.get();
+			return image != null && image == other.image.get() && slice.equals(
+				other.slice);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * imageHash + slice.hashCode();
+		}
+	}
+}
@@ -29,6 +29,7 @@
 
 package sc.fiji.labkit.ui.segmentation.weka;
 
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TLongArrayList;
 import hr.irb.fastRandomForest.FastRandomForest;
 import net.imagej.ImgPlus;
@@ -42,7 +43,10 @@ import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.DiskCachedCellImg;
 import net.imglib2.cache.img.DiskCachedCellImgFactory;
 import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.display.imagej.ImgPlusViews;
+import net.imglib2.parallel.Parallelization;
 import org.scijava.prefs.PrefService;
 import sc.fiji.labkit.ui.inputimage.ImgPlusViewsOld;
 import sc.fiji.labkit.ui.labeling.Label;
@@ -50,7 +54,7 @@ import sc.fiji.labkit.ui.labeling.Labelings;
 import sc.fiji.labkit.ui.segmentation.Segmenter;
 import sc.fiji.labkit.ui.labeling.Labeling;
 import sc.fiji.labkit.ui.utils.LabkitUtils;
-import net.imglib2.roi.labeling.LabelingType;
+import sc.fiji.labkit.ui.utils.sparse.SparseIterableRegion;
 import sc.fiji.labkit.ui.utils.sparse.SparseRandomAccessIntType;
 import sc.fiji.labkit.pixel_classification.classification.Training;
 import sc.fiji.labkit.pixel_classification.gson.GsonUtils;
@@ -66,6 +70,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
@@ -74,21 +79,35 @@ import org.scijava.Context;
 import weka.core.WekaException;
 
 import javax.swing.*;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 // TODO: rename to PixelClassification
 public class TrainableSegmentationSegmenter implements Segmenter {
 
+	private static final int MAX_CACHED_FEATURE_IMAGES = 128;
+
+	/**
+	 * Number of batches of training samples per thread, that may be copied
+	 * ahead of the training.
+	 */
+	private static final int MAX_PENDING_BATCHES_PER_THREAD = 2;
+
 	private final Context context;
 
 	private boolean useGpu;
@@ -97,6 +116,13 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 
 	private sc.fiji.labkit.pixel_classification.classification.Segmenter segmenter;
 
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private long sampleMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+
+	final FeatureCache featureCache = new FeatureCache(
+		MAX_CACHED_FEATURE_IMAGES);
+
 	public TrainableSegmentationSegmenter(Context context) {
 		this.context = Objects.requireNonNull(context);
 		this.useGpu = getUseGpuPreference();
@@ -122,6 +148,7 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 			if (this.useGpu != newUseGpu)
 				setUseGpuPreference(newUseGpu);
 			setUseGpu(newUseGpu);
+			updateFeatureCacheSettings();
 		}
 	}
 
@@ -168,8 +195,16 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 					classes, featureSettings, new FastRandomForest());
 			segmenter.setUseGpu(useGpu);
 			Training training = segmenter.training();
+			List<Frame> frames = new ArrayList<>();
 			for (Pair<ImgPlus<?>, Labeling> pair : trainingData)
-				trainPair(training, classes, pair, segmenter);
+				collectFrames(frames, classes, pair);
+			updateFeatureCacheSettings();
+			try {
+				addSamples(training, frames, segmenter.features());
+			}
+			finally {
+				featureCache.trim();
+			}
 			training.train();
 			this.segmenter = segmenter;
 		}
@@ -182,13 +217,13 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		}
 	}
 
-	private void trainPair(Training training, List<String> classes, Pair<ImgPlus<?>, Labeling> pair,
-		sc.fiji.labkit.pixel_classification.classification.Segmenter segmenter)
+	private void collectFrames(List<Frame> frames, List<String> classes,
+		Pair<ImgPlus<?>, Labeling> pair)
 	{
 		ImgPlus<?> image = pair.getA();
 		Labeling labeling = pair.getB();
 		checkMatchingSize(image, labeling);
-		trainStack(training, classes, labeling, image, segmenter.features());
+		collectFrames(frames, classes, labeling, image, new Frame.Source(image));
 	}
 
 	private void checkMatchingSize(ImgPlus<?> image, Labeling labeling) {
@@ -220,6 +255,20 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		this.useGpu = useGpu;
 		if (segmenter != null)
 			segmenter.setUseGpu(this.useGpu);
+		updateFeatureCacheSettings();
+	}
+
+	/**
+	 * Removes the cached feature images, if they were calculated with different
+	 * settings.
+	 */
+	private void updateFeatureCacheSettings() {
+		featureCache.setSettings(Arrays.asList(featureSettings, useGpu));
+	}
+
+	@Override
+	public void releaseCaches() {
+		featureCache.clear();
 	}
 
 	private static List<String> collectLabels(
@@ -232,51 +281,141 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 			.collect(Collectors.toList());
 	}
 
-	private void trainStack(Training training, List<String> classes, Labeling labeling,
-		ImgPlus<?> image, FeatureCalculator featuresCalculator)
+	/**
+	 * Splits the image into time points, and into z-slices if the features are
+	 * 2D. Slices without labels are skipped, based on the sparsity pattern of
+	 * the labeling, before any features are calculated.
+	 */
+	private void collectFrames(List<Frame> frames, List<String> classes,
+		Labeling labeling, ImgPlus<?> image, Frame.Source source)
 	{
-		if (ImgPlusViewsOld.hasAxis(image, Axes.TIME)) {
-			List<ImgPlus<?>> imageSlices = ImgPlusViewsOld.hyperSlices(image, Axes.TIME);
-			List<Labeling> labelSlices = Labelings.slices(labeling);
-			for (int i = 0; i < imageSlices.size(); i++) {
-				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator);
-			}
-		}
+		if (ImgPlusViewsOld.hasAxis(image, Axes.TIME))
+			collectSlices(frames, classes, labeling, image, Axes.TIME, source);
 		else if (ImgPlusViewsOld.hasAxis(image, Axes.Z) && featureSettings.globals()
 			.numDimensions() == 2)
-		{
-			List<ImgPlus<?>> imageSlices = ImgPlusViewsOld.hyperSlices(image, Axes.Z);
-			List<Labeling> labelSlices = Labelings.slices(labeling);
-			for (int i = 0; i < imageSlices.size(); i++) {
-				trainStack(training, classes, labelSlices.get(i), imageSlices.get(i), featuresCalculator);
-			}
-		}
+			collectSlices(frames, classes, labeling, image, Axes.Z, source);
 		else {
-			trainFrame(training, classes, labeling, image, featuresCalculator);
+			SparseRandomAccessIntType classIndices = getClassIndices(labeling,
+				classes);
+			if (classIndices.sparsityPattern().inside().size() > 0)
+				frames.add(new Frame(image, classIndices, source));
 		}
 	}
 
-	private void trainFrame(Training training, List<String> classes, Labeling labeling,
-		ImgPlus<?> image, FeatureCalculator featuresCalculator)
+	private void collectSlices(List<Frame> frames, List<String> classes,
+		Labeling labeling, ImgPlus<?> image, AxisType axis, Frame.Source source)
 	{
-		SparseRandomAccessIntType classIndices = getClassIndices(labeling, classes);
-		if (classIndices.sparsityPattern().inside().size() == 0)
-			return;
-		DiskCachedCellImg<FloatType, ?> cachedFeatureBlock = cachedFeatureBlock(featuresCalculator,
-			image);
+		long min = image.min(image.dimensionIndex(axis));
+		Map<Integer, Labeling> labelSlices = Labelings.nonEmptySlices(labeling);
+		for (Map.Entry<Integer, Labeling> entry : labelSlices.entrySet()) {
+			long position = min + entry.getKey();
+			ImgPlus<?> imageSlice = ImgPlusViewsOld.hyperSlice(image, axis,
+				position);
+			collectFrames(frames, classes, entry.getValue(), imageSlice, source
+				.slice(axis, position));
+		}
+	}
+
+	/**
+	 * Adds the labeled pixels of all frames as samples to the training.
+	 * <p>
+	 * The frames are processed in groups, such that the features buffered for
+	 * one group roughly fit into the {@link #setSampleMemoryBudget memory
+	 * budget}. The labeled pixels of a group are sorted by the cells of the
+	 * feature images. The cells of a group are computed in parallel, and the
+	 * features of the labeled pixels in a cell are copied into one batch. Each
+	 * batch is added to the training as soon as it and all the batches before it
+	 * are ready. This keeps the training deterministic, and only a few batches
+	 * are held in memory at a time, see {@link #MAX_PENDING_BATCHES_PER_THREAD}.
+	 * <p>
+	 * The feature images are taken from the {@link FeatureCache}. Retraining on
+	 * the same images therefore only calculates the features of cells, that
+	 * haven't been used before.
+	 */
+	private void addSamples(Training training, List<Frame> frames,
+		FeatureCalculator featureCalculator)
+	{
+		int count = featureCalculator.count();
+		long bytesPerSample = (long) count * Float.BYTES;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
 		try {
-			RandomAccessible<? extends Composite<FloatType>> features = Views.collapse(
-				cachedFeatureBlock);
-			addSamples(training, classIndices, features);
+			int i = 0;
+			while (i < frames.size()) {
+				List<Frame> group = new ArrayList<>();
+				long bytes = 0;
+				do {
+					Frame frame = frames.get(i++);
+					group.add(frame);
+					bytes += frame.numSamples() * bytesPerSample;
+				}
+				while (i < frames.size() && bytes + frames.get(i).numSamples() *
+					bytesPerSample <= sampleMemoryBudget);
+				addSamplesOfGroup(training, group, featureCalculator, executor);
+			}
 		}
 		finally {
-			cachedFeatureBlock.shutdown();
+			executor.shutdownNow();
 		}
 	}
 
+	private void addSamplesOfGroup(Training training, List<Frame> frames,
+		FeatureCalculator featureCalculator, ExecutorService executor)
+	{
+		int count = featureCalculator.count();
+		List<CellSamples> cells = new ArrayList<>();
+		for (Frame frame : frames) {
+			DiskCachedCellImg<FloatType, ?> featureBlock = featureCache.get(
+				frame.source.image, frame.source.slice, () -> cachedFeatureBlock(
+					featureCalculator, frame));
+			cells.addAll(groupByCell(frame.classIndices, featureBlock));
+		}
+		int maxPending = MAX_PENDING_BATCHES_PER_THREAD * numThreads;
+		Deque<Future<RandomAccessibleInterval<FloatType>>> pending =
+			new ArrayDeque<>();
+		int submitted = 0;
+		for (CellSamples cell : cells) {
+			while (submitted < cells.size() && pending.size() < maxPending) {
+				CellSamples next = cells.get(submitted++);
+				pending.add(executor.submit(() -> Parallelization.runSingleThreaded(
+					() -> next.copyFeatures(count))));
+			}
+			RandomAccess<? extends Composite<FloatType>> ra = Views.collapse(
+				getBatch(pending.remove())).randomAccess();
+			for (int sample = 0; sample < cell.size(); sample++) {
+				ra.setPosition(sample, 0);
+				training.add(ra.get(), cell.classIndices.get(sample));
+			}
+		}
+	}
+
+	private static RandomAccessibleInterval<FloatType> getBatch(
+		Future<RandomAccessibleInterval<FloatType>> batch)
+	{
+		try {
+			return batch.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Creates the feature image of a frame. The cell loader only keeps a weak
+	 * reference to the image of the training data, such that the cached feature
+	 * image doesn't keep it alive. The {@link FeatureCache} removes the feature
+	 * image, once the image of the training data is garbage collected.
+	 */
 	private DiskCachedCellImg<FloatType, ?> cachedFeatureBlock(FeatureCalculator feature,
-		ImgPlus<?> image)
+		Frame frame)
 	{
+		ImgPlus<?> image = frame.image;
 		int count = feature.count();
 		if (count <= 0) throw new IllegalArgumentException();
 		long[] dimensions = Intervals.dimensionsAsLongArray(feature.outputIntervalFromInput(image));
@@ -287,49 +426,202 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 			.options().cellDimensions(cellDimensions).dirtyAccesses(false);
 		final DiskCachedCellImgFactory<FloatType> featureFactory =
 			new DiskCachedCellImgFactory<>(new FloatType(), featureOpts);
-		RandomAccessible<?> input = Views.extendBorder(image);
-		CellLoader<FloatType> loader = target -> feature.apply(input, target);
+		WeakReference<ImgPlus<?>> source = new WeakReference<>(frame.source.image);
+		List<AxisType> axes = frame.source.axes;
+		List<Long> slice = frame.source.slice;
+		CellLoader<FloatType> loader = target -> {
+			ImgPlus<?> sourceImage = source.get();
+			if (sourceImage == null)
+				throw new IllegalStateException(
+					"The image of the cached features was released.");
+			RandomAccessible<?> input = Views.extendBorder(Frame.Source.slice(
+				sourceImage, axes, slice));
+			feature.apply(input, target);
+		};
 		return featureFactory.create(dimensions, loader);
 	}
 
-	private void addSamples(Training training,
+	private static List<CellSamples> groupByCell(
 		SparseRandomAccessIntType classIndices,
-		RandomAccessible<? extends Composite<FloatType>> features)
+		DiskCachedCellImg<FloatType, ?> featureBlock)
 	{
-		Cursor<IntType> classIndicesCursor = classIndices.sparseCursor();
-		RandomAccess<? extends Composite<? extends RealType<?>>> ra = features
-			.randomAccess();
-		while (classIndicesCursor.hasNext()) {
-			int classIndex = classIndicesCursor.next().get();
-			ra.setPosition(classIndicesCursor);
-			training.add(ra.get(), classIndex);
+		RandomAccessible<? extends Composite<FloatType>> features = Views.collapse(
+			featureBlock);
+		CellGrid cellGrid = featureBlock.getCellGrid();
+		int n = classIndices.numDimensions();
+		long[] gridDimensions = Arrays.copyOf(cellGrid.getGridDimensions(), n);
+		long[] position = new long[n];
+		long[] cellPosition = new long[n];
+		Map<Long, CellSamples> cells = new TreeMap<>();
+		long lastCellIndex = -1;
+		CellSamples lastCell = null;
+		Cursor<IntType> cursor = classIndices.sparseCursor();
+		while (cursor.hasNext()) {
+			int classIndex = cursor.next().get();
+			cursor.localize(position);
+			for (int d = 0; d < n; d++)
+				cellPosition[d] = position[d] / cellGrid.cellDimension(d);
+			long cellIndex = IntervalIndexer.positionToIndex(cellPosition,
+				gridDimensions);
+			if (lastCell == null || cellIndex != lastCellIndex) {
+				lastCell = cells.computeIfAbsent(cellIndex, ignore -> new CellSamples(
+					n, features));
+				lastCellIndex = cellIndex;
+			}
+			lastCell.add(position, classIndex);
 		}
+		return new ArrayList<>(cells.values());
 	}
 
+	/**
+	 * Returns an image of the class index of each labeled pixel. If a pixel has
+	 * multiple labels, the class with the smallest index wins. The regions of
+	 * the classes are combined as bitmaps, in the order of the classes, and
+	 * only the labeled pixels are visited.
+	 */
 	private SparseRandomAccessIntType getClassIndices(Labeling labeling,
 		List<String> classes)
 	{
 		SparseRandomAccessIntType result = new SparseRandomAccessIntType(labeling,
 			-1);
-		Map<Set<Label>, Integer> classIndices = new HashMap<>();
-		Function<Set<Label>, Integer> compute = set -> set.stream().mapToInt(
-			label -> classes.indexOf(label.name())).filter(i -> i >= 0).min().orElse(
-				-1);
-		Cursor<?> cursor = labeling.sparsityCursor();
-		RandomAccess<LabelingType<Label>> randomAccess = labeling.randomAccess();
 		RandomAccess<IntType> out = result.randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			randomAccess.setPosition(cursor);
-			Set<Label> labels = randomAccess.get();
-			if (labels.isEmpty()) continue;
-			Integer classIndex = classIndices.computeIfAbsent(labels, compute);
-			out.setPosition(cursor);
-			out.get().set(classIndex);
+		Map<Label, SparseIterableRegion> regions = labeling.sparseIterableRegions();
+		SparseIterableRegion assigned = new SparseIterableRegion(labeling);
+		for (int classIndex = 0; classIndex < classes.size(); classIndex++) {
+			SparseIterableRegion region = new SparseIterableRegion(labeling);
+			for (Map.Entry<Label, SparseIterableRegion> entry : regions.entrySet())
+				if (entry.getKey().name().equals(classes.get(classIndex)))
+					region.or(entry.getValue());
+			region.andNot(assigned);
+			assigned.or(region);
+			Cursor<Void> cursor = region.inside().cursor();
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				out.setPosition(cursor);
+				out.get().set(classIndex);
+			}
 		}
 		return result;
 	}
 
+	/**
+	 * A time point or slice of the training data, that contains labeled pixels.
+	 */
+	private static class Frame {
+
+		private final ImgPlus<?> image;
+
+		private final SparseRandomAccessIntType classIndices;
+
+		private final Source source;
+
+		private Frame(ImgPlus<?> image, SparseRandomAccessIntType classIndices,
+			Source source)
+		{
+			this.image = image;
+			this.classIndices = classIndices;
+			this.source = source;
+		}
+
+		private long numSamples() {
+			return classIndices.sparsityPattern().inside().size();
+		}
+
+		/**
+		 * Identifies a frame across training runs: The image of the training
+		 * data, and the axes and positions used to slice it.
+		 */
+		private static class Source {
+
+			private final ImgPlus<?> image;
+
+			private final List<AxisType> axes;
+
+			private final List<Long> slice;
+
+			private Source(ImgPlus<?> image) {
+				this(image, Collections.emptyList(), Collections.emptyList());
+			}
+
+			private Source(ImgPlus<?> image, List<AxisType> axes,
+				List<Long> slice)
+			{
+				this.image = image;
+				this.axes = axes;
+				this.slice = slice;
+			}
+
+			private Source slice(AxisType axis, long position) {
+				List<AxisType> axes = new ArrayList<>(this.axes);
+				axes.add(axis);
+				List<Long> positions = new ArrayList<>(slice);
+				positions.add(position);
+				return new Source(image, axes, positions);
+			}
+
+			/**
+			 * Slices the given image, along the given axes at the given positions.
+			 */
+			private static ImgPlus<?> slice(ImgPlus<?> image, List<AxisType> axes,
+				List<Long> slice)
+			{
+				for (int i = 0; i < axes.size(); i++)
+					image = ImgPlusViewsOld.hyperSlice(image, axes.get(i), slice.get(i));
+				return image;
+			}
+		}
+	}
+
+	/**
+	 * The labeled pixels, that belong to one cell of the feature image.
+	 */
+	private static class CellSamples {
+
+		private final int numDimensions;
+
+		private final RandomAccessible<? extends Composite<FloatType>> features;
+
+		private final TLongArrayList positions = new TLongArrayList();
+
+		private final TIntArrayList classIndices = new TIntArrayList();
+
+		private CellSamples(int numDimensions,
+			RandomAccessible<? extends Composite<FloatType>> features)
+		{
+			this.numDimensions = numDimensions;
+			this.features = features;
+		}
+
+		private void add(long[] position, int classIndex) {
+			positions.add(position);
+			classIndices.add(classIndex);
+		}
+
+		private int size() {
+			return classIndices.size();
+		}
+
+		/**
+		 * Copies the features of the pixels into an image. The first dimension
+		 * is the sample index, the second dimension is the feature index.
+		 */
+		private RandomAccessibleInterval<FloatType> copyFeatures(int count) {
+			int size = size();
+			float[] data = new float[size * count];
+			long[] position = new long[numDimensions];
+			RandomAccess<? extends Composite<FloatType>> ra = features
+				.randomAccess();
+			for (int sample = 0; sample < size; sample++) {
+				positions.toArray(position, sample * numDimensions, numDimensions);
+				ra.setPosition(position);
+				Composite<FloatType> composite = ra.get();
+				for (int feature = 0; feature < count; feature++)
+					data[sample + size * feature] = composite.get(feature).get();
+			}
+			return ArrayImgs.floats(data, size, count);
+		}
+	}
+
 	@Override
 	public boolean isTrained() {
 		return segmenter != null;
@@ -346,6 +638,7 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 			.fromJson(context, GsonUtils.read(path));
 		segmenter.setUseGpu(useGpu);
 		featureSettings = segmenter.features().settings();
+		updateFeatureCacheSettings();
 	}
 
 	public sc.fiji.labkit.pixel_classification.classification.Segmenter getSegmenter() {
@@ -372,6 +665,13 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 		return useGpu;
 	}
 
+	@Override
+	public boolean segmentsByMaximumProbability() {
+		// NB: The random forest segments a pixel by the class of highest
+		// probability, ties are resolved by the lowest class index.
+		return true;
+	}
+
 	// -- Helper methods --
 
 	private static List<Double> getPixelSize(ImgPlus<?> image) {
@@ -440,6 +740,27 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 
 	public void setFeatureSettings(FeatureSettings featureSettings) {
 		this.featureSettings = featureSettings;
+		updateFeatureCacheSettings();
+	}
+
+	/**
+	 * Sets the number of threads, that are used to calculate the features of
+	 * the training samples. The default is the number of available processors.
+	 */
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("numThreads must be positive.");
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Sets the number of bytes, that may be used to buffer the features of the
+	 * training samples, before they are added to the training. More time
+	 * points and slices are processed in parallel, if the budget is larger. The
+	 * default is a quarter of the maximum heap size.
+	 */
+	public void setSampleMemoryBudget(long bytes) {
+		this.sampleMemoryBudget = bytes;
 	}
 
 	// -- Helper methods --
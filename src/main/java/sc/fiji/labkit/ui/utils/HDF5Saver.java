@@ -65,10 +65,15 @@ import net.imglib2.view.Views;
 import sc.fiji.labkit.ui.utils.progress.DummyProgressWriter;
 
 import java.io.File;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -105,10 +110,22 @@ import java.util.stream.IntStream;
  * saver.writeAll();
  * </pre>
  * <p>
+ * The partitions are separate HDF5 files, {@link #writeAllPartitions()} can
+ * therefore write them concurrently. Each partition gets its own writer thread,
+ * and the cells of each partition are calculated by separate threads. The
+ * calls to the HDF5 library are still serialized, but the calculation of the
+ * image, for example a segmentation, scales with the number of threads:
+ * </p>
+ *
+ * <pre>
+ * HDF5Saver saver = new HDF5Saver(result, xml.getAbsolutePath());
+ * saver.setPartitions(1, 1);
+ * saver.setNumberOfThreads(4);
+ * saver.writeAll();
+ * </pre>
+ * <p>
  * And there is the option to write each partition individually. Which is useful
- * when you want to distribute the task between multiple processes. Please note
- * using multi threading want give you a speed up. As the underlying library for
- * HDF5 writing doesn't support multi threading.
+ * when you want to distribute the task between multiple processes.
  * </p>
  * 
  * <pre>
@@ -133,6 +150,7 @@ public class HDF5Saver {
 	private final SpimDataMinimal data;
 	private ArrayList<Partition> partitions = null;
 	private Map<Integer, ExportMipmapInfo> mipmapInfo;
+	private int numberOfThreads = 1;
 
 	public HDF5Saver(RandomAccessibleInterval<?> image, String filename) {
 		final File file = new File(filename);
@@ -156,6 +174,16 @@ public class HDF5Saver {
 		this.progressWriter = progressWriter;
 	}
 
+	/**
+	 * Sets the number of partitions that are written concurrently by
+	 * {@link #writeAllPartitions()}. The default is one.
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		if (numberOfThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be positive.");
+		this.numberOfThreads = numberOfThreads;
+	}
+
 	public void writeAll() {
 		writeAllPartitions();
 		writeXmlAndHdf5();
@@ -255,6 +283,10 @@ public class HDF5Saver {
 	public void writeAllPartitions() {
 		if (partitions == null) return;
 		int size = numberOfPartitions();
+		if (numberOfThreads > 1 && size > 1) {
+			writeAllPartitionsConcurrently();
+			return;
+		}
 		for (int i = 0; i < size; ++i) {
 			double start = 0.95 * i / size;
 			double end = 0.95 * (i + 1) / size;
@@ -264,6 +296,39 @@ public class HDF5Saver {
 		}
 	}
 
+	private void writeAllPartitionsConcurrently() {
+		int size = numberOfPartitions();
+		double[] progress = new double[size];
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+			numberOfThreads, size));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < size; ++i) {
+				final int index = i;
+				futures.add(executor.submit(() -> writePartition(index,
+					new PartitionProgressWriter(progress, index))));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public int numberOfTimepoints() {
+		return data.getSequenceDescription().getTimePoints().size();
+	}
+
 	public int numberOfPartitions() {
 		return partitions == null ? 0 : partitions.size();
 	}
@@ -277,6 +342,43 @@ public class HDF5Saver {
 			mipmapInfo, true, partitions.get(index), null, null, 8, progressWriter);
 	}
 
+	/**
+	 * Reports the progress of one partition, as part of the progress of all
+	 * partitions that are written concurrently.
+	 */
+	private class PartitionProgressWriter implements ProgressWriter {
+
+		private final double[] progress;
+
+		private final int index;
+
+		private PartitionProgressWriter(double[] progress, int index) {
+			this.progress = progress;
+			this.index = index;
+		}
+
+		@Override
+		public PrintStream out() {
+			return progressWriter.out();
+		}
+
+		@Override
+		public PrintStream err() {
+			return progressWriter.err();
+		}
+
+		@Override
+		public void setProgress(double completionRatio) {
+			synchronized (progress) {
+				progress[index] = completionRatio;
+				double sum = 0;
+				for (double p : progress)
+					sum += p;
+				progressWriter.setProgress(0.95 * sum / progress.length);
+			}
+		}
+	}
+
 	private static String removeExtension(String filename, String... extensions) {
 		for (String extension : extensions) {
 			if (filename.endsWith("." + extension)) return filename.substring(0,
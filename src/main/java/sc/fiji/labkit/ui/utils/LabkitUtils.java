@@ -48,6 +48,12 @@ import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 /*
  * @author Matthias Arzt
  */
@@ -129,4 +135,20 @@ public class LabkitUtils {
 		return new ValuePair<>(min, max);
 	}
 
+	/**
+	 * Moves the source file to the target, replacing the target. The move is
+	 * atomic, if the file system supports it. This makes sure that the target
+	 * file is either missing or complete, even if the process crashes.
+	 */
+	public static void moveAtomically(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 }
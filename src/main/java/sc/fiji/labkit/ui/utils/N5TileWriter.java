@@ -0,0 +1,342 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link TileWriter} that writes the image as a gzip compressed N5 dataset. N5
+ * is a directory based format: Each block of the image is stored in a separate
+ * file. The dataset can therefore be read lazily, for example with the
+ * n5-imglib2 library, BigDataViewer or Fiji's "File &gt; Import &gt; HDF5/N5/Zarr".
+ * <p>
+ * Every tile passed to {@link #write} must be exactly one block of the block
+ * grid given in the constructor. Blocks at the border of the image may be
+ * smaller. As each block goes to its own file, the blocks can be written
+ * concurrently without any locking. A block is first written to a temporary
+ * file and then renamed. An interrupted export therefore never leaves a
+ * partially written block behind.
+ * <p>
+ * An existing dataset in the container is deleted, unless it has the same
+ * dimensions, block size, data type and resume key. In that case, the export
+ * can be resumed by skipping the blocks for which {@link #isWritten} returns
+ * true.
+ */
+public class N5TileWriter<T extends RealType<T>> implements TileWriter<T> {
+
+	private static final String TMP_PREFIX = ".labkit-tmp-";
+
+	private static final String ATTRIBUTES = "attributes.json";
+
+	private final File directory;
+
+	private final long[] dimensions;
+
+	private final int[] blockSize;
+
+	private final DataType dataType;
+
+	private final String resumeKey;
+
+	/**
+	 * Creates a writer, that deletes any existing dataset in the container.
+	 *
+	 * @see #N5TileWriter(File, Interval, int[], RealType, String)
+	 */
+	public N5TileWriter(File directory, Interval interval, int[] blockSize,
+		T type) throws IOException
+	{
+		this(directory, interval, blockSize, type, null);
+	}
+
+	/**
+	 * @param directory The directory of the N5 container. It is created if it
+	 *          doesn't exist. The dataset is stored in the root of the container.
+	 * @param interval Size of the complete image.
+	 * @param blockSize Size of the blocks.
+	 * @param type Pixel type. Supported are the signed and unsigned integer
+	 *          types of 8, 16, 32 or 64 bits, {@link FloatType} and
+	 *          {@link DoubleType}.
+	 * @param resumeKey Identifies the image, that is written, or null. The
+	 *          blocks of an existing dataset are only kept, if the dataset was
+	 *          written with the same resume key and the same attributes.
+	 */
+	public N5TileWriter(File directory, Interval interval, int[] blockSize,
+		T type, String resumeKey) throws IOException
+	{
+		if (blockSize.length != interval.numDimensions())
+			throw new IllegalArgumentException(
+				"Block size must have the same number of dimensions as the image.");
+		this.directory = directory;
+		this.dimensions = Intervals.dimensionsAsLongArray(interval);
+		this.blockSize = blockSize.clone();
+		this.dataType = DataType.of(type);
+		this.resumeKey = resumeKey;
+		Files.createDirectories(directory.toPath());
+		String attributes = attributes();
+		if (resumeKey != null && attributes.equals(readAttributes(directory)))
+			return;
+		clear();
+		writeAttributes(attributes);
+	}
+
+	/**
+	 * Returns true if the given container holds a dataset, that was written
+	 * with the given resume key.
+	 */
+	public static boolean hasResumeKey(File directory, String resumeKey) {
+		String attributes = readAttributes(directory);
+		return attributes != null && attributes.contains(resumeKeyAttribute(
+			resumeKey));
+	}
+
+	private String attributes() {
+		return "{\"n5\":\"2.5.0\"," + //
+			"\"dimensions\":" + Arrays.toString(dimensions).replace(" ", "") + "," +
+			"\"blockSize\":" + Arrays.toString(blockSize).replace(" ", "") + "," +
+			"\"dataType\":\"" + dataType.name + "\"," +
+			"\"compression\":{\"type\":\"gzip\",\"level\":-1}" +
+			(resumeKey == null ? "" : "," + resumeKeyAttribute(resumeKey)) + "}";
+	}
+
+	private static String resumeKeyAttribute(String resumeKey) {
+		return "\"labkitResumeKey\":\"" + resumeKey.replace("\\", "\\\\")
+			.replace("\"", "\\\"") + "\"";
+	}
+
+	private static String readAttributes(File directory) {
+		try {
+			return new String(Files.readAllBytes(new File(directory, ATTRIBUTES)
+				.toPath()), StandardCharsets.UTF_8);
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the attributes, blocks and temporary files of the dataset in the
+	 * root of the container. Other files in the directory are kept.
+	 */
+	private void clear() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.equals(ATTRIBUTES) || name.startsWith(TMP_PREFIX) || name
+				.matches("[0-9]+"))
+				deleteRecursively(file.toPath());
+		}
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		List<Path> content;
+		try (Stream<Path> stream = Files.walk(path)) {
+			content = stream.sorted(Comparator.reverseOrder()).collect(Collectors
+				.toList());
+		}
+		for (Path file : content)
+			Files.deleteIfExists(file);
+	}
+
+	private void writeAttributes(String attributes) throws IOException {
+		File file = new File(directory, ATTRIBUTES);
+		File tmp = File.createTempFile(TMP_PREFIX, ".json", directory);
+		try (Writer writer = Files.newBufferedWriter(tmp.toPath(),
+			StandardCharsets.UTF_8))
+		{
+			writer.write(attributes);
+		}
+		LabkitUtils.moveAtomically(tmp, file);
+	}
+
+	/**
+	 * Returns true if the block with the given interval was already written
+	 * completely.
+	 */
+	public boolean isWritten(Interval block) {
+		return blockFile(block).isFile();
+	}
+
+	/**
+	 * Returns the file, where the block with the given interval is stored.
+	 */
+	public File blockFile(Interval block) {
+		String path = Arrays.stream(gridPosition(block)).mapToObj(Long::toString)
+			.collect(Collectors.joining(File.separator));
+		return new File(directory, path);
+	}
+
+	private long[] gridPosition(Interval block) {
+		long[] position = new long[dimensions.length];
+		for (int d = 0; d < position.length; d++) {
+			if (block.min(d) % blockSize[d] != 0)
+				throw new IllegalArgumentException("Tile " + Intervals.toString(block) +
+					" is not aligned to the block grid.");
+			position[d] = block.min(d) / blockSize[d];
+		}
+		return position;
+	}
+
+	@Override
+	public void write(RandomAccessibleInterval<T> tile) throws IOException {
+		File file = blockFile(tile);
+		File parent = file.getParentFile();
+		Files.createDirectories(parent.toPath());
+		File tmp = File.createTempFile(TMP_PREFIX, "", parent);
+		try {
+			try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp))))
+			{
+				writeHeader(output, tile);
+				writeData(output, tile);
+			}
+			LabkitUtils.moveAtomically(tmp, file);
+		}
+		finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	private void writeHeader(DataOutputStream output, Interval tile)
+		throws IOException
+	{
+		output.writeShort(0); // block mode: default
+		output.writeShort(tile.numDimensions());
+		for (int d = 0; d < tile.numDimensions(); d++)
+			output.writeInt((int) tile.dimension(d));
+	}
+
+	private void writeData(OutputStream output, RandomAccessibleInterval<T> tile)
+		throws IOException
+	{
+		GZIPOutputStream gzip = new GZIPOutputStream(output, 1 << 16);
+		DataOutputStream data = new DataOutputStream(gzip);
+		Cursor<T> cursor = Views.flatIterable(tile).cursor();
+		while (cursor.hasNext())
+			dataType.write(data, cursor.next());
+		data.flush();
+		gzip.finish();
+	}
+
+	@Override
+	public void close() {
+		// nothing to do, every block is closed after it's written.
+	}
+
+	private enum DataType {
+
+		UINT8("uint8", 1), INT8("int8", 1), UINT16("uint16", 2),
+		INT16("int16", 2), UINT32("uint32", 4), INT32("int32", 4),
+		UINT64("uint64", 8), INT64("int64", 8), FLOAT32("float32", 4),
+		FLOAT64("float64", 8);
+
+		private final String name;
+
+		private final int bytes;
+
+		DataType(String name, int bytes) {
+			this.name = name;
+			this.bytes = bytes;
+		}
+
+		private static DataType of(RealType<?> type) {
+			if (type instanceof UnsignedByteType) return UINT8;
+			if (type instanceof ByteType) return INT8;
+			if (type instanceof UnsignedShortType) return UINT16;
+			if (type instanceof ShortType) return INT16;
+			if (type instanceof UnsignedIntType) return UINT32;
+			if (type instanceof IntType) return INT32;
+			if (type instanceof UnsignedLongType) return UINT64;
+			if (type instanceof LongType) return INT64;
+			if (type instanceof FloatType) return FLOAT32;
+			if (type instanceof DoubleType) return FLOAT64;
+			throw new IllegalArgumentException("Pixel type not supported: " + type
+				.getClass().getSimpleName());
+		}
+
+		private void write(DataOutputStream output, RealType<?> pixel)
+			throws IOException
+		{
+			if (this == FLOAT32) output.writeFloat(pixel.getRealFloat());
+			else if (this == FLOAT64) output.writeDouble(pixel.getRealDouble());
+			else {
+				long value = ((IntegerType<?>) pixel).getIntegerLong();
+				switch (bytes) {
+					case 1:
+						output.writeByte((int) value);
+						break;
+					case 2:
+						output.writeShort((int) value);
+						break;
+					case 4:
+						output.writeInt((int) value);
+						break;
+					default:
+						output.writeLong(value);
+				}
+			}
+		}
+	}
+}
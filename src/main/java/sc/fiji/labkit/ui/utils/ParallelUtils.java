@@ -72,8 +72,39 @@ public class ParallelUtils {
 		int[] cellDimensions,
 		Consumer<RandomAccessibleInterval<T>> operation, ProgressWriter progressWriter)
 	{
-		List<Interval> cells = getCells(new CellGrid(Intervals.dimensionsAsLongArray(image),
-			cellDimensions));
+		forEachCell(image, cellDimensions, cell -> operation.accept(Views.interval(
+			image, cell)), progressWriter);
+	}
+
+	/**
+	 * Divides the given interval into cells of size cellDimensions and executes
+	 * the given operation for each cell. Just like
+	 * {@link #applyOperationOnCells}, but the operation only gets the interval of
+	 * the cell. This allows the operation to allocate memory only for the cells
+	 * that are currently processed. Imglib2 {@link Parallelization} uses a work
+	 * stealing thread pool by default, idle threads therefore take over cells
+	 * from busy threads.
+	 */
+	public static void forEachCell(Interval interval, int[] cellDimensions,
+		Consumer<Interval> operation, ProgressWriter progressWriter)
+	{
+		forEachCell(interval, cellDimensions, 0, 1, operation, progressWriter);
+	}
+
+	/**
+	 * Same as {@link #forEachCell(Interval, int[], Consumer, ProgressWriter)},
+	 * but only processes every numberOfShards-th cell, starting with the cell
+	 * at index shardIndex. This allows to split the work between multiple
+	 * processes, for example the tasks of a cluster array job. All shards
+	 * together process each cell exactly once.
+	 */
+	public static void forEachCell(Interval interval, int[] cellDimensions,
+		int shardIndex, int numberOfShards, Consumer<Interval> operation,
+		ProgressWriter progressWriter)
+	{
+		List<Interval> cells = shard(getCells(new CellGrid(Intervals
+			.dimensionsAsLongArray(interval), cellDimensions)), shardIndex,
+			numberOfShards);
 		AtomicInteger numStarted = new AtomicInteger(0);
 		AtomicInteger numFinished = new AtomicInteger(0);
 		int n = cells.size();
@@ -82,7 +113,7 @@ public class ParallelUtils {
 			if (cancelled.get()) throw new CancellationException();
 			try {
 				progressWriter.out().println("Chunk " + numStarted.incrementAndGet() + " of " + n);
-				operation.accept(Views.interval(image, cell));
+				operation.accept(Intervals.translate(cell, Intervals.minAsLongArray(interval)));
 				progressWriter.setProgress((double) numFinished.incrementAndGet() / n);
 			}
 			catch (CancellationException e) {
@@ -93,6 +124,33 @@ public class ParallelUtils {
 		progressWriter.setProgress(1.0);
 	}
 
+	/**
+	 * Returns every numberOfShards-th element of the list, starting with the
+	 * element at index shardIndex.
+	 */
+	public static <T> List<T> shard(List<T> list, int shardIndex,
+		int numberOfShards)
+	{
+		if (shardIndex < 0 || shardIndex >= numberOfShards)
+			throw new IllegalArgumentException("Shard index " + shardIndex +
+				" is out of range for " + numberOfShards + " shards.");
+		if (numberOfShards == 1)
+			return list;
+		int size = (list.size() - shardIndex + numberOfShards - 1) / numberOfShards;
+		return new AbstractList<T>() {
+
+			@Override
+			public T get(int i) {
+				return list.get(shardIndex + i * numberOfShards);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
 	private static List<Interval> getCells(CellGrid cellGrid) {
 		long numCells = Intervals.numElements(cellGrid.getGridDimensions());
 		return new AbstractList<Interval>() {
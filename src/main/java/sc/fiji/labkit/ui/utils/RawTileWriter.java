@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link TileWriter} that writes the image as raw pixel data, without header,
+ * in little endian byte order and with the first axis varying fastest. Such a
+ * file can for example be imported with ImageJ's "File &gt; Import &gt; Raw...".
+ * <p>
+ * Each row of a tile is written with a single positional write, so tiles can
+ * be written concurrently and in any order. This even works for multiple
+ * processes, that write disjoint tiles of the same image into the same file.
+ * An existing file is therefore not cleared, but only cut to the size of the
+ * image.
+ */
+public class RawTileWriter<T extends RealType<T>> implements TileWriter<T> {
+
+	private final FileChannel channel;
+
+	private final long[] dimensions;
+
+	private final int bytesPerPixel;
+
+	/**
+	 * @param file The file to write to.
+	 * @param interval Size of the complete image.
+	 * @param type Pixel type. Supported are integer types of 8, 16, 32 or 64
+	 *          bits, {@link FloatType} and {@link DoubleType}.
+	 */
+	public RawTileWriter(File file, Interval interval, T type) throws IOException {
+		this.dimensions = Intervals.dimensionsAsLongArray(interval);
+		this.bytesPerPixel = bytesPerPixel(type);
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE);
+		long size = Intervals.numElements(interval) * bytesPerPixel;
+		if (channel.size() > size)
+			channel.truncate(size);
+	}
+
+	private static int bytesPerPixel(RealType<?> type) {
+		if (type instanceof IntegerType) {
+			int bits = type.getBitsPerPixel();
+			if (bits == 8 || bits == 16 || bits == 32 || bits == 64)
+				return bits / 8;
+		}
+		if (type instanceof FloatType)
+			return 4;
+		if (type instanceof DoubleType)
+			return 8;
+		throw new IllegalArgumentException("Pixel type not supported: " + type
+			.getClass().getSimpleName());
+	}
+
+	@Override
+	public void write(RandomAccessibleInterval<T> tile) throws IOException {
+		int rowLength = (int) tile.dimension(0);
+		ByteBuffer buffer = ByteBuffer.allocate(rowLength * bytesPerPixel).order(
+			ByteOrder.LITTLE_ENDIAN);
+		boolean isFloat = tile.getType() instanceof FloatType;
+		Cursor<T> cursor = Views.flatIterable(tile).localizingCursor();
+		long[] position = new long[dimensions.length];
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			if (cursor.getLongPosition(0) == tile.min(0))
+				cursor.localize(position);
+			putPixel(buffer, cursor.get(), isFloat);
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				long offset = IntervalIndexer.positionToIndex(position, dimensions) *
+					bytesPerPixel;
+				while (buffer.hasRemaining())
+					offset += channel.write(buffer, offset);
+				buffer.clear();
+			}
+		}
+	}
+
+	private void putPixel(ByteBuffer buffer, T pixel, boolean isFloat) {
+		switch (bytesPerPixel) {
+			case 1:
+				buffer.put((byte) ((IntegerType<?>) pixel).getIntegerLong());
+				break;
+			case 2:
+				buffer.putShort((short) ((IntegerType<?>) pixel).getIntegerLong());
+				break;
+			case 4:
+				if (isFloat)
+					buffer.putFloat(pixel.getRealFloat());
+				else
+					buffer.putInt((int) ((IntegerType<?>) pixel).getIntegerLong());
+				break;
+			default:
+				if (pixel instanceof DoubleType)
+					buffer.putDouble(pixel.getRealDouble());
+				else
+					buffer.putLong(((IntegerType<?>) pixel).getIntegerLong());
+		}
+	}
+
+	/**
+	 * Flushes the written pixels to the storage device, and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.force(false);
+		channel.close();
+	}
+}
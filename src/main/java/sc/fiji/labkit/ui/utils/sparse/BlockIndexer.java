@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.util.Intervals;
+
+/**
+ * {@link BlockIndexer} splits an {@link Interval} into a grid of equally sized
+ * blocks. The block size is a power of two in every dimension. A pixel is
+ * addressed by the index of its block, and by its index within that block.
+ * <p>
+ * The block size is chosen such that a block contains roughly
+ * {@code 2^blockBits} pixels, and the number of blocks stays small enough to
+ * be stored in an array.
+ *
+ * @see SparseRandomAccessIntType
+ */
+public class BlockIndexer {
+
+	/**
+	 * Default number of bits of the index within a block. A block contains
+	 * 4096 pixels, for example 64x64 in 2D or 16x16x16 in 3D.
+	 */
+	public static final int DEFAULT_BLOCK_BITS = 12;
+
+	private static final int MAX_NUM_BLOCKS = 1 << 24;
+
+	private final int n;
+
+	private final long[] min;
+
+	private final long[] dimensions;
+
+	private final int[] bits;
+
+	private final int[] mask;
+
+	private final int[] localShift;
+
+	private final long[] gridSize;
+
+	private final int[] gridStep;
+
+	private final int numBlocks;
+
+	private final int blockSize;
+
+	public BlockIndexer(Interval interval) {
+		this(interval, DEFAULT_BLOCK_BITS);
+	}
+
+	public BlockIndexer(Interval interval, int blockBits) {
+		this(interval, initBits(Intervals.dimensionsAsLongArray(interval),
+			blockBits));
+	}
+
+	/**
+	 * @param bits The block size in dimension d is {@code 2^bits[d]}.
+	 */
+	public BlockIndexer(Interval interval, int[] bits) {
+		this.n = interval.numDimensions();
+		if (bits.length != n)
+			throw new IllegalArgumentException("Number of dimensions doesn't match.");
+		this.min = Intervals.minAsLongArray(interval);
+		this.dimensions = Intervals.dimensionsAsLongArray(interval);
+		this.bits = bits.clone();
+		this.mask = new int[n];
+		this.localShift = new int[n];
+		this.gridSize = new long[n];
+		this.gridStep = new int[n];
+		int shift = 0;
+		long step = 1;
+		for (int d = 0; d < n; d++) {
+			mask[d] = (1 << bits[d]) - 1;
+			localShift[d] = shift;
+			shift += bits[d];
+			gridSize[d] = ((dimensions[d] - 1) >> bits[d]) + 1;
+			gridStep[d] = (int) step;
+			step *= gridSize[d];
+		}
+		if (step > Integer.MAX_VALUE || shift > 30)
+			throw new IllegalArgumentException("Invalid block size.");
+		this.numBlocks = (int) step;
+		this.blockSize = 1 << shift;
+	}
+
+	/**
+	 * Distributes the given number of bits over the dimensions. Dimensions
+	 * that are smaller than the block would be, get fewer bits. The number of
+	 * bits is increased, if the resulting grid has too many blocks.
+	 */
+	private static int[] initBits(long[] dimensions, int blockBits) {
+		int n = dimensions.length;
+		int[] maxBits = new int[n];
+		for (int d = 0; d < n; d++)
+			maxBits[d] = 64 - Long.numberOfLeadingZeros(dimensions[d] - 1);
+		while (true) {
+			int[] bits = distributeBits(blockBits, maxBits);
+			if (countBlocks(dimensions, bits) <= MAX_NUM_BLOCKS)
+				return bits;
+			blockBits++;
+		}
+	}
+
+	private static int[] distributeBits(int blockBits, int[] maxBits) {
+		int n = maxBits.length;
+		int[] bits = new int[n];
+		boolean changed = true;
+		while (blockBits > 0 && changed) {
+			changed = false;
+			for (int d = 0; d < n && blockBits > 0; d++)
+				if (bits[d] < maxBits[d]) {
+					bits[d]++;
+					blockBits--;
+					changed = true;
+				}
+		}
+		return bits;
+	}
+
+	private static long countBlocks(long[] dimensions, int[] bits) {
+		long count = 1;
+		for (int d = 0; d < dimensions.length; d++)
+			count *= ((dimensions[d] - 1) >> bits[d]) + 1;
+		return count;
+	}
+
+	public int numDimensions() {
+		return n;
+	}
+
+	/**
+	 * @return The block size in dimension d is {@code 2^blockBits()[d]}.
+	 */
+	public int[] blockBits() {
+		return bits.clone();
+	}
+
+	/**
+	 * @return The number of blocks in the grid.
+	 */
+	public int numBlocks() {
+		return numBlocks;
+	}
+
+	/**
+	 * @return The number of pixels in a block. Blocks at the border of the
+	 *         interval cover pixels outside of the interval. These pixels are
+	 *         included in this number.
+	 */
+	public int blockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return The index of the block, that contains the given position. Or -1
+	 *         if the position is outside the interval.
+	 */
+	public int blockIndex(Localizable position) {
+		int index = 0;
+		for (int d = 0; d < n; d++) {
+			long p = position.getLongPosition(d) - min[d];
+			if (p < 0 || p >= dimensions[d])
+				return -1;
+			index += (int) (p >> bits[d]) * gridStep[d];
+		}
+		return index;
+	}
+
+	/**
+	 * @return The index of the given position within its block.
+	 */
+	public int indexInBlock(Localizable position) {
+		int index = 0;
+		for (int d = 0; d < n; d++) {
+			long p = position.getLongPosition(d) - min[d];
+			index |= ((int) p & mask[d]) << localShift[d];
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the minimum coordinates of the given block into {@code blockMin}.
+	 */
+	public void blockMin(int blockIndex, long[] blockMin) {
+		for (int d = 0; d < n; d++)
+			blockMin[d] = min[d] + ((blockIndex / gridStep[d] % gridSize[d]) << bits[d]);
+	}
+
+	/**
+	 * Writes the position of a pixel into {@code position}. The pixel is
+	 * specified by the minimum of its block (see {@link #blockMin}) and the
+	 * index within the block.
+	 */
+	public void position(long[] blockMin, int indexInBlock, long[] position) {
+		for (int d = 0; d < n; d++)
+			position[d] = blockMin[d] + ((indexInBlock >> localShift[d]) & mask[d]);
+	}
+}
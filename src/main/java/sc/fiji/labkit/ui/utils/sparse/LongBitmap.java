@@ -0,0 +1,476 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A set of non-negative long values, that is always sorted. It's similar to a
+ * roaring bitmap: The values are grouped into chunks of 2^16 consecutive
+ * values. A chunk with few values stores them in a sorted short array, a chunk
+ * with many values in a bitmap. This has several advantages over a hash set:
+ * <ul>
+ * <li>The values can be iterated in ascending order, without sorting.</li>
+ * <li>Adding values is cheap, as each chunk is small. Values that are added in
+ * ascending order are simply appended.</li>
+ * <li>Large connected regions take only one bit per value.</li>
+ * <li>Set operations ({@link #or}, {@link #and}, {@link #andNot}) are
+ * performed chunk by chunk, and word by word for bitmap chunks.</li>
+ * </ul>
+ * Just like a {@link gnu.trove.set.hash.TLongHashSet}, this class is not
+ * thread safe.
+ */
+public class LongBitmap {
+
+	private static final int CHUNK_BITS = 16;
+
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	private final TLongObjectHashMap<Chunk> chunks = new TLongObjectHashMap<>();
+
+	private long[] sortedKeys = null;
+
+	private long size = 0;
+
+	public LongBitmap() {}
+
+	private LongBitmap(LongBitmap other) {
+		other.chunks.forEachEntry((key, chunk) -> {
+			chunks.put(key, chunk.copy());
+			return true;
+		});
+		this.size = other.size;
+	}
+
+	/**
+	 * @return true, if the value wasn't contained before.
+	 */
+	public boolean add(long value) {
+		long key = key(value);
+		Chunk chunk = chunks.get(key);
+		if (chunk == null) {
+			chunk = new Chunk();
+			chunks.put(key, chunk);
+			sortedKeys = null;
+		}
+		boolean added = chunk.add(low(value));
+		if (added)
+			size++;
+		return added;
+	}
+
+	/**
+	 * @return true, if the value was contained before.
+	 */
+	public boolean remove(long value) {
+		long key = key(value);
+		Chunk chunk = chunks.get(key);
+		if (chunk == null || !chunk.remove(low(value)))
+			return false;
+		size--;
+		if (chunk.cardinality == 0)
+			removeChunk(key);
+		return true;
+	}
+
+	public boolean contains(long value) {
+		Chunk chunk = chunks.get(key(value));
+		return chunk != null && chunk.contains(low(value));
+	}
+
+	/**
+	 * @return The number of values. This takes constant time.
+	 */
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		chunks.clear();
+		sortedKeys = null;
+		size = 0;
+	}
+
+	public LongBitmap copy() {
+		return new LongBitmap(this);
+	}
+
+	/**
+	 * Adds all values of the other set to this set.
+	 */
+	public void or(LongBitmap other) {
+		other.chunks.forEachEntry((key, otherChunk) -> {
+			Chunk chunk = chunks.get(key);
+			if (chunk == null) {
+				chunks.put(key, otherChunk.copy());
+				sortedKeys = null;
+				size += otherChunk.cardinality;
+			}
+			else {
+				size -= chunk.cardinality;
+				chunk.or(otherChunk);
+				size += chunk.cardinality;
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Removes all values from this set, that are not contained in the other
+	 * set.
+	 */
+	public void and(LongBitmap other) {
+		for (long key : chunks.keys()) {
+			Chunk chunk = chunks.get(key);
+			Chunk otherChunk = other.chunks.get(key);
+			size -= chunk.cardinality;
+			if (otherChunk != null)
+				chunk.and(otherChunk);
+			else
+				chunk.clear();
+			size += chunk.cardinality;
+			if (chunk.cardinality == 0)
+				removeChunk(key);
+		}
+	}
+
+	/**
+	 * Removes all values of the other set from this set.
+	 */
+	public void andNot(LongBitmap other) {
+		other.chunks.forEachEntry((key, otherChunk) -> {
+			Chunk chunk = chunks.get(key);
+			if (chunk != null) {
+				size -= chunk.cardinality;
+				chunk.andNot(otherChunk);
+				size += chunk.cardinality;
+				if (chunk.cardinality == 0)
+					removeChunk(key);
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Returns an iterator, that visits the values in ascending order. The
+	 * values of each chunk are copied, when the iterator enters the chunk. It's
+	 * therefore safe to modify the set while iterating, but modifications might
+	 * or might not be visible to the iterator.
+	 */
+	public PrimitiveIterator.OfLong iterator() {
+		return new SortedIterator(sortedKeys());
+	}
+
+	/**
+	 * @return The values in ascending order.
+	 */
+	public long[] toArray() {
+		long[] result = new long[(int) size];
+		int i = 0;
+		for (long key : sortedKeys()) {
+			Chunk chunk = chunks.get(key);
+			long offset = key << CHUNK_BITS;
+			for (int low : chunk.values())
+				result[i++] = offset + low;
+		}
+		return result;
+	}
+
+	private long[] sortedKeys() {
+		if (sortedKeys == null) {
+			long[] keys = chunks.keys();
+			Arrays.sort(keys);
+			sortedKeys = keys;
+		}
+		return sortedKeys;
+	}
+
+	private void removeChunk(long key) {
+		chunks.remove(key);
+		sortedKeys = null;
+	}
+
+	private static long key(long value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Negative values are not supported.");
+		return value >>> CHUNK_BITS;
+	}
+
+	private static int low(long value) {
+		return (int) value & CHUNK_MASK;
+	}
+
+	private class SortedIterator implements PrimitiveIterator.OfLong {
+
+		private final long[] keys;
+
+		private int nextKey = 0;
+
+		private long offset;
+
+		private int[] values = new int[0];
+
+		private int i = 0;
+
+		private SortedIterator(long[] keys) {
+			this.keys = keys;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (i >= values.length) {
+				if (nextKey >= keys.length)
+					return false;
+				long key = keys[nextKey++];
+				Chunk chunk = chunks.get(key);
+				if (chunk == null)
+					continue;
+				offset = key << CHUNK_BITS;
+				values = chunk.values();
+				i = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public long nextLong() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return offset + values[i++];
+		}
+	}
+
+	/**
+	 * The values of one chunk. Either stored as sorted array of the lower 16
+	 * bits, interpreted as unsigned short, or as bitmap. The chunk switches to
+	 * the bitmap when the array would exceed the size of the bitmap, and back
+	 * when the cardinality drops below half of that.
+	 */
+	private static class Chunk {
+
+		private static final int BITMAP_WORDS = (1 << CHUNK_BITS) / 64;
+
+		private static final int MAX_ARRAY_SIZE = BITMAP_WORDS * 4;
+
+		private short[] array = new short[4];
+
+		private long[] bitmap = null;
+
+		private int cardinality = 0;
+
+		private Chunk copy() {
+			Chunk copy = new Chunk();
+			copy.array = array == null ? null : array.clone();
+			copy.bitmap = bitmap == null ? null : bitmap.clone();
+			copy.cardinality = cardinality;
+			return copy;
+		}
+
+		private boolean add(int low) {
+			if (bitmap != null) {
+				long mask = 1L << low;
+				int word = low >>> 6;
+				if ((bitmap[word] & mask) != 0)
+					return false;
+				bitmap[word] |= mask;
+				cardinality++;
+				return true;
+			}
+			int i = search(low);
+			if (i >= 0)
+				return false;
+			if (cardinality == MAX_ARRAY_SIZE) {
+				toBitmap();
+				return add(low);
+			}
+			i = -i - 1;
+			if (cardinality == array.length)
+				array = Arrays.copyOf(array, Math.min(2 * array.length,
+					MAX_ARRAY_SIZE));
+			System.arraycopy(array, i, array, i + 1, cardinality - i);
+			array[i] = (short) low;
+			cardinality++;
+			return true;
+		}
+
+		private boolean remove(int low) {
+			if (bitmap != null) {
+				long mask = 1L << low;
+				int word = low >>> 6;
+				if ((bitmap[word] & mask) == 0)
+					return false;
+				bitmap[word] &= ~mask;
+				cardinality--;
+				if (cardinality < MAX_ARRAY_SIZE / 2)
+					toArray();
+				return true;
+			}
+			int i = search(low);
+			if (i < 0)
+				return false;
+			System.arraycopy(array, i + 1, array, i, cardinality - i - 1);
+			cardinality--;
+			return true;
+		}
+
+		private boolean contains(int low) {
+			if (bitmap != null)
+				return (bitmap[low >>> 6] & (1L << low)) != 0;
+			return search(low) >= 0;
+		}
+
+		/**
+		 * Binary search in the sorted array. Same return value as
+		 * {@link Arrays#binarySearch}. Appending to the end is detected in
+		 * constant time.
+		 */
+		private int search(int low) {
+			if (cardinality == 0 || get(cardinality - 1) < low)
+				return -cardinality - 1;
+			int from = 0;
+			int to = cardinality - 1;
+			while (from <= to) {
+				int middle = (from + to) >>> 1;
+				int value = get(middle);
+				if (value < low)
+					from = middle + 1;
+				else if (value > low)
+					to = middle - 1;
+				else
+					return middle;
+			}
+			return -from - 1;
+		}
+
+		private int get(int i) {
+			return array[i] & 0xffff;
+		}
+
+		/**
+		 * @return The values in ascending order.
+		 */
+		private int[] values() {
+			int[] values = new int[cardinality];
+			if (bitmap == null) {
+				for (int i = 0; i < cardinality; i++)
+					values[i] = get(i);
+				return values;
+			}
+			int i = 0;
+			for (int word = 0; word < BITMAP_WORDS; word++) {
+				long bits = bitmap[word];
+				while (bits != 0) {
+					values[i++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+				}
+			}
+			return values;
+		}
+
+		private void or(Chunk other) {
+			if (bitmap != null && other.bitmap != null) {
+				for (int word = 0; word < BITMAP_WORDS; word++)
+					bitmap[word] |= other.bitmap[word];
+				recount();
+			}
+			else
+				for (int low : other.values())
+					add(low);
+		}
+
+		private void and(Chunk other) {
+			if (bitmap != null && other.bitmap != null) {
+				for (int word = 0; word < BITMAP_WORDS; word++)
+					bitmap[word] &= other.bitmap[word];
+				recount();
+			}
+			else {
+				int[] values = values();
+				clear();
+				for (int low : values)
+					if (other.contains(low))
+						add(low);
+			}
+		}
+
+		private void andNot(Chunk other) {
+			if (bitmap != null && other.bitmap != null) {
+				for (int word = 0; word < BITMAP_WORDS; word++)
+					bitmap[word] &= ~other.bitmap[word];
+				recount();
+			}
+			else
+				for (int low : other.values())
+					remove(low);
+		}
+
+		private void clear() {
+			array = new short[4];
+			bitmap = null;
+			cardinality = 0;
+		}
+
+		private void recount() {
+			int count = 0;
+			for (long bits : bitmap)
+				count += Long.bitCount(bits);
+			cardinality = count;
+			if (cardinality < MAX_ARRAY_SIZE / 2)
+				toArray();
+		}
+
+		private void toBitmap() {
+			long[] bitmap = new long[BITMAP_WORDS];
+			for (int i = 0; i < cardinality; i++) {
+				int low = get(i);
+				bitmap[low >>> 6] |= 1L << low;
+			}
+			this.bitmap = bitmap;
+			this.array = null;
+		}
+
+		private void toArray() {
+			int[] values = values();
+			short[] array = new short[Math.max(4, values.length)];
+			for (int i = 0; i < values.length; i++)
+				array[i] = (short) values[i];
+			this.array = array;
+			this.bitmap = null;
+		}
+	}
+}
@@ -29,8 +29,6 @@
 
 package sc.fiji.labkit.ui.utils.sparse;
 
-import gnu.trove.set.TLongSet;
-import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.AbstractCursor;
 import net.imglib2.AbstractWrappedInterval;
 import net.imglib2.Cursor;
@@ -42,28 +40,36 @@ import net.imglib2.RandomAccess;
 import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
 
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.PrimitiveIterator;
 
 /**
+ * An {@link IterableRegion} that stores the linear indices (see
+ * {@link IntervalIndexer2}) of the pixels inside the region in a
+ * {@link LongBitmap}. The pixels are therefore iterated in flat iteration
+ * order, without the need to sort them first. Large connected regions are
+ * stored compressed, with one bit per pixel. Regions with the same interval
+ * can be combined efficiently with {@link #or}, {@link #and} and
+ * {@link #andNot}.
+ *
  * @author Matthias Arzt
  */
 public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 	implements IterableRegion<BitType>
 {
 
-	final private TLongSet codes;
+	final private LongBitmap codes;
 
 	final private IntervalIndexer2 indexer;
 
 	private final InsideIterable inside;
 
 	public SparseIterableRegion(Interval interval) {
-		this(interval, new TLongHashSet());
+		this(interval, new LongBitmap());
 	}
 
-	public SparseIterableRegion(Interval interval, TLongSet positions) {
+	public SparseIterableRegion(Interval interval, LongBitmap positions) {
 		super(interval);
 		this.codes = positions;
 		this.indexer = new IntervalIndexer2(interval);
@@ -82,6 +88,37 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 		return codes.contains(indexer.positionToIndex(position));
 	}
 
+	public SparseIterableRegion copy() {
+		return new SparseIterableRegion(this, codes.copy());
+	}
+
+	/**
+	 * Adds all pixels of the other region to this region.
+	 */
+	public void or(SparseIterableRegion other) {
+		codes.or(bitmapOf(other));
+	}
+
+	/**
+	 * Removes all pixels from this region, that are not in the other region.
+	 */
+	public void and(SparseIterableRegion other) {
+		codes.and(bitmapOf(other));
+	}
+
+	/**
+	 * Removes all pixels of the other region from this region.
+	 */
+	public void andNot(SparseIterableRegion other) {
+		codes.andNot(bitmapOf(other));
+	}
+
+	private LongBitmap bitmapOf(SparseIterableRegion other) {
+		if (!Intervals.equals(this, other))
+			throw new IllegalArgumentException("Intervals must match");
+		return other.codes;
+	}
+
 	@Override
 	public RandomAccess<BitType> randomAccess() {
 		return new SparseRoiRandomAccess();
@@ -141,17 +178,12 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 		Cursor<Void>
 	{
 
-		private final long[] sortedCodes;
-		private final int lastIndex;
 		private final Point point;
-		private int i;
+		private PrimitiveIterator.OfLong iterator;
 
 		private SparseRoiCursor() {
 			super(SparseIterableRegion.this.numDimensions());
 			point = new Point(SparseIterableRegion.this.numDimensions());
-			sortedCodes = codes.toArray();
-			Arrays.sort(sortedCodes);
-			lastIndex = sortedCodes.length - 1;
 			reset();
 		}
 
@@ -167,18 +199,17 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 
 		@Override
 		public void fwd() {
-			i++;
-			indexer.indexToPosition(sortedCodes[i], point);
+			indexer.indexToPosition(iterator.nextLong(), point);
 		}
 
 		@Override
 		public void reset() {
-			i = -1;
+			iterator = codes.iterator();
 		}
 
 		@Override
 		public boolean hasNext() {
-			return i < lastIndex;
+			return iterator.hasNext();
 		}
 
 		@Override
@@ -30,40 +30,82 @@
 package sc.fiji.labkit.ui.utils.sparse;
 
 import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.AbstractCursor;
 import net.imglib2.AbstractWrappedInterval;
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
 import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.type.BooleanType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.IntType;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
+ * A sparse {@link RandomAccessibleInterval} of {@link IntType}. Only pixels
+ * with a value different from the "no entry value" are stored.
+ * <p>
+ * The interval is partitioned into blocks, see {@link BlockIndexer}. Each
+ * block is allocated lazily, when the first pixel in it is set, and released
+ * when its last pixel is cleared. A sparsely occupied block stores its pixels
+ * in a small primitive hash map, a densely occupied block in an int array.
+ * Memory therefore scales with the labeled area. Each block has its own
+ * {@link ReadRetryWriteLock}. Threads that write to different blocks
+ * therefore don't block each other, and a rehash only ever stalls the pixels
+ * of one block.
+ * <p>
+ * Blocks that are written to are marked as modified, see
+ * {@link #pollModifiedBlocks}. This allows to incrementally save the image.
+ * Additionally, {@link ValueChangeListener}s can be notified about every
+ * change of a pixel value.
+ *
  * @author Matthias Arzt
  */
 public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 	implements RandomAccessibleInterval<IntType>
 {
 
-	private final ReadRetryWriteLock lock = new ReadRetryWriteLock();
-	private final IntervalIndexer2 indexer;
-	private final TLongIntHashMap values;
+	private final BlockIndexer indexer;
+	private final AtomicReferenceArray<Block> blocks;
+	private final AtomicLongArray modifiedBlocks;
+	private final LongAdder size = new LongAdder();
 	private final int noEntryValue;
+	private final List<ValueChangeListener> listeners =
+		new CopyOnWriteArrayList<>();
 
 	public SparseRandomAccessIntType(Interval source) {
 		this(source, 0);
 	}
 
 	public SparseRandomAccessIntType(Interval source, int noEntryValue) {
+		this(source, noEntryValue, BlockIndexer.DEFAULT_BLOCK_BITS);
+	}
+
+	/**
+	 * @param blockBits The blocks will contain roughly {@code 2^blockBits}
+	 *          pixels.
+	 */
+	public SparseRandomAccessIntType(Interval source, int noEntryValue,
+		int blockBits)
+	{
 		super(source);
-		this.indexer = new IntervalIndexer2(source);
-		this.values = new TLongIntHashMap(Constants.DEFAULT_CAPACITY,
-			Constants.DEFAULT_LOAD_FACTOR, -1, noEntryValue);
+		this.indexer = new BlockIndexer(source, blockBits);
+		this.blocks = new AtomicReferenceArray<>(indexer.numBlocks());
+		this.modifiedBlocks = new AtomicLongArray((indexer.numBlocks() + 63) >>> 6);
 		this.noEntryValue = noEntryValue;
 	}
 
@@ -81,49 +123,213 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 		return new MappingCursor<>(sparsityPattern().inside().cursor(), randomAccess());
 	}
 
+	/**
+	 * Returns the set of pixels, that have a value different from the no entry
+	 * value. The returned region is a view, it reflects later changes to this
+	 * image. It is iterated block by block.
+	 */
 	public IterableRegion<? extends BooleanType<?>> sparsityPattern() {
-		return new SparseIterableRegion(this, values.keySet());
+		return new SparsityPattern();
 	}
 
-	// -- Helper methods --
+	/**
+	 * @return The {@link BlockIndexer} that describes, how this image is
+	 *         partitioned into blocks.
+	 */
+	public BlockIndexer blockIndexer() {
+		return indexer;
+	}
 
-	public void clear() {
-		values.clear();
+	/**
+	 * Copies the pixel values of a block into the given array. Pixels without
+	 * entry are set to the no entry value.
+	 *
+	 * @param values Array of length {@link BlockIndexer#blockSize()}.
+	 * @return false, if the block has no entries.
+	 */
+	public boolean getBlock(int blockIndex, int[] values) {
+		Block block = blocks.get(blockIndex);
+		if (block == null || !block.copyTo(values)) {
+			Arrays.fill(values, noEntryValue);
+			return false;
+		}
+		return true;
 	}
 
-	private int get(MyRandomAccess position) {
-		long index = indexer.positionToIndex(position);
-		while (true) {
-			try {
-				long readId = lock.startRead();
-				int value = values.get(index);
-				if (lock.isReadValid(readId))
-					return value;
+	/**
+	 * Replaces all pixel values of a block. This is considerably faster than
+	 * setting the pixels one by one.
+	 *
+	 * @param values Array of length {@link BlockIndexer#blockSize()}, indexed by
+	 *          {@link BlockIndexer#indexInBlock}. Entries that correspond to
+	 *          pixels outside of the interval must be the no entry value.
+	 */
+	public void setBlock(int blockIndex, int[] values) {
+		Block newBlock = new Block(indexer.blockSize(), noEntryValue);
+		int count = newBlock.setAll(values);
+		Block oldBlock = blocks.getAndSet(blockIndex, count == 0 ? null
+			: newBlock);
+		if (oldBlock != null)
+			count -= oldBlock.retire();
+		size.add(count);
+		markModified(blockIndex);
+		notifyBlockChanged(blockIndex, oldBlock, values);
+	}
+
+	/**
+	 * Adds a listener, that is notified about every change of a pixel value.
+	 * The listener is called by the thread that writes the pixel. Changes of
+	 * the same pixel are notified in the order they happen.
+	 */
+	public void addValueChangeListener(ValueChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeValueChangeListener(ValueChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Notifies the listeners about all pixels of a block, that differ between
+	 * the old block and the new values.
+	 */
+	private void notifyBlockChanged(int blockIndex, Block oldBlock,
+		int[] newValues)
+	{
+		if (listeners.isEmpty())
+			return;
+		int[] oldValues = new int[indexer.blockSize()];
+		if (oldBlock == null || !oldBlock.copyTo(oldValues))
+			Arrays.fill(oldValues, noEntryValue);
+		long[] blockMin = new long[numDimensions()];
+		indexer.blockMin(blockIndex, blockMin);
+		Point position = new Point(numDimensions());
+		long[] p = new long[numDimensions()];
+		for (int i = 0; i < oldValues.length; i++) {
+			int newValue = newValues == null ? noEntryValue : newValues[i];
+			if (oldValues[i] == newValue)
+				continue;
+			indexer.position(blockMin, i, p);
+			position.setPosition(p);
+			for (ValueChangeListener listener : listeners)
+				listener.valueChanged(blockIndex, position, oldValues[i], newValue);
+		}
+	}
+
+	/**
+	 * Passes the indices of all blocks, that have been modified since the last
+	 * call of this method, to the given consumer, in ascending order. The
+	 * modification marks are cleared. A block that is modified concurrently is
+	 * reported again by the next call.
+	 */
+	public void pollModifiedBlocks(IntConsumer consumer) {
+		for (int word = 0; word < modifiedBlocks.length(); word++) {
+			if (modifiedBlocks.get(word) == 0)
+				continue;
+			long bits = modifiedBlocks.getAndSet(word, 0);
+			while (bits != 0) {
+				int bit = Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				consumer.accept((word << 6) + bit);
 			}
-			catch (ArrayIndexOutOfBoundsException ignore) {
-				// NB: TLongInHashMap.get(long) sometimes throws an
-				// ArrayIndexOutOfBoundsException, if it is rehashed.
+		}
+	}
+
+	private void markModified(int blockIndex) {
+		int word = blockIndex >>> 6;
+		long bit = 1L << blockIndex;
+		long bits = modifiedBlocks.get(word);
+		while ((bits & bit) == 0 && !modifiedBlocks.compareAndSet(word, bits,
+			bits | bit))
+			bits = modifiedBlocks.get(word);
+	}
+
+	// -- Helper methods --
+
+	public void clear() {
+		for (int i = 0; i < blocks.length(); i++) {
+			Block block = blocks.getAndSet(i, null);
+			if (block != null) {
+				size.add(-block.retire());
+				markModified(i);
+				notifyBlockChanged(i, block, null);
 			}
 		}
 	}
 
-	private void set(MyRandomAccess position, int value) {
-		long index = indexer.positionToIndex(position);
+	private int get(Localizable position) {
+		int blockIndex = indexer.blockIndex(position);
+		if (blockIndex < 0)
+			return noEntryValue;
+		Block block = blocks.get(blockIndex);
+		if (block == null)
+			return noEntryValue;
+		return block.get(indexer.indexInBlock(position));
+	}
 
-		synchronized (lock) {
-			lock.writeLock();
-			try {
+	private void set(Localizable position, int value) {
+		int blockIndex = indexer.blockIndex(position);
+		if (blockIndex < 0)
+			return;
+		int indexInBlock = indexer.indexInBlock(position);
+		while (true) {
+			Block block = blocks.get(blockIndex);
+			if (block == null) {
 				if (value == noEntryValue)
-					values.remove(index);
-				else
-					values.put(index, value);
-			}
-			finally {
-				lock.writeUnlock();
+					return;
+				block = getOrCreateBlock(blockIndex);
 			}
+			int sizeChange = block.set(indexInBlock, value, blockIndex, position);
+			if (sizeChange == Block.RETIRED)
+				continue;
+			markModified(blockIndex);
+			if (sizeChange != 0)
+				size.add(sizeChange);
+			if (sizeChange < 0)
+				removeIfEmpty(blockIndex, block);
+			return;
 		}
 	}
 
+	private Block getOrCreateBlock(int blockIndex) {
+		Block block = blocks.get(blockIndex);
+		if (block != null)
+			return block;
+		Block newBlock = new Block(indexer.blockSize(), noEntryValue);
+		if (blocks.compareAndSet(blockIndex, null, newBlock))
+			return newBlock;
+		return blocks.get(blockIndex);
+	}
+
+	private void removeIfEmpty(int blockIndex, Block block) {
+		if (block.retireIfEmpty())
+			blocks.compareAndSet(blockIndex, block, null);
+	}
+
+	/**
+	 * @return The number of blocks, that currently hold at least one entry.
+	 */
+	int numAllocatedBlocks() {
+		int count = 0;
+		for (int i = 0; i < blocks.length(); i++)
+			if (blocks.get(i) != null)
+				count++;
+		return count;
+	}
+
+	/**
+	 * @return The number of blocks, that are stored as dense int arrays.
+	 */
+	int numDenseBlocks() {
+		int count = 0;
+		for (int i = 0; i < blocks.length(); i++) {
+			Block block = blocks.get(i);
+			if (block != null && block.dense != null)
+				count++;
+		}
+		return count;
+	}
+
 	@Override
 	public IntType getType()
 	{
@@ -132,6 +338,243 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 
 	// -- Helper classes --
 
+	/**
+	 * Listener for changes of pixel values, see
+	 * {@link #addValueChangeListener}.
+	 */
+	public interface ValueChangeListener {
+
+		/**
+		 * Called after the value of the pixel at the given position changed. The
+		 * position is only valid during the call.
+		 */
+		void valueChanged(int blockIndex, Localizable position, int oldValue,
+			int newValue);
+	}
+
+	/**
+	 * Stores the pixels of one block. The block tracks its number of entries.
+	 * As long as the block is sparsely occupied, the entries are stored in a
+	 * hash map, the keys are the indices within the block, see
+	 * {@link BlockIndexer#indexInBlock}. If the occupancy exceeds
+	 * {@link #PROMOTE_DIVISOR 1/4} of the block, it is promoted to a dense int
+	 * array. It is demoted again, if the occupancy drops below
+	 * {@link #DEMOTE_DIVISOR 1/16}. A block that becomes empty is retired and
+	 * removed from the grid.
+	 */
+	private class Block {
+
+		/**
+		 * Returned by {@link #set}, if the block has been retired and must not be
+		 * written anymore.
+		 */
+		private static final int RETIRED = Integer.MIN_VALUE;
+
+		private static final int PROMOTE_DIVISOR = 4;
+
+		private static final int DEMOTE_DIVISOR = 16;
+
+		private final ReadRetryWriteLock lock = new ReadRetryWriteLock();
+
+		private final TIntIntHashMap sparse;
+
+		private volatile int[] dense = null;
+
+		private final int blockSize;
+
+		private final int noEntryValue;
+
+		private int count = 0;
+
+		private boolean retired = false;
+
+		private Block(int blockSize, int noEntryValue) {
+			this.blockSize = blockSize;
+			this.noEntryValue = noEntryValue;
+			this.sparse = new TIntIntHashMap(Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR, -1, noEntryValue);
+		}
+
+		private int get(int index) {
+			while (true) {
+				try {
+					long readId = lock.startRead();
+					int[] dense = this.dense;
+					int value = dense != null ? dense[index] : sparse.get(index);
+					if (lock.isReadValid(readId))
+						return value;
+				}
+				catch (ArrayIndexOutOfBoundsException ignore) {
+					// NB: TIntIntHashMap.get(int) sometimes throws an
+					// ArrayIndexOutOfBoundsException, if it is rehashed.
+				}
+			}
+		}
+
+		/**
+		 * Sets the value and notifies the {@link ValueChangeListener}s, while
+		 * still holding the lock of the block.
+		 *
+		 * @return The change of the number of entries: 1 if an entry was added,
+		 *         -1 if an entry was removed, 0 otherwise. Or {@link #RETIRED}.
+		 */
+		private int set(int index, int value, int blockIndex,
+			Localizable position)
+		{
+			synchronized (lock) {
+				if (retired)
+					return RETIRED;
+				int oldValue;
+				int sizeChange;
+				lock.writeLock();
+				try {
+					oldValue = dense != null ? setDense(index, value) : setSparse(index,
+						value);
+					if (oldValue == value)
+						return 0;
+					sizeChange = oldValue == noEntryValue ? 1 : value == noEntryValue ? -1
+						: 0;
+					count += sizeChange;
+					if (dense == null && count > blockSize / PROMOTE_DIVISOR)
+						promote();
+					else if (dense != null && count < blockSize / DEMOTE_DIVISOR)
+						demote();
+				}
+				finally {
+					lock.writeUnlock();
+				}
+				for (ValueChangeListener listener : listeners)
+					listener.valueChanged(blockIndex, position, oldValue, value);
+				return sizeChange;
+			}
+		}
+
+		/**
+		 * @return The previous value.
+		 */
+		private int setDense(int index, int value) {
+			int oldValue = dense[index];
+			dense[index] = value;
+			return oldValue;
+		}
+
+		/**
+		 * @return The previous value.
+		 */
+		private int setSparse(int index, int value) {
+			if (value == noEntryValue)
+				return sparse.remove(index);
+			return sparse.put(index, value);
+		}
+
+		private void promote() {
+			int[] array = new int[blockSize];
+			if (noEntryValue != 0)
+				Arrays.fill(array, noEntryValue);
+			sparse.forEachEntry((index, value) -> {
+				array[index] = value;
+				return true;
+			});
+			dense = array;
+			sparse.clear();
+			sparse.compact();
+		}
+
+		private void demote() {
+			int[] array = dense;
+			for (int index = 0; index < array.length; index++)
+				if (array[index] != noEntryValue)
+					sparse.put(index, array[index]);
+			dense = null;
+		}
+
+		/**
+		 * Marks the block as retired.
+		 *
+		 * @return The number of entries of the block.
+		 */
+		private int retire() {
+			synchronized (lock) {
+				retired = true;
+				return count;
+			}
+		}
+
+		/**
+		 * Sets the values of a new block, that isn't yet accessible by other
+		 * threads.
+		 *
+		 * @return The number of entries.
+		 */
+		private int setAll(int[] values) {
+			for (int value : values)
+				if (value != noEntryValue)
+					count++;
+			if (count > blockSize / PROMOTE_DIVISOR)
+				dense = values.clone();
+			else
+				for (int index = 0; index < values.length; index++)
+					if (values[index] != noEntryValue)
+						sparse.put(index, values[index]);
+			return count;
+		}
+
+		/**
+		 * Copies the values of the block into the given array.
+		 *
+		 * @return false, if the block has no entries.
+		 */
+		private boolean copyTo(int[] values) {
+			synchronized (lock) {
+				if (count == 0)
+					return false;
+				if (dense != null)
+					System.arraycopy(dense, 0, values, 0, blockSize);
+				else {
+					Arrays.fill(values, noEntryValue);
+					sparse.forEachEntry((index, value) -> {
+						values[index] = value;
+						return true;
+					});
+				}
+				return true;
+			}
+		}
+
+		/**
+		 * Marks the block as retired, if it has no entries.
+		 *
+		 * @return true, if the block has been retired.
+		 */
+		private boolean retireIfEmpty() {
+			synchronized (lock) {
+				if (count == 0)
+					retired = true;
+				return retired;
+			}
+		}
+
+		/**
+		 * @return A sorted copy of the indices of all entries.
+		 */
+		private int[] sortedIndices() {
+			synchronized (lock) {
+				int[] dense = this.dense;
+				if (dense == null) {
+					int[] indices = sparse.keys();
+					Arrays.sort(indices);
+					return indices;
+				}
+				int[] indices = new int[count];
+				int i = 0;
+				for (int index = 0; index < dense.length; index++)
+					if (dense[index] != noEntryValue)
+						indices[i++] = index;
+				return indices;
+			}
+		}
+	}
+
 	private class MyRandomAccess extends Point implements RandomAccess<IntType> {
 
 		private IntType value = new IntType(new IntAccess() {
@@ -165,4 +608,215 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 			return value;
 		}
 	}
+
+	private class SparsityPattern extends AbstractWrappedInterval<Interval>
+		implements IterableRegion<BitType>
+	{
+
+		private final InsideIterable inside = new InsideIterable();
+
+		private SparsityPattern() {
+			super(SparseRandomAccessIntType.this);
+		}
+
+		@Override
+		public IterableInterval<Void> inside() {
+			return inside;
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess() {
+			return new PatternRandomAccess();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess(Interval interval) {
+			return randomAccess();
+		}
+
+		@Override
+		public BitType getType() {
+			return new BitType();
+		}
+	}
+
+	private class InsideIterable extends AbstractWrappedInterval<Interval>
+		implements IterableInterval<Void>
+	{
+
+		private InsideIterable() {
+			super(SparseRandomAccessIntType.this);
+		}
+
+		@Override
+		public Cursor<Void> cursor() {
+			return new BlockCursor();
+		}
+
+		@Override
+		public Cursor<Void> localizingCursor() {
+			return cursor();
+		}
+
+		@Override
+		public long size() {
+			return size.sum();
+		}
+
+		@Override
+		public Void firstElement() {
+			return null;
+		}
+
+		@Override
+		public Object iterationOrder() {
+			return this;
+		}
+	}
+
+	/**
+	 * Visits all pixels that are not equal to the no entry value. It iterates
+	 * over the blocks in order. For each block, a sorted copy of the indices is
+	 * taken, when the cursor enters the block. It's therefore safe to modify
+	 * the image while iterating.
+	 */
+	private class BlockCursor extends AbstractCursor<Void> {
+
+		private final long[] blockMin;
+
+		private final long[] position;
+
+		private int[] indices;
+
+		private int i;
+
+		private int scannedBlocks;
+
+		private int[] nextIndices;
+
+		private int nextBlock;
+
+		private BlockCursor() {
+			super(SparseRandomAccessIntType.this.numDimensions());
+			blockMin = new long[n];
+			position = new long[n];
+			reset();
+		}
+
+		private BlockCursor(BlockCursor cursor) {
+			super(cursor.n);
+			blockMin = cursor.blockMin.clone();
+			position = cursor.position.clone();
+			indices = cursor.indices;
+			i = cursor.i;
+			scannedBlocks = cursor.scannedBlocks;
+			nextIndices = cursor.nextIndices;
+			nextBlock = cursor.nextBlock;
+		}
+
+		@Override
+		public Void get() {
+			return null;
+		}
+
+		@Override
+		public BlockCursor copy() {
+			return new BlockCursor(this);
+		}
+
+		@Override
+		public void fwd() {
+			i++;
+			if (i >= indices.length) {
+				findNextBlock();
+				indexer.blockMin(nextBlock, blockMin);
+				indices = nextIndices;
+				nextIndices = null;
+				i = 0;
+			}
+			indexer.position(blockMin, indices[i], position);
+		}
+
+		@Override
+		public void reset() {
+			indices = new int[0];
+			i = -1;
+			scannedBlocks = 0;
+			nextIndices = null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return i + 1 < indices.length || findNextBlock();
+		}
+
+		private boolean findNextBlock() {
+			if (nextIndices != null)
+				return true;
+			while (scannedBlocks < blocks.length()) {
+				int blockIndex = scannedBlocks++;
+				Block block = blocks.get(blockIndex);
+				if (block == null)
+					continue;
+				int[] blockIndices = block.sortedIndices();
+				if (blockIndices.length == 0)
+					continue;
+				nextIndices = blockIndices;
+				nextBlock = blockIndex;
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void localize(long[] position) {
+			System.arraycopy(this.position, 0, position, 0, n);
+		}
+
+		@Override
+		public long getLongPosition(int d) {
+			return position[d];
+		}
+	}
+
+	private class PatternRandomAccess extends Point implements
+		RandomAccess<BitType>
+	{
+
+		private final BitType value = new BitType(new LongArray(1)) {
+
+			@Override
+			public void set(boolean value) {
+				if (value)
+					throw new UnsupportedOperationException(
+						"Pixels can only be removed from the sparsity pattern.");
+				SparseRandomAccessIntType.this.set(PatternRandomAccess.this,
+					noEntryValue);
+			}
+
+			@Override
+			public boolean get() {
+				return SparseRandomAccessIntType.this.get(
+					PatternRandomAccess.this) != noEntryValue;
+			}
+		};
+
+		private PatternRandomAccess() {
+			super(SparseRandomAccessIntType.this.numDimensions());
+		}
+
+		private PatternRandomAccess(Localizable localizable) {
+			super(localizable);
+		}
+
+		@Override
+		public RandomAccess<BitType> copy() {
+			return new PatternRandomAccess(this);
+		}
+
+		@Override
+		public BitType get() {
+			return value;
+		}
+	}
 }
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui;
+
+import io.scif.services.DatasetIOService;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import org.scijava.Context;
+import sc.fiji.labkit.ui.utils.TestResources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link CommandLineSegmentation}.
+ */
+public class CommandLineSegmentationTest {
+
+	private final String classifier = TestResources.fullPath("/leaf.classifier");
+
+	private final String image = TestResources.fullPath("/leaf.tif");
+
+	@Test
+	public void testShardByFile() throws IOException {
+		File input = Files.createTempDirectory("labkit-test-input").toFile();
+		Files.copy(new File(image).toPath(), new File(input, "a.tif").toPath());
+		Files.copy(new File(image).toPath(), new File(input, "b.tif").toPath());
+		File output = Files.createTempDirectory("labkit-test-output").toFile();
+		String pattern = new File(input, "*.tif").getAbsolutePath();
+		assertEquals(0, CommandLineSegmentation.run("--classifier", classifier,
+			"--output", output.getAbsolutePath(), "--shard", "0/2", pattern));
+		assertTrue(new File(output, "a_segmentation.tif").exists());
+		assertEquals(1, output.list().length);
+		assertEquals(0, CommandLineSegmentation.run("--classifier", classifier,
+			"--output", output.getAbsolutePath(), "--shard", "1/2", pattern));
+		assertTrue(new File(output, "b_segmentation.tif").exists());
+	}
+
+	@Test
+	public void testShardByTile() throws IOException {
+		File output = Files.createTempDirectory("labkit-test-output").toFile();
+		for (String shard : new String[] { "1/2", "0/2" })
+			assertEquals(0, CommandLineSegmentation.run("--classifier", classifier,
+				"--output", output.getAbsolutePath(), "--shard", shard, "--shard-by",
+				"tile", image));
+		assertTrue(new File(output, "leaf_segmentation.raw.json").exists());
+		assertTrue(new File(output, "leaf_segmentation.raw.shard-0-of-2.done")
+			.exists());
+		assertTrue(new File(output, "leaf_segmentation.raw.shard-1-of-2.done")
+			.exists());
+		byte[] actual = Files.readAllBytes(new File(output, "leaf_segmentation.raw")
+			.toPath());
+		try (Context context = new Context()) {
+			RandomAccessibleInterval<? extends RealType<?>> expected = context
+				.service(DatasetIOService.class).open(TestResources.fullPath(
+					"/leaf_segmentation.tif"));
+			Cursor<? extends RealType<?>> cursor = Views.flatIterable(expected)
+				.cursor();
+			assertEquals(Intervals.numElements(expected), actual.length);
+			int differences = 0;
+			for (byte value : actual)
+				if (cursor.next().getRealDouble() != value)
+					differences++;
+			assertTrue(differences < 10);
+		}
+	}
+
+	@Test
+	public void testShardByTileWithDifferentSettingsFails() throws IOException {
+		File output = Files.createTempDirectory("labkit-test-output").toFile();
+		assertEquals(0, CommandLineSegmentation.run("--classifier", classifier,
+			"--output", output.getAbsolutePath(), "--shard", "0/2", "--shard-by",
+			"tile", image));
+		assertEquals(1, CommandLineSegmentation.run("--classifier", classifier,
+			"--output", output.getAbsolutePath(), "--shard", "0/3", "--shard-by",
+			"tile", image));
+		assertFalse(new File(output, "leaf_segmentation.raw.shard-0-of-3.done")
+			.exists());
+	}
+
+	@Test
+	public void testInvalidShard() {
+		assertEquals(2, CommandLineSegmentation.run("--classifier", classifier,
+			"--output", "output", "--shard", "2/2", image));
+	}
+}
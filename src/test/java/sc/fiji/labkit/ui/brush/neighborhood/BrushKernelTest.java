@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.brush.neighborhood;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import static net.imglib2.test.ImgLib2Assert.assertImageEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests {@link BrushKernel}.
+ */
+public class BrushKernelTest {
+
+	@Test
+	public void testStampMatchesEllipsoid() {
+		double[] axes = { 4.5, 3.2, 1.7 };
+		long[] center = { 10, 9, 7 };
+		Img<IntType> actual = ArrayImgs.ints(20, 20, 20);
+		BrushKernel.ellipsoid(axes).stamp(center, 0, actual.randomAccess(), IntType::inc);
+		Img<IntType> expected = ArrayImgs.ints(20, 20, 20);
+		IterableRegion<BitType> region = Ellipsoid.asIterableRegion(new double[] { 10, 9, 7 }, axes);
+		Cursor<Void> cursor = region.inside().cursor();
+		RandomAccess<IntType> ra = expected.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			ra.setPositionAndGet(cursor).inc();
+		}
+		assertImageEquals(expected, actual);
+	}
+
+	@Test
+	public void testBounds() {
+		BrushKernel kernel = BrushKernel.ellipsoid(new double[] { 2, 1 });
+		assertEquals(2, kernel.numDimensions());
+		assertEquals(-2, kernel.min(0));
+		assertEquals(2, kernel.max(0));
+		assertEquals(-1, kernel.min(1));
+		assertEquals(1, kernel.max(1));
+	}
+
+	@Test
+	public void testStampAtOffset() {
+		long[] centers = { 0, 0, 1, 1 };
+		Img<IntType> actual = ArrayImgs.ints(3, 3);
+		BrushKernel.ellipsoid(new double[] { 0.5, 0.5 }).stamp(centers, 2, actual
+			.randomAccess(), IntType::inc);
+		RandomAccessibleInterval<IntType> expected = ArrayImgs.ints(new int[] {
+			0, 1, 0,
+			1, 1, 1,
+			0, 1, 0
+		}, 3, 3);
+		assertImageEquals(expected, actual);
+	}
+
+	@Test
+	public void testCache() {
+		BrushKernel a = BrushKernel.ellipsoid(new double[] { 3, 1.5 });
+		BrushKernel b = BrushKernel.ellipsoid(new double[] { 3, 1.5 });
+		BrushKernel c = BrushKernel.ellipsoid(new double[] { 3, 1.5, 0 });
+		assertSame(a, b);
+		assertEquals(3, c.numDimensions());
+	}
+
+	@Test
+	public void testStampOutsideOfImage() {
+		Img<IntType> image = ArrayImgs.ints(4, 4);
+		BrushKernel.ellipsoid(new double[] { 1, 1 }).stamp(new long[] { 0, 0 }, 0, Views
+			.extendZero(image).randomAccess(), IntType::inc);
+		RandomAccessibleInterval<IntType> expected = ArrayImgs.ints(new int[] {
+			1, 1, 0, 0,
+			1, 1, 0, 0,
+			0, 0, 0, 0,
+			0, 0, 0, 0
+		}, 4, 4);
+		assertImageEquals(expected, image);
+	}
+}
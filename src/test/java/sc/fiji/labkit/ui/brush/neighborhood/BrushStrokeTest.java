@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.brush.neighborhood;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import static net.imglib2.test.ImgLib2Assert.assertImageEquals;
+
+/**
+ * Tests {@link BrushStroke}.
+ */
+public class BrushStrokeTest {
+
+	@Test
+	public void testEachPixelIsWrittenOnce() {
+		BrushKernel kernel = BrushKernel.ellipsoid(new double[] { 2, 2 });
+		BrushStroke stroke = new BrushStroke();
+		stroke.start(kernel);
+		stroke.add(new double[] { 3, 4 });
+		stroke.add(new double[] { 4.4, 4.2 });
+		stroke.add(new double[] { 7.6, 6 });
+		Img<IntType> actual = ArrayImgs.ints(12, 12);
+		stroke.paint(actual.randomAccess(), IntType::inc);
+		Img<IntType> expected = ArrayImgs.ints(12, 12);
+		for (long[] center : new long[][] { { 3, 4 }, { 4, 4 }, { 8, 6 } })
+			kernel.stamp(center, 0, expected.randomAccess(), pixel -> pixel.setOne());
+		assertImageEquals(expected, actual);
+	}
+
+	@Test
+	public void testReuse() {
+		BrushStroke stroke = new BrushStroke();
+		stroke.start(BrushKernel.ellipsoid(new double[] { 1, 1, 1 }));
+		stroke.add(new double[] { 1, 1, 1 });
+		stroke.add(new double[] { 2, 1, 1 });
+		stroke.paint(ArrayImgs.ints(4, 4, 4).randomAccess(), IntType::inc);
+		BrushKernel kernel = BrushKernel.ellipsoid(new double[] { 0.5, 0.5 });
+		stroke.start(kernel);
+		stroke.add(new double[] { 0, 0 });
+		stroke.add(new double[] { 2, 0 });
+		Img<IntType> actual = ArrayImgs.ints(3, 2);
+		stroke.paint(Views.extendZero(actual).randomAccess(), IntType::inc);
+		Img<IntType> expected = ArrayImgs.ints(new int[] {
+			1, 1, 1,
+			1, 0, 1
+		}, 3, 2);
+		assertImageEquals(expected, actual);
+	}
+
+	@Test
+	public void testEmptyStroke() {
+		BrushStroke stroke = new BrushStroke();
+		stroke.start(BrushKernel.ellipsoid(new double[] { 1, 1 }));
+		Img<IntType> actual = ArrayImgs.ints(3, 3);
+		stroke.paint(actual.randomAccess(), IntType::inc);
+		assertImageEquals(ArrayImgs.ints(3, 3), actual);
+	}
+}
@@ -41,6 +41,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 public class ImgPlusViewsOldTest {
 
@@ -54,4 +55,15 @@ public class ImgPlusViewsOldTest {
 		assertArrayEquals(new long[] { 4, 3, 2, 1 }, Intervals
 			.dimensionsAsLongArray(result));
 	}
+
+	@Test
+	public void testSubsample() {
+		ImgPlus<BitType> image = new ImgPlus<>(ArrayImgs.bits(10, 7, 3, 2), "",
+			new AxisType[] { Axes.X, Axes.Y, Axes.CHANNEL, Axes.TIME });
+		ImgPlus<BitType> result = ImgPlusViewsOld.subsample(image, 4);
+		assertArrayEquals(new long[] { 3, 2, 3, 2 }, Intervals
+			.dimensionsAsLongArray(result));
+		assertEquals(4, result.averageScale(0), 0);
+		assertEquals(1, result.averageScale(2), 0);
+	}
 }
@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scijava.Context;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link LabelingJournal}.
+ */
+public class LabelingJournalTest {
+
+	private static Context context;
+
+	@BeforeClass
+	public static void setUp() {
+		context = new Context();
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		context.dispose();
+	}
+
+	private final LabelingSerializer serializer = new LabelingSerializer(context);
+
+	@Test
+	public void testAppendAndRead() throws IOException {
+		Path directory = Files.createTempDirectory("test-journal");
+		Labeling labeling = emptyLabeling();
+		fill(labeling, "A", Intervals.createMinSize(0, 0, 0, 100, 50, 3));
+		Path base = directory.resolve("base.labeling");
+		serializer.save(labeling, base.toString());
+		Path file = directory.resolve("base.labeling.journal");
+		try (LabelingJournal journal = LabelingJournal.create(labeling, base
+			.toString(), file))
+		{
+			fill(labeling, "B", Intervals.createMinSize(20, 30, 1, 10, 40, 1));
+			journal.append();
+			assertLabelingEquals(labeling, serializer.open(file.toString()));
+			labeling.removeLabel(labeling.getLabel("A"));
+			labeling.renameLabel(labeling.getLabel("B"), "B2");
+			labeling.addLabel("C");
+			fill(labeling, "C", Intervals.createMinSize(200, 100, 2, 5, 5, 1));
+			journal.append();
+			assertTrue(journal.size() < Files.size(base));
+		}
+		assertLabelingEquals(labeling, serializer.open(file.toString()));
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		Path directory = Files.createTempDirectory("test-journal");
+		Labeling labeling = emptyLabeling();
+		Path file = directory.resolve("test.journal");
+		try (LabelingJournal journal = LabelingJournal.create(labeling, null,
+			file))
+		{
+			fill(labeling, "B", Intervals.createMinSize(0, 0, 0, 10, 10, 1));
+			journal.append();
+		}
+		Labeling replayed = serializer.open(file.toString());
+		try (LabelingJournal journal = LabelingJournal.resume(replayed, file)) {
+			replayed.addLabel("C");
+			fill(replayed, "C", Intervals.createMinSize(5, 5, 0, 10, 10, 1));
+			journal.append();
+		}
+		assertLabelingEquals(replayed, serializer.open(file.toString()));
+	}
+
+	@Test
+	public void testIncompleteRecordIsIgnored() throws IOException {
+		Path directory = Files.createTempDirectory("test-journal");
+		Labeling labeling = emptyLabeling();
+		Path file = directory.resolve("test.journal");
+		try (LabelingJournal journal = LabelingJournal.create(labeling, null,
+			file))
+		{
+			fill(labeling, "B", Intervals.createMinSize(0, 0, 0, 10, 10, 1));
+			journal.append();
+			fill(labeling, "A", Intervals.createMinSize(150, 150, 0, 30, 30, 1));
+			journal.append();
+		}
+		try (FileChannel channel = FileChannel.open(file,
+			StandardOpenOption.WRITE))
+		{
+			channel.truncate(channel.size() - 7);
+		}
+		Views.interval(labeling, Intervals.createMinSize(150, 150, 0, 30, 30, 1))
+			.forEach(set -> set.remove(labeling.getLabel("A")));
+		assertLabelingEquals(labeling, serializer.open(file.toString()));
+	}
+
+	private static Labeling emptyLabeling() {
+		return Labeling.createEmpty(Arrays.asList("A", "B"), new FinalInterval(300,
+			200, 3));
+	}
+
+	private static void fill(Labeling labeling, String label,
+		FinalInterval interval)
+	{
+		Label l = labeling.getLabel(label);
+		Views.interval(labeling, interval).forEach(set -> set.add(l));
+	}
+
+	private static void assertLabelingEquals(Labeling expected,
+		Labeling actual)
+	{
+		assertEquals(names(expected.getLabels()), names(actual.getLabels()));
+		ImgLib2Assert.assertImageEquals(expected, actual, (a, b) -> names(a)
+			.equals(names(b)));
+	}
+
+	private static List<String> names(List<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toList());
+	}
+
+	private static Set<String> names(Set<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toSet());
+	}
+}
@@ -46,11 +46,16 @@ import net.imglib2.test.ImgLib2Assert;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 import org.junit.Test;
 
 import java.awt.*;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -61,6 +66,8 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Matthias Arzt
@@ -87,12 +94,71 @@ public class LabelingSerializationTest {
 		testSerialization(emptyLabeling(), "json");
 	}
 
+	@Test
+	public void testJsonWithLabelsBeforeInterval() throws IOException {
+		String json = "{\"labels\":{\"A\":[[1,2]],\"B\":[]}," +
+			"\"interval\":{\"min\":[0,0],\"max\":[3,3],\"n\":2}}";
+		Path file = Files.createTempFile("test", ".json");
+		Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+		Labeling labeling = serializer.open(file.toString());
+		assertEquals(Arrays.asList("A", "B"), labeling.getLabels().stream().map(
+			Label::name).collect(Collectors.toList()));
+		RandomAccessibleInterval<BitType> a = labeling.getRegion(labeling.getLabel(
+			"A"));
+		ImgLib2Assert.assertImageEqualsRealType(ArrayImgs.unsignedBytes(new byte[] {
+			0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0 }, 4, 4), a, 0.0);
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		serializer.setBinary(true);
+		testSerialization(exampleLabeling(), "labeling");
+		testSerialization(emptyLabeling(), "labeling");
+		testSerialization(overlappingLabeling(), "labeling");
+	}
+
+	@Test
+	public void testBinaryColorsAndLabelOrder() throws IOException {
+		serializer.setBinary(true);
+		testColorsAndLabelOrder("labeling");
+	}
+
+	@Test
+	public void testBinaryCorruptIndexValuePairs() {
+		// encoding, count, (step, value), (step, value)
+		assertCorruptBlock(new byte[] { 1, 2, 3, 1, 20, 1 });
+		assertCorruptBlock(new byte[] { 1, 17 });
+	}
+
+	@Test
+	public void testBinaryCorruptRunLengthEncoding() {
+		// encoding, runs, (length, value), (length, value)
+		assertCorruptBlock(new byte[] { 0, 2, 10, 1, 10, 0 });
+		assertCorruptBlock(new byte[] { 0, 1, 0, 1 });
+	}
+
+	private void assertCorruptBlock(byte[] bytes) {
+		BinaryLabelingFormat.Input in = new BinaryLabelingFormat.Input(Channels
+			.newChannel(new ByteArrayInputStream(bytes)));
+		try {
+			BinaryLabelingFormat.readBlock(in, new int[16]);
+			fail("IOException expected.");
+		}
+		catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Corrupt labeling block"));
+		}
+	}
+
 	@Test
 	public void testColorsAndLabelOrder() throws IOException {
+		testColorsAndLabelOrder("json");
+	}
+
+	private void testColorsAndLabelOrder(String extension) throws IOException {
 		Labeling expected = exampleLabeling();
 		expected.getLabel("B").setColor(new ARGBType(Color.yellow.getRGB()));
 		expected.getLabel("A").setColor(new ARGBType(Color.green.getRGB()));
-		final String filename = tempFileWithExtension("json");
+		final String filename = tempFileWithExtension(extension);
 		serializer.save(expected, filename);
 		Labeling actual = serializer.open(filename);
 		assertColorsAndLabelOrderMatches(expected.getLabels(), actual.getLabels());
@@ -150,6 +216,19 @@ public class LabelingSerializationTest {
 		return labeling;
 	}
 
+	private static Labeling overlappingLabeling() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B", "C"),
+			new FinalInterval(100, 80, 3));
+		Views.interval(labeling, Intervals.createMinSize(0, 0, 0, 100, 50, 3))
+			.forEach(set -> set.add(labeling.getLabel("A")));
+		Views.interval(labeling, Intervals.createMinSize(20, 30, 1, 10, 40, 1))
+			.forEach(set -> set.add(labeling.getLabel("B")));
+		Views.interval(labeling, Intervals.createMinSize(0, 40, 0, 50, 40, 3))
+			.forEach(set -> set.add(labeling.getLabel("C")));
+		labeling.removeLabel(labeling.getLabel("C"));
+		return labeling;
+	}
+
 	private static Labeling emptyLabeling() {
 		return Labeling.createEmpty(Collections.emptyList(), new FinalInterval(2,
 			2));
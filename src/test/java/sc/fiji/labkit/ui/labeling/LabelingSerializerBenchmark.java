@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.labeling;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.scijava.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the performance of the JSON and the binary labeling file format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelingSerializerBenchmark {
+
+	private Context context;
+
+	private LabelingSerializer jsonSerializer;
+
+	private LabelingSerializer binarySerializer;
+
+	private final Labeling labeling = exampleLabeling();
+
+	private String jsonFile;
+
+	private String binaryFile;
+
+	@Setup
+	public void setup() throws IOException {
+		context = new Context();
+		jsonSerializer = new LabelingSerializer(context);
+		binarySerializer = new LabelingSerializer(context);
+		binarySerializer.setBinary(true);
+		jsonFile = tempFile(".json");
+		binaryFile = tempFile(".labeling");
+		jsonSerializer.save(labeling, jsonFile);
+		binarySerializer.save(labeling, binaryFile);
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Benchmark
+	public void saveJson() throws IOException {
+		jsonSerializer.save(labeling, jsonFile);
+	}
+
+	@Benchmark
+	public void saveBinary() throws IOException {
+		binarySerializer.save(labeling, binaryFile);
+	}
+
+	@Benchmark
+	public Labeling openJson() throws IOException {
+		return jsonSerializer.open(jsonFile);
+	}
+
+	@Benchmark
+	public Labeling openBinary() throws IOException {
+		return binarySerializer.open(binaryFile);
+	}
+
+	private static String tempFile(String suffix) throws IOException {
+		File file = File.createTempFile("benchmark-", suffix);
+		file.deleteOnExit();
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * A labeling with one large foreground region and some scattered
+	 * background scribbles.
+	 */
+	private static Labeling exampleLabeling() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("background",
+			"foreground"), Intervals.createMinSize(0, 0, 0, 200, 200, 100));
+		Label foreground = labeling.getLabel("foreground");
+		Label background = labeling.getLabel("background");
+		Views.interval(labeling, Intervals.createMinSize(50, 50, 20, 100, 100, 50))
+			.forEach(set -> set.add(foreground));
+		Random random = new Random(42);
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		for (int i = 0; i < 100_000; i++) {
+			ra.setPosition(new long[] { random.nextInt(200), random.nextInt(200),
+				random.nextInt(100) });
+			ra.get().add(background);
+		}
+		return labeling;
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options opt = new OptionsBuilder()
+			.include(LabelingSerializerBenchmark.class.getSimpleName())
+			.build();
+		new Runner(opt).run();
+	}
+}
@@ -41,6 +41,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
@@ -79,6 +80,20 @@ public class LabelingSlicerTest {
 		assertImageEquals(slices.get(1), result.get(1));
 	}
 
+	@Test
+	public void testNonEmptySlices() {
+		Labeling empty = Labeling.createEmpty(Arrays.asList("red", "blue"),
+			interval);
+		List<RandomAccessibleInterval<LabelingType<Label>>> slices = Arrays.asList(
+			Labelings.singleton(interval, "red", 5, 8), empty, Labelings.singleton(
+				interval, "blue", 3, 3), empty);
+		Labeling labeling = wrapLabeling(Views.stack(slices));
+		Map<Integer, Labeling> result = Labelings.nonEmptySlices(labeling);
+		assertEquals(Arrays.asList(0, 2), new ArrayList<>(result.keySet()));
+		assertImageEquals(slices.get(0), result.get(0));
+		assertImageEquals(slices.get(2), result.get(2));
+	}
+
 	private <T> void assertImageEquals(
 		RandomAccessibleInterval<LabelingType<T>> expected,
 		RandomAccessibleInterval<LabelingType<T>> actual)
@@ -33,15 +33,18 @@ import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.util.Intervals;
+import sc.fiji.labkit.ui.utils.sparse.SparseIterableRegion;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class LabelingTest {
@@ -70,6 +73,73 @@ public class LabelingTest {
 			labeling, position)));
 	}
 
+	@Test
+	public void testPixelCountAndBoundingBox() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 10, 20);
+		addPixelLabel(labeling, f, 90, 30);
+		addPixelLabel(labeling, f, 50, 70);
+		addPixelLabel(labeling, b, 50, 70);
+		assertEquals(3, labeling.getPixelCount(f));
+		assertEquals(1, labeling.getPixelCount(b));
+		assertTrue(Intervals.equals(Intervals.createMinMax(10, 20, 90, 70),
+			labeling.getBoundingBox(f)));
+		getPixelLabels(labeling, 90, 30).remove(f);
+		assertEquals(2, labeling.getPixelCount(f));
+		assertTrue(Intervals.equals(Intervals.createMinMax(10, 20, 50, 70),
+			labeling.getBoundingBox(f)));
+	}
+
+	@Test
+	public void testClearLabel() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 10, 20);
+		addPixelLabel(labeling, f, 90, 80);
+		addPixelLabel(labeling, b, 90, 80);
+		labeling.clearLabel(f);
+		assertEquals(0, labeling.getPixelCount(f));
+		assertNull(labeling.getBoundingBox(f));
+		assertTrue(getPixelLabels(labeling, 10, 20).isEmpty());
+		assertEquals(Collections.singleton(b), getPixelLabels(labeling, 90, 80));
+		assertEquals(1, labeling.iterableRegions().get(b).inside().size());
+	}
+
+	@Test
+	public void testIterableRegion() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 10, 20);
+		addPixelLabel(labeling, f, 90, 80);
+		addPixelLabel(labeling, b, 90, 80);
+		SparseIterableRegion region = labeling.iterableRegion(f);
+		region.andNot(labeling.iterableRegion(b));
+		assertEquals(1, region.inside().size());
+		assertTrue(region.randomAccess().setPositionAndGet(10, 20).get());
+	}
+
+	@Test
+	public void testSparseIterableRegions() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, f, 10, 20);
+		addPixelLabel(labeling, f, 90, 80);
+		addPixelLabel(labeling, b, 90, 80);
+		Map<Label, SparseIterableRegion> regions = labeling.sparseIterableRegions();
+		assertEquals(2, regions.get(f).inside().size());
+		assertEquals(1, regions.get(b).inside().size());
+		assertTrue(regions.get(b).randomAccess().setPositionAndGet(90, 80).get());
+	}
+
 	private void addPixelLabel(Labeling labeling, Label value, long... position) {
 		RandomAccess<LabelingType<Label>> randomAccess = labeling.randomAccess();
 		randomAccess.setPosition(position);
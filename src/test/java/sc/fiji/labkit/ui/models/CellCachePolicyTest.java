@@ -0,0 +1,199 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.models;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CellCachePolicyTest {
+
+	@Test
+	public void testReadWrittenCell() throws IOException {
+		CellCachePolicy policy = new CellCachePolicy(0, 100);
+		Path directory = policy.createDirectory();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			assertFalse(policy.readCell(directory, 7, buffer));
+			policy.writeCell(directory, 7, ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }));
+			assertTrue(policy.readCell(directory, 7, buffer));
+			assertArrayEquals(new byte[] { 1, 2, 3, 4 }, buffer.array());
+			assertEquals(1, policy.getHits());
+			assertEquals(1, policy.getMisses());
+			assertEquals(4, policy.getDiskBytes());
+		}
+		finally {
+			policy.releaseDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsedCell() throws IOException {
+		CellCachePolicy policy = new CellCachePolicy(0, 10);
+		Path directory = policy.createDirectory();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			policy.writeCell(directory, 1, ByteBuffer.allocate(4));
+			policy.writeCell(directory, 2, ByteBuffer.allocate(4));
+			assertTrue(policy.readCell(directory, 1, buffer));
+			policy.writeCell(directory, 3, ByteBuffer.allocate(4));
+			assertEquals(1, policy.getEvictions());
+			assertEquals(8, policy.getDiskBytes());
+			assertTrue(policy.readCell(directory, 1, buffer));
+			assertFalse(policy.readCell(directory, 2, buffer));
+			assertTrue(policy.readCell(directory, 3, buffer));
+			assertFalse(Files.exists(directory.resolve("2.cell")));
+		}
+		finally {
+			policy.releaseDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testRelease() throws IOException {
+		CellCachePolicy policy = new CellCachePolicy(0, 100);
+		Path directory = policy.createDirectory();
+		Object image = new Object();
+		policy.register(image, directory, 4, 1, () -> {});
+		policy.writeCell(directory, 1, ByteBuffer.allocate(4));
+		policy.release(image);
+		assertFalse(Files.exists(directory));
+		assertEquals(0, policy.getDiskBytes());
+		policy.writeCell(directory, 1, ByteBuffer.allocate(4));
+		assertFalse(Files.exists(directory.resolve("1.cell")));
+		assertEquals(0, policy.getDiskBytes());
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsedImageFromHeap() throws IOException {
+		CellCachePolicy policy = new CellCachePolicy(100, 0);
+		Path a = policy.createDirectory();
+		Path b = policy.createDirectory();
+		Object imageA = new Object();
+		Object imageB = new Object();
+		AtomicInteger invalidatedA = new AtomicInteger();
+		AtomicInteger invalidatedB = new AtomicInteger();
+		Object[] cells = { new Object(), new Object(), new Object(), new Object() };
+		try {
+			policy.register(imageA, a, 40, 2, invalidatedA::incrementAndGet);
+			policy.register(imageB, b, 40, 2, invalidatedB::incrementAndGet);
+			policy.cellLoaded(a, cells[0]);
+			policy.cellLoaded(a, cells[1]);
+			policy.cellLoaded(a, cells[2]);
+			assertEquals(80, policy.getHeapBytes());
+			assertEquals(0, invalidatedA.get());
+			policy.cellLoaded(b, cells[3]);
+			assertEquals(1, invalidatedA.get());
+			assertEquals(0, invalidatedB.get());
+			assertEquals(40, policy.getHeapBytes());
+		}
+		finally {
+			policy.release(imageA);
+			policy.release(imageB);
+		}
+		assertEquals(0, policy.getHeapBytes());
+	}
+
+	@Test
+	public void testMaxCachedCells() {
+		CellCachePolicy policy = new CellCachePolicy(1000, 0);
+		assertEquals(10, policy.maxCachedCells(100));
+		assertEquals(1, policy.maxCachedCells(5000));
+	}
+
+	@Test
+	public void testMaxCachedCellsUsesRemainingBudget() throws IOException {
+		CellCachePolicy policy = new CellCachePolicy(1000, 0);
+		Path a = policy.createDirectory();
+		Object imageA = new Object();
+		AtomicInteger invalidatedA = new AtomicInteger();
+		List<Object> cells = new ArrayList<>();
+		try {
+			policy.register(imageA, a, 100, 10, invalidatedA::incrementAndGet);
+			for (int i = 0; i < 3; i++)
+				loadCell(policy, a, cells);
+			assertEquals(7, policy.maxCachedCells(100));
+			assertEquals(0, invalidatedA.get());
+			for (int i = 0; i < 4; i++)
+				loadCell(policy, a, cells);
+			assertEquals(10, policy.maxCachedCells(100));
+			assertEquals(1, invalidatedA.get());
+			assertEquals(0, policy.getHeapBytes());
+		}
+		finally {
+			policy.release(imageA);
+		}
+	}
+
+	@Test
+	public void testGarbageCollectedCellsAreSubtracted() throws IOException,
+		InterruptedException
+	{
+		CellCachePolicy policy = new CellCachePolicy(1000, 0);
+		Path a = policy.createDirectory();
+		Object imageA = new Object();
+		List<Object> cells = new ArrayList<>();
+		try {
+			policy.register(imageA, a, 100, 10, () -> {});
+			for (int i = 0; i < 3; i++)
+				loadCell(policy, a, cells);
+			assertEquals(300, policy.getHeapBytes());
+			cells.remove(0);
+			for (int i = 0; i < 100 && policy.getHeapBytes() > 200; i++) {
+				System.gc();
+				Thread.sleep(10);
+			}
+			assertEquals(200, policy.getHeapBytes());
+		}
+		finally {
+			policy.release(imageA);
+		}
+		assertEquals(0, policy.getHeapBytes());
+	}
+
+	private static void loadCell(CellCachePolicy policy, Path directory,
+		List<Object> cells)
+	{
+		Object cell = new Object();
+		cells.add(cell);
+		policy.cellLoaded(directory, cell);
+	}
+}
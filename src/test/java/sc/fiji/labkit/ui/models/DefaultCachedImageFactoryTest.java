@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.models;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link DefaultCachedImageFactory}.
+ */
+public class DefaultCachedImageFactoryTest {
+
+	private static final int CELL_BYTES = 16 * 16 * Integer.BYTES;
+
+	@Test
+	public void testDiskUsageStaysWithinBudget() throws IOException {
+		Path root = Files.createTempDirectory("labkit-test-");
+		CellCachePolicy policy = new CellCachePolicy(2 * CELL_BYTES, 3 * CELL_BYTES,
+			root);
+		CachedImageFactory factory = DefaultCachedImageFactory.getInstance(policy);
+		CellGrid grid = new CellGrid(new long[] { 64, 64 }, new int[] { 16, 16 });
+		Img<IntType> image = factory.setupCachedImage(null, cell -> {
+			Cursor<IntType> cursor = Views.flatIterable(cell).localizingCursor();
+			while (cursor.hasNext())
+				cursor.next().set(expectedValue(cursor));
+		}, grid, new IntType());
+		try {
+			// NB: The image has 16 cells, more than fit on the heap or on disk.
+			for (int round = 0; round < 2; round++) {
+				Cursor<IntType> cursor = image.localizingCursor();
+				while (cursor.hasNext()) {
+					int value = cursor.next().get();
+					assertEquals(expectedValue(cursor), value);
+				}
+				assertTrue(diskUsage(root) <= 3 * CELL_BYTES);
+			}
+			assertTrue(policy.getEvictions() > 0);
+			assertEquals(diskUsage(root), policy.getDiskBytes());
+		}
+		finally {
+			factory.release(image);
+			Files.delete(root);
+		}
+	}
+
+	private static int expectedValue(Cursor<?> cursor) {
+		return cursor.getIntPosition(0) + 64 * cursor.getIntPosition(1);
+	}
+
+	private static long diskUsage(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile()
+				.length()).sum();
+		}
+	}
+}
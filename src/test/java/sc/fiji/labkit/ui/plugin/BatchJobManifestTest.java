@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.plugin;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests {@link BatchJobManifest}.
+ */
+public class BatchJobManifestTest {
+
+	@Test
+	public void testContinueManifest() throws IOException {
+		File directory = Files.createTempDirectory("labkit-test-manifest").toFile();
+		File classifier = new File(directory, "test.classifier");
+		Files.write(classifier.toPath(), "classifier".getBytes(StandardCharsets.UTF_8));
+		File a = new File("a.tif");
+		File b = new File("b.tif");
+		BatchJobManifest manifest = BatchJobManifest.open(directory, classifier);
+		manifest.done(a, new File("a_segmentation.tif"), 42);
+		manifest.failed(b, new File("b_segmentation.tif"), 7, new IOException(
+			"broken"));
+		BatchJobManifest reopened = BatchJobManifest.open(directory, classifier);
+		assertEquals(BatchJobManifest.DONE, reopened.status(a));
+		assertEquals(BatchJobManifest.FAILED, reopened.status(b));
+		assertNull(reopened.status(new File("c.tif")));
+		assertEquals(manifest.classifierHash(), reopened.classifierHash(a));
+	}
+
+	@Test
+	public void testClassifierHash() throws IOException {
+		File directory = Files.createTempDirectory("labkit-test-manifest").toFile();
+		File classifier = new File(directory, "test.classifier");
+		Files.write(classifier.toPath(), "abc".getBytes(StandardCharsets.UTF_8));
+		assertEquals(
+			"ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+			BatchJobManifest.open(directory, classifier).classifierHash());
+	}
+}
@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.plugin;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.converter.Converters;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link ConnectedComponents}.
+ */
+public class ConnectedComponentsTest {
+
+	@Test
+	public void testComponentAcrossBlocks() {
+		int[] data = { //
+			1, 1, 1, 0, 0, //
+			0, 0, 1, 0, 1, //
+			0, 1, 1, 1, 1, //
+			0, 0, 0, 0, 0 };
+		RandomAccessibleInterval<BitType> mask = Converters.convert(ArrayImgs
+			.ints(data, 5, 4), (in, out) -> out.set(in.get() != 0), new BitType());
+		List<ConnectedComponents.Component> components = ConnectedComponents
+			.measure(Views.translate(mask, 10, 20), new int[] { 2, 2 });
+		assertEquals(1, components.size());
+		ConnectedComponents.Component component = components.get(0);
+		assertEquals(9, component.size());
+		assertArrayEquals(new long[] { 10, 20 }, component.min());
+		assertArrayEquals(new long[] { 14, 22 }, component.max());
+		assertArrayEquals(new double[] { 10 + 19 / 9.0, 20 + 10 / 9.0 }, component
+			.centroid(), 1e-10);
+	}
+
+	@Test
+	public void testBlockSizeDoesNotMatter() {
+		Random random = new Random(42);
+		int[] data = new int[20 * 30 * 10];
+		for (int i = 0; i < data.length; i++)
+			data[i] = random.nextInt(5) < 2 ? 1 : 0;
+		Img<IntType> ints = ArrayImgs.ints(data, 20, 30, 10);
+		RandomAccessibleInterval<BitType> mask = Converters.convert(ints, (in,
+			out) -> out.set(in.get() != 0), new BitType());
+		List<String> expected = describe(ConnectedComponents.measure(mask,
+			new int[] { 20, 30, 10 }));
+		List<String> actual = describe(ConnectedComponents.measure(mask,
+			new int[] { 7, 4, 3 }));
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testSkipEmptyBlocks() {
+		Img<IntType> ints = ArrayImgs.ints(128, 64);
+		ints.getAt(10, 10).set(1);
+		ints.getAt(63, 20).set(1);
+		ints.getAt(64, 20).set(1);
+		ints.getAt(100, 30).set(1);
+		RandomAccessibleInterval<BitType> mask = Converters.convert(ints, (in,
+			out) -> out.set(in.get() != 0), new BitType());
+		assertEquals(2, ConnectedComponents.blockGrid(mask).gridDimension(0));
+		assertEquals(3, ConnectedComponents.measure(mask, i -> false).size());
+		List<ConnectedComponents.Component> components = ConnectedComponents
+			.measure(mask, i -> i == 1);
+		assertEquals(Arrays.asList("1 [(10, 10) -- (10, 10) = 1x1]",
+			"1 [(63, 20) -- (63, 20) = 1x1]"), describe(components));
+	}
+
+	private static List<String> describe(
+		List<ConnectedComponents.Component> components)
+	{
+		return components.stream().map(c -> c.size() + " " + Intervals.toString(
+			Intervals.createMinMax(concat(c.min(), c.max())))).sorted(Comparator
+				.naturalOrder()).collect(Collectors.toList());
+	}
+
+	private static long[] concat(long[] a, long[] b) {
+		long[] result = new long[a.length + b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+}
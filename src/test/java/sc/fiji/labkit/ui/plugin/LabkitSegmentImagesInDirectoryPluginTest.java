@@ -67,6 +67,19 @@ public class LabkitSegmentImagesInDirectoryPluginTest {
 	@Test
 	public void test()
 		throws IOException, ExecutionException, InterruptedException
+	{
+		testImagesInParallel(1);
+	}
+
+	@Test
+	public void testImagesInParallel()
+		throws IOException, ExecutionException, InterruptedException
+	{
+		testImagesInParallel(3);
+	}
+
+	private void testImagesInParallel(int imagesInParallel)
+		throws IOException, ExecutionException, InterruptedException
 	{
 		try (Context context = new Context()) {
 			io = context.service(DatasetIOService.class);
@@ -81,8 +94,10 @@ public class LabkitSegmentImagesInDirectoryPluginTest {
 				"output_directory", outputDirectory,
 				"output_file_suffix", "_segmentation.tif",
 				"segmenter_file", TestResources.fullPath("/leaf.classifier"),
-				"use_gpu", false).get();
+				"use_gpu", false,
+				"images_in_parallel", imagesInParallel).get();
 			testOutputDirectory(outputDirectory);
+			assertTrue(new File(outputDirectory, BatchJobManifest.FILENAME).exists());
 		}
 	}
 
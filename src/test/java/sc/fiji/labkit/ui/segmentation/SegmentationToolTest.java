@@ -33,14 +33,21 @@ import io.scif.services.DatasetIOService;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.DefaultLinearAxis;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.scijava.Context;
 import sc.fiji.labkit.ui.utils.TestResources;
+import sc.fiji.labkit.ui.utils.TileWriter;
 
 import java.io.IOException;
 
@@ -80,6 +87,31 @@ public class SegmentationToolTest {
 		assertEquals(0.7, segmentation.axis(0).averageScale(0, 1), 0.0);
 	}
 
+	@Test
+	public void testSegmentTileByTile() {
+		SegmentationTool tool = new SegmentationTool(context);
+		tool.setUseGpu(false);
+		tool.openModel(TestResources.fullPath("/leaf.classifier"));
+		((DefaultLinearAxis) image.axis(0)).setScale(0.7);
+		((DefaultLinearAxis) image.axis(1)).setScale(0.7);
+		Img<UnsignedByteType> segmentation = ArrayImgs.unsignedBytes(Intervals
+			.dimensionsAsLongArray(image));
+		TileWriter<UnsignedByteType> writer = new TileWriter<UnsignedByteType>() {
+
+			@Override
+			public void write(RandomAccessibleInterval<UnsignedByteType> tile) {
+				LoopBuilder.setImages(tile, Views.interval(segmentation, tile))
+					.forEachPixel((i, o) -> o.set(i));
+			}
+
+			@Override
+			public void close() {}
+		};
+		tool.segment(image, writer, new UnsignedByteType());
+		ImgPlus<?> expectedSegmentation = Cast.unchecked(openImage("/leaf_segmentation.tif"));
+		assertImageEqualsIntegerType(Cast.unchecked(expectedSegmentation), segmentation);
+	}
+
 	@Test
 	public void testProbabilityMap() {
 		SegmentationTool tool = new SegmentationTool(context);
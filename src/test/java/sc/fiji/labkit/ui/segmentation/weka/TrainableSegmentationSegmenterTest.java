@@ -38,12 +38,14 @@ import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import sc.fiji.labkit.ui.labeling.Label;
 import sc.fiji.labkit.ui.labeling.Labeling;
+import sc.fiji.labkit.ui.segmentation.SegmentationUtils;
 import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.test.ImgLib2Assert;
 import sc.fiji.labkit.pixel_classification.pixel_feature.filter.SingleFeatures;
 import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
 import sc.fiji.labkit.pixel_classification.pixel_feature.settings.GlobalSettings;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.ValuePair;
 import org.junit.Test;
 import org.scijava.Context;
@@ -51,6 +53,9 @@ import org.scijava.Context;
 import java.util.Arrays;
 import java.util.Collections;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class TrainableSegmentationSegmenterTest {
 
 	@Test
@@ -79,6 +84,94 @@ public class TrainableSegmentationSegmenterTest {
 		context.dispose();
 	}
 
+	@Test
+	public void testRetrainWithCachedFeatures() {
+		Context context = new Context();
+		TrainableSegmentationSegmenter segmenter = new TrainableSegmentationSegmenter(context);
+		segmenter.setUseGpu(false);
+		segmenter.setFeatureSettings(new FeatureSettings(GlobalSettings.default2d().build(),
+			SingleFeatures.identity()));
+		ImgPlus<?> image3d = new ImgPlus<>(ArrayImgs.ints(new int[] { 0, 1, 1, 0 }, 2, 1, 2), "name",
+			new AxisType[] { Axes.X, Axes.Y, Axes.Z });
+		Labeling labeling = initLabeling();
+		segmenter.train(Collections.singletonList(new ValuePair<>(image3d, labeling)));
+		// Add labels to the second slice and train again
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 0, 0, 1 });
+		ra.get().add(labeling.getLabel("b"));
+		ra.setPosition(new long[] { 1, 0, 1 });
+		ra.get().add(labeling.getLabel("a"));
+		segmenter.train(Collections.singletonList(new ValuePair<>(image3d, labeling)));
+		Img<IntType> result = ArrayImgs.ints(2, 1, 2);
+		segmenter.segment(image3d, result);
+		ImgLib2Assert.assertImageEquals(image3d, result, Object::equals);
+		context.dispose();
+	}
+
+	@Test
+	public void testRetrainAfterReleaseCaches() {
+		Context context = new Context();
+		TrainableSegmentationSegmenter segmenter = new TrainableSegmentationSegmenter(context);
+		segmenter.setUseGpu(false);
+		segmenter.setFeatureSettings(new FeatureSettings(GlobalSettings.default2d().build(),
+			SingleFeatures.identity()));
+		ImgPlus<?> image3d = new ImgPlus<>(ArrayImgs.ints(new int[] { 0, 1, 1, 0 }, 2, 1, 2), "name",
+			new AxisType[] { Axes.X, Axes.Y, Axes.Z });
+		Labeling labeling = initLabeling();
+		segmenter.train(Collections.singletonList(new ValuePair<>(image3d, labeling)));
+		segmenter.releaseCaches();
+		segmenter.train(Collections.singletonList(new ValuePair<>(image3d, labeling)));
+		Img<IntType> result = ArrayImgs.ints(2, 1, 2);
+		segmenter.segment(image3d, result);
+		ImgLib2Assert.assertImageEquals(image3d, result, Object::equals);
+		context.dispose();
+	}
+
+	@Test
+	public void testFeatureCacheReleasesImage() throws InterruptedException {
+		Context context = new Context();
+		TrainableSegmentationSegmenter segmenter = new TrainableSegmentationSegmenter(context);
+		segmenter.setUseGpu(false);
+		segmenter.setFeatureSettings(new FeatureSettings(GlobalSettings.default2d().build(),
+			SingleFeatures.identity()));
+		trainOnNewImage(segmenter);
+		assertTrue(segmenter.featureCache.size() > 0);
+		for (int i = 0; i < 100 && segmenter.featureCache.size() > 0; i++) {
+			System.gc();
+			Thread.sleep(10);
+			segmenter.featureCache.trim();
+		}
+		assertEquals(0, segmenter.featureCache.size());
+		context.dispose();
+	}
+
+	private void trainOnNewImage(TrainableSegmentationSegmenter segmenter) {
+		ImgPlus<?> image3d = new ImgPlus<>(ArrayImgs.ints(new int[] { 0, 1, 1, 0 }, 2, 1, 2), "name",
+			new AxisType[] { Axes.X, Axes.Y, Axes.Z });
+		segmenter.train(Collections.singletonList(new ValuePair<>(image3d, initLabeling())));
+	}
+
+	@Test
+	public void testSegmentationFromProbabilityMap() {
+		Context context = new Context();
+		TrainableSegmentationSegmenter segmenter = new TrainableSegmentationSegmenter(context);
+		segmenter.setUseGpu(false);
+		segmenter.setFeatureSettings(new FeatureSettings(GlobalSettings.default2d().build(),
+			SingleFeatures.identity()));
+		ImgPlus<?> image3d = new ImgPlus<>(ArrayImgs.ints(new int[] { 0, 1, 1, 0 }, 2, 1, 2), "name",
+			new AxisType[] { Axes.X, Axes.Y, Axes.Z });
+		segmenter.train(Collections.singletonList(new ValuePair<>(image3d, initLabeling())));
+		assertTrue(segmenter.segmentsByMaximumProbability());
+		Img<IntType> expected = ArrayImgs.ints(2, 1, 2);
+		segmenter.segment(image3d, expected);
+		Img<FloatType> probabilityMap = SegmentationUtils.createCachedProbabilityMap(segmenter,
+			image3d, null);
+		Img<IntType> result = SegmentationUtils.createCachedSegmentation(segmenter, image3d,
+			probabilityMap, null, new IntType());
+		ImgLib2Assert.assertImageEquals(expected, result, Object::equals);
+		context.dispose();
+	}
+
 	private Labeling initLabeling() {
 		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"), new FinalInterval(2, 1, 2));
 		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
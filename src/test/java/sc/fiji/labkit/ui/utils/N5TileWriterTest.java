@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link N5TileWriter}.
+ */
+public class N5TileWriterTest {
+
+	@Test
+	public void testWriteBorderBlock() throws IOException {
+		File directory = Files.createTempDirectory("labkit-test-n5").toFile();
+		ArrayImg<UnsignedShortType, ShortArray> image = ArrayImgs.unsignedShorts(
+			new short[] { 1, 2, 3, 4, 5, 6 }, 3, 2);
+		Interval block = new FinalInterval(new long[] { 2, 0 }, new long[] { 2,
+			1 });
+		N5TileWriter<UnsignedShortType> writer = new N5TileWriter<>(directory,
+			image, new int[] { 2, 2 }, new UnsignedShortType());
+		assertFalse(writer.isWritten(block));
+		writer.write(Views.interval(image, block));
+		writer.close();
+		assertTrue(writer.isWritten(block));
+		File file = new File(new File(directory, "1"), "0");
+		assertEquals(file, writer.blockFile(block));
+		try (DataInputStream input = new DataInputStream(new FileInputStream(
+			file)))
+		{
+			assertEquals(0, input.readShort());
+			assertEquals(2, input.readShort());
+			assertEquals(1, input.readInt());
+			assertEquals(2, input.readInt());
+			DataInputStream data = new DataInputStream(new GZIPInputStream(input));
+			assertArrayEquals(new short[] { 3, 6 }, new short[] { data.readShort(),
+				data.readShort() });
+			assertEquals(-1, data.read());
+		}
+		String attributes = new String(Files.readAllBytes(new File(directory,
+			"attributes.json").toPath()));
+		assertTrue(attributes.contains("\"dimensions\":[3,2]"));
+		assertTrue(attributes.contains("\"dataType\":\"uint16\""));
+	}
+
+	@Test
+	public void testResumeWithSameKey() throws IOException {
+		File directory = Files.createTempDirectory("labkit-test-n5").toFile();
+		ArrayImg<UnsignedShortType, ShortArray> image = ArrayImgs.unsignedShorts(
+			4, 4);
+		Interval block = Intervals.createMinSize(0, 0, 2, 2);
+		new N5TileWriter<>(directory, image, new int[] { 2, 2 },
+			new UnsignedShortType(), "a").write(Views.interval(image, block));
+		assertTrue(N5TileWriter.hasResumeKey(directory, "a"));
+		assertFalse(N5TileWriter.hasResumeKey(directory, "b"));
+		N5TileWriter<UnsignedShortType> writer = new N5TileWriter<>(directory,
+			image, new int[] { 2, 2 }, new UnsignedShortType(), "a");
+		assertTrue(writer.isWritten(block));
+	}
+
+	@Test
+	public void testClearExistingDataset() throws IOException {
+		File directory = Files.createTempDirectory("labkit-test-n5").toFile();
+		File otherFile = new File(directory, "README.txt");
+		Files.write(otherFile.toPath(), new byte[] { 1 });
+		ArrayImg<UnsignedShortType, ShortArray> image = ArrayImgs.unsignedShorts(
+			4, 4);
+		Interval block = Intervals.createMinSize(0, 0, 2, 2);
+		new N5TileWriter<>(directory, image, new int[] { 2, 2 },
+			new UnsignedShortType(), "a").write(Views.interval(image, block));
+		assertFalse(new N5TileWriter<>(directory, image, new int[] { 2, 2 },
+			new UnsignedShortType(), "b").isWritten(block));
+		new N5TileWriter<>(directory, image, new int[] { 2, 2 },
+			new UnsignedShortType(), "b").write(Views.interval(image, block));
+		assertFalse(new N5TileWriter<>(directory, image, new int[] { 2, 2 },
+			new UnsignedShortType()).isWritten(block));
+		new N5TileWriter<>(directory, image, new int[] { 2, 2 },
+			new UnsignedShortType(), "b").write(Views.interval(image, block));
+		assertFalse(new N5TileWriter<>(directory, image, new int[] { 4, 4 },
+			new UnsignedShortType(), "b").isWritten(block));
+		assertFalse(new File(directory, "1").exists());
+		assertTrue(otherFile.exists());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnalignedTile() throws IOException {
+		File directory = Files.createTempDirectory("labkit-test-n5").toFile();
+		ArrayImg<UnsignedShortType, ShortArray> image = ArrayImgs.unsignedShorts(
+			4, 4);
+		N5TileWriter<UnsignedShortType> writer = new N5TileWriter<>(directory,
+			image, new int[] { 2, 2 }, new UnsignedShortType());
+		writer.write(Views.interval(image, Intervals.createMinSize(1, 0, 2, 2)));
+	}
+}
@@ -43,6 +43,8 @@ import sc.fiji.labkit.ui.utils.HDF5Saver;
 import java.io.File;
 import java.io.IOException;
 
+import static org.junit.Assert.assertEquals;
+
 public class HDF5SaverTest {
 
 	@Test
@@ -87,6 +89,23 @@ public class HDF5SaverTest {
 		ImgLib2Assert.assertImageEquals(image, openImage(xml), Object::equals);
 	}
 
+	@Test
+	public void testConcurrentPartitionedWriting() throws IOException {
+		File xml = File.createTempFile("test", ".xml");
+		Img<UnsignedShortType> image = RandomImgs.seed(42).nextImage(
+			new UnsignedShortType(), 2, 3, 4, 5);
+		HDF5Saver saver = new HDF5Saver(image, xml.getAbsolutePath());
+		saver.setPartitions(1, 1);
+		saver.setNumberOfThreads(3);
+		saver.writeAll();
+		assertEquals(5, saver.numberOfPartitions());
+		String basename = xml.getName().replace(".xml", "-");
+		File[] partitionFiles = xml.getParentFile().listFiles((dir,
+			name) -> name.startsWith(basename) && name.endsWith(".h5"));
+		assertEquals(5, partitionFiles.length);
+		ImgLib2Assert.assertImageEquals(image, openImage(xml), Object::equals);
+	}
+
 	private RandomAccessibleInterval<? extends NumericType<?>> openImage(
 		File xml)
 	{
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * The Labkit image segmentation tool for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.ui.utils.sparse;
+
+import org.junit.Test;
+
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link LongBitmap}.
+ */
+public class LongBitmapTest {
+
+	@Test
+	public void testAddRemoveContains() {
+		LongBitmap bitmap = new LongBitmap();
+		assertTrue(bitmap.add(70000));
+		assertTrue(bitmap.add(3));
+		assertFalse(bitmap.add(3));
+		assertTrue(bitmap.contains(3));
+		assertFalse(bitmap.contains(4));
+		assertEquals(2, bitmap.size());
+		assertTrue(bitmap.remove(70000));
+		assertFalse(bitmap.remove(70000));
+		assertArrayEquals(new long[] { 3 }, bitmap.toArray());
+	}
+
+	@Test
+	public void testSortedIteration() {
+		Random random = new Random(42);
+		LongBitmap bitmap = new LongBitmap();
+		TreeSet<Long> expected = new TreeSet<>();
+		// NB: Dense values near zero force the bitmap representation of chunks.
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextBoolean() ? random.nextInt(10000) : random
+				.nextInt(1 << 30);
+			assertEquals(expected.add(value), bitmap.add(value));
+		}
+		for (int i = 0; i < 50000; i++) {
+			long value = random.nextInt(10000);
+			assertEquals(expected.remove(value), bitmap.remove(value));
+		}
+		assertEquals(expected.size(), bitmap.size());
+		PrimitiveIterator.OfLong iterator = bitmap.iterator();
+		for (long value : expected)
+			assertEquals(value, iterator.nextLong());
+		assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void testSetOperations() {
+		Random random = new Random(42);
+		LongBitmap a = new LongBitmap();
+		LongBitmap b = new LongBitmap();
+		TreeSet<Long> setA = new TreeSet<>();
+		TreeSet<Long> setB = new TreeSet<>();
+		for (int i = 0; i < 20000; i++) {
+			long valueA = random.nextInt(200000);
+			long valueB = random.nextInt(i % 2 == 0 ? 5000 : 200000);
+			a.add(valueA);
+			setA.add(valueA);
+			b.add(valueB);
+			setB.add(valueB);
+		}
+		LongBitmap or = a.copy();
+		or.or(b);
+		TreeSet<Long> expectedOr = new TreeSet<>(setA);
+		expectedOr.addAll(setB);
+		assertSetEquals(expectedOr, or);
+		LongBitmap and = a.copy();
+		and.and(b);
+		TreeSet<Long> expectedAnd = new TreeSet<>(setA);
+		expectedAnd.retainAll(setB);
+		assertSetEquals(expectedAnd, and);
+		LongBitmap andNot = a.copy();
+		andNot.andNot(b);
+		TreeSet<Long> expectedAndNot = new TreeSet<>(setA);
+		expectedAndNot.removeAll(setB);
+		assertSetEquals(expectedAndNot, andNot);
+		assertSetEquals(setA, a);
+	}
+
+	private static void assertSetEquals(TreeSet<Long> expected,
+		LongBitmap actual)
+	{
+		assertEquals(expected.size(), actual.size());
+		assertArrayEquals(expected.stream().mapToLong(x -> x).toArray(), actual
+			.toArray());
+	}
+}
@@ -29,11 +29,19 @@
 
 package sc.fiji.labkit.ui.utils.sparse;
 
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
 import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class SparseIterableRegionTest {
@@ -53,4 +61,51 @@ public class SparseIterableRegionTest {
 		Views.iterable(region).forEach(x -> assertTrue(x.get()));
 	}
 
+	@Test
+	public void testSetOperations() {
+		Interval interval = Intervals.createMinSize(-5, 10, 8, 8);
+		SparseIterableRegion a = region(interval, new long[] { -5, 10 },
+			new long[] { 0, 12 }, new long[] { 2, 17 });
+		SparseIterableRegion b = region(interval, new long[] { 0, 12 },
+			new long[] { 1, 13 });
+		SparseIterableRegion or = a.copy();
+		or.or(b);
+		assertEquals(positions(region(interval, new long[] { -5, 10 },
+			new long[] { 0, 12 }, new long[] { 1, 13 }, new long[] { 2, 17 })),
+			positions(or));
+		SparseIterableRegion and = a.copy();
+		and.and(b);
+		assertEquals(positions(region(interval, new long[] { 0, 12 })), positions(
+			and));
+		SparseIterableRegion andNot = a.copy();
+		andNot.andNot(b);
+		assertEquals(positions(region(interval, new long[] { -5, 10 },
+			new long[] { 2, 17 })), positions(andNot));
+		assertEquals(3, a.inside().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetOperationWithDifferentInterval() {
+		new SparseIterableRegion(Intervals.createMinSize(0, 0, 2, 2)).or(
+			new SparseIterableRegion(Intervals.createMinSize(0, 0, 3, 3)));
+	}
+
+	private static SparseIterableRegion region(Interval interval,
+		long[]... positions)
+	{
+		SparseIterableRegion region = new SparseIterableRegion(interval);
+		for (long[] position : positions)
+			region.add(new Point(position));
+		return region;
+	}
+
+	private static List<Point> positions(SparseIterableRegion region) {
+		List<Point> positions = new ArrayList<>();
+		Cursor<Void> cursor = region.inside().cursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			positions.add(new Point(cursor));
+		}
+		return positions;
+	}
 }
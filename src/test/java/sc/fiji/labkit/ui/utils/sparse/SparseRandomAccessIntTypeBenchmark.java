@@ -34,6 +34,7 @@ import net.imglib2.Point;
 import net.imglib2.algorithm.fill.FloodFill;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
 import net.imglib2.img.sparse.NtreeImgFactory;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
@@ -47,6 +48,7 @@ import org.openjdk.jmh.runner.options.TimeValue;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.view.Views;
 
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -77,6 +79,43 @@ public class SparseRandomAccessIntTypeBenchmark {
 			pixel.setOne();
 	}
 
+	@Benchmark
+	public void fillSparseMultiThreaded() {
+		LoopBuilder.setImages(sparse).multiThreaded().forEachPixel(
+			IntegerType::setOne);
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(3)
+	public long read() {
+		long sum = 0;
+		for (IntegerType<?> pixel : Views.iterable(sparse))
+			sum += pixel.getIntegerLong();
+		return sum;
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(1)
+	public void write() {
+		writeRandomSlice();
+	}
+
+	@Benchmark
+	@Group("concurrentWrites")
+	@GroupThreads(4)
+	public void concurrentWrite() {
+		writeRandomSlice();
+	}
+
+	private void writeRandomSlice() {
+		long z = ThreadLocalRandom.current().nextLong(100);
+		int value = ThreadLocalRandom.current().nextInt(2);
+		for (IntegerType<?> pixel : Views.hyperSlice(sparse, 2, z))
+			pixel.setInteger(value);
+	}
+
 	public static void main(final String... args) throws RunnerException {
 		final Options opt = new OptionsBuilder()
 			.include(SparseRandomAccessIntTypeBenchmark.class.getSimpleName())
@@ -29,12 +29,26 @@
 
 package sc.fiji.labkit.ui.utils.sparse;
 
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class SparseRandomAccessIntTypeTest {
 
@@ -51,4 +65,151 @@ public class SparseRandomAccessIntTypeTest {
 		// test
 		assertFalse(image.sparsityPattern().inside().cursor().hasNext());
 	}
+
+	@Test
+	public void testSparseCursor() {
+		// setup
+		Interval interval = Intervals.createMinSize(-10, 5, 0, 100, 70, 40);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		Set<Point> expected = new HashSet<>();
+		RandomAccess<IntType> ra = image.randomAccess();
+		for (long[] position : new long[][] { { -10, 5, 0 }, { 89, 74, 39 },
+			{ 20, 30, 10 }, { 21, 30, 10 }, { 60, 6, 35 } })
+		{
+			ra.setPositionAndGet(position).setInteger(42);
+			expected.add(new Point(position));
+		}
+		// process
+		Set<Point> actual = new HashSet<>();
+		Cursor<IntType> cursor = image.sparseCursor();
+		while (cursor.hasNext()) {
+			assertEquals(42, cursor.next().getInteger());
+			actual.add(new Point(cursor));
+		}
+		// test
+		assertEquals(expected, actual);
+		assertEquals(expected.size(), image.sparsityPattern().inside().size());
+	}
+
+	@Test
+	public void testRemoveWhileIterating() {
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		Views.iterable(image).forEach(x -> x.setInteger(1));
+		Cursor<IntType> cursor = image.sparseCursor();
+		long count = 0;
+		while (cursor.hasNext()) {
+			cursor.next().setZero();
+			count++;
+		}
+		assertEquals(Intervals.numElements(interval), count);
+		assertEquals(0, image.sparsityPattern().inside().size());
+		assertFalse(image.sparseCursor().hasNext());
+	}
+
+	@Test
+	public void testMultiThreadedWrite() {
+		Interval interval = Intervals.createMinSize(0, 0, 0, 64, 64, 64);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		LoopBuilder.setImages(image).multiThreaded().forEachPixel(x -> x
+			.setInteger(7));
+		assertEquals(Intervals.numElements(interval), image.sparsityPattern()
+			.inside().size());
+		Views.iterable(image).forEach(x -> assertEquals(7, x.getInteger()));
+	}
+
+	@Test
+	public void testClearWhileWriting() throws InterruptedException {
+		Interval interval = Intervals.createMinSize(0, 0, 64, 64);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 20; i++)
+				Views.iterable(image).forEach(x -> x.setInteger(1));
+		});
+		writer.start();
+		while (writer.isAlive())
+			image.clear();
+		writer.join();
+		long count = 0;
+		Cursor<IntType> cursor = image.sparseCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			count++;
+		}
+		assertEquals(count, image.sparsityPattern().inside().size());
+	}
+
+	@Test
+	public void testPromoteAndDemoteBlocks() {
+		// setup
+		Interval interval = Intervals.createMinSize(0, 0, 128, 64);
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval,
+			-1);
+		// process & test
+		Views.iterable(Views.interval(image, Intervals.createMinSize(0, 0, 64,
+			64))).forEach(x -> x.setInteger(3));
+		assertEquals(1, image.numAllocatedBlocks());
+		assertEquals(1, image.numDenseBlocks());
+		assertEquals(64 * 64, image.sparsityPattern().inside().size());
+		image.sparseCursor().forEachRemaining(x -> assertEquals(3, x
+			.getInteger()));
+		Views.iterable(Views.interval(image, Intervals.createMinSize(0, 0, 64,
+			63))).forEach(x -> x.setInteger(-1));
+		assertEquals(64, image.sparsityPattern().inside().size());
+		assertEquals(0, image.numDenseBlocks());
+		Views.iterable(image).forEach(x -> x.setInteger(-1));
+		assertEquals(0, image.numAllocatedBlocks());
+		assertFalse(image.sparseCursor().hasNext());
+	}
+
+	@Test
+	public void testGetAndSetBlock() {
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPositionAndGet(4, -3, 7).setInteger(5);
+		BlockIndexer indexer = image.blockIndexer();
+		int blockIndex = indexer.blockIndex(ra);
+		int[] values = new int[indexer.blockSize()];
+		assertTrue(image.getBlock(blockIndex, values));
+		assertEquals(5, values[indexer.indexInBlock(ra)]);
+		SparseRandomAccessIntType copy = new SparseRandomAccessIntType(interval);
+		copy.setBlock(blockIndex, values);
+		assertEquals(1, copy.sparsityPattern().inside().size());
+		assertEquals(5, copy.randomAccess().setPositionAndGet(4, -3, 7)
+			.getInteger());
+	}
+
+	@Test
+	public void testPollModifiedBlocks() {
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPositionAndGet(4, -3, 7).setInteger(5);
+		int blockIndex = image.blockIndexer().blockIndex(ra);
+		Set<Integer> modified = new HashSet<>();
+		image.pollModifiedBlocks(modified::add);
+		assertEquals(Collections.singleton(blockIndex), modified);
+		modified.clear();
+		image.pollModifiedBlocks(modified::add);
+		assertTrue(modified.isEmpty());
+		ra.get().setInteger(0);
+		image.pollModifiedBlocks(modified::add);
+		assertEquals(Collections.singleton(blockIndex), modified);
+	}
+
+	@Test
+	public void testValueChangeListener() {
+		SparseRandomAccessIntType image = new SparseRandomAccessIntType(interval);
+		List<String> changes = new ArrayList<>();
+		image.addValueChangeListener((blockIndex, position, oldValue,
+			newValue) -> changes.add(new Point(position) + " " + oldValue + " -> " +
+				newValue));
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPositionAndGet(4, -3, 7).setInteger(5);
+		ra.get().setInteger(5);
+		ra.get().setInteger(6);
+		int blockIndex = image.blockIndexer().blockIndex(ra);
+		int[] values = new int[image.blockIndexer().blockSize()];
+		image.setBlock(blockIndex, values);
+		assertEquals(Arrays.asList("(4,-3,7) 0 -> 5", "(4,-3,7) 5 -> 6",
+			"(4,-3,7) 6 -> 0"), changes);
+	}
 }